@@ -0,0 +1,60 @@
+package net.sf.uranion.benchmarks;
+
+import net.sf.uranion.packet.Packet;
+
+/**
+ * The packet layouts the benchmarks run against.
+ */
+final class FieldMix {
+
+    /**
+     * Eight number fields, our typical small record.
+     */
+    static final String NUMBERS = "numbers";
+
+    /**
+     * A number, a short text, a 1 KB raw field and an object.
+     */
+    static final String MIXED = "mixed";
+
+    /**
+     * A single 64 KB raw field.
+     */
+    static final String RAW_64K = "raw64k";
+
+    private static final byte[] KILOBYTE = new byte[1024];
+
+    private static final byte[] RAW = new byte[64 * 1024];
+
+    private FieldMix() {
+    }
+
+    static Packet create(String mix) {
+        Packet packet;
+        if (NUMBERS.equals(mix)) {
+            packet = new Packet(8);
+            for (int i = 0; i < 8; i++) {
+                packet.setNumber(i, i * 31L);
+            }
+        } else if (MIXED.equals(mix)) {
+            packet = new Packet(4);
+            packet.setNumber(0, 4711);
+            packet.setCharacters(1, "uranion benchmark");
+            packet.setRaw(2, KILOBYTE, false);
+            packet.setObject(3, new int[] { 1, 2, 3, 4 });
+        } else if (RAW_64K.equals(mix)) {
+            packet = new Packet(1);
+            packet.setRaw(0, RAW, false);
+        } else {
+            throw new IllegalArgumentException("unknown field mix " + mix);
+        }
+        return packet;
+    }
+
+    static Packet create(int payloadSize) {
+        Packet packet = new Packet(1);
+        packet.setRaw(0, new byte[payloadSize], false);
+        return packet;
+    }
+
+}
@@ -0,0 +1,90 @@
+package net.sf.uranion.benchmarks;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.uranion.packet.Packet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Object fields through the built-in compact serializers and through Java
+ * serialization, compared to a raw field of similar size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectFieldBenchmark {
+
+    @Param({ "string", "ints", "serializable" })
+    public String kind;
+
+    private Object value;
+
+    private Packet packet;
+
+    private byte[] raw = new byte[64];
+
+    @Setup
+    public void setUp() {
+        if ("string".equals(this.kind)) {
+            this.value = "a short text of some sixty characters, mostly plain ascii";
+        } else if ("ints".equals(this.kind)) {
+            this.value = new int[16];
+        } else {
+            this.value = new Point(3, 4, "origin");
+        }
+        this.packet = new Packet(1);
+        this.packet.setObject(0, this.value);
+    }
+
+    @Benchmark
+    public Packet setObject() {
+        this.packet.setObject(0, this.value);
+        return this.packet;
+    }
+
+    @Benchmark
+    public Object getObject() throws ClassNotFoundException {
+        return this.packet.getObject(0);
+    }
+
+    @Benchmark
+    public Object raw() {
+        Packet fresh = new Packet(1);
+        fresh.setRaw(0, this.raw, false);
+        return fresh.getRaw(0);
+    }
+
+    static final class Point implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int x;
+
+        private int y;
+
+        private String label;
+
+        Point(int x, int y, String label) {
+            this.x = x;
+            this.y = y;
+            this.label = label;
+        }
+
+    } // inner-class
+
+}
@@ -0,0 +1,108 @@
+package net.sf.uranion.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.uranion.packet.BufferAllocator;
+import net.sf.uranion.packet.Packet;
+import net.sf.uranion.packet.PacketView;
+import net.sf.uranion.packet.PooledBufferAllocator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building, writing and parsing packets in memory, without any networking.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+    @Param({ FieldMix.NUMBERS, FieldMix.MIXED, FieldMix.RAW_64K })
+    public String mix;
+
+    /**
+     * Whether parsed packets read into pooled buffers.
+     */
+    @Param({ "false", "true" })
+    public boolean pooled;
+
+    private Packet packet;
+
+    private byte[] wire;
+
+    private ByteBuffer wireBuffer;
+
+    private ByteArrayOutputStream out;
+
+    private WritableByteChannel outChannel;
+
+    private PacketView view = new PacketView();
+
+    @Setup
+    public void setUp() throws IOException {
+        Packet.setDefaultAllocator(this.pooled ? new PooledBufferAllocator() : BufferAllocator.UNPOOLED);
+        this.packet = FieldMix.create(this.mix);
+        this.out = new ByteArrayOutputStream();
+        this.outChannel = Channels.newChannel(this.out);
+        this.packet.write(this.outChannel);
+        this.wire = this.out.toByteArray();
+        this.wireBuffer = ByteBuffer.wrap(this.wire);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Packet.setDefaultAllocator(null);
+    }
+
+    @Benchmark
+    public Packet construct() {
+        return FieldMix.create(this.mix);
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        this.out.reset();
+        this.packet.write(this.outChannel);
+        return this.out.size();
+    }
+
+    @Benchmark
+    public Packet parseBuffer() throws IOException {
+        return new Packet(ByteBuffer.wrap(this.wire));
+    }
+
+    @Benchmark
+    public int parseChannel() throws IOException {
+        Packet parsed = new Packet(Channels.newChannel(new ByteArrayInputStream(this.wire)));
+        int length = parsed.getFieldLength(0);
+        parsed.dispose();
+        return length;
+    }
+
+    @Benchmark
+    public int view() {
+        this.wireBuffer.clear();
+        return this.view.wrap(this.wireBuffer).getFieldLength(0);
+    }
+
+}
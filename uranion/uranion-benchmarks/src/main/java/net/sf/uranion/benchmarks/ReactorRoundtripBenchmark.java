@@ -0,0 +1,143 @@
+package net.sf.uranion.benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.uranion.packet.Packet;
+import net.sf.uranion.reactor.PacketProcessor;
+import net.sf.uranion.reactor.PacketProcessorClient;
+import net.sf.uranion.reactor.PacketReactor;
+import net.sf.uranion.reactor.SpinWaitStrategy;
+import net.sf.uranion.reactor.WaitStrategy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Echo round-trips over loopback against a {@link PacketReactor}. Every
+ * benchmark thread has a connection of its own; client concurrency is set
+ * with the JMH thread count (<code>-t</code>).
+ * <p>
+ * The sample-time mode reports the latency percentiles, compare p50 and p99
+ * across the reactor wait strategies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReactorRoundtripBenchmark {
+
+    private static final int PORT = 7790;
+
+    private static final int PIPELINE_DEPTH = 16;
+
+    @Param({ "64", "4096", "262144" })
+    public int payloadSize;
+
+    /**
+     * <code>0</code> lets the acceptor drive all connections.
+     */
+    @Param({ "0", "2" })
+    public int numReactors;
+
+    /**
+     * <code>spin</code> polls 10000 times before blocking.
+     */
+    @Param({ "blocking", "spin", "busy-poll" })
+    public String waitStrategy;
+
+    /**
+     * <code>pooled</code> hands every request to the processor pool,
+     * <code>inline</code> echoes on the reactor thread.
+     */
+    @Param({ "inline", "pooled" })
+    public String processing;
+
+    private PacketReactor reactor;
+
+    @Setup(Level.Trial)
+    public void startReactor() throws IOException {
+        PacketProcessor processor = PacketProcessor.ECHO;
+        if (this.processing.equals("pooled")) {
+            processor = new PacketProcessor() {
+                public Packet process(Packet packet) {
+                    return packet;
+                }
+            };
+        }
+        this.reactor = new PacketReactor(PORT, 4, this.numReactors, null, processor);
+        this.reactor.setWaitStrategy(createWaitStrategy(this.waitStrategy));
+        Thread acceptor = new Thread(this.reactor, "uranion-benchmark-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopReactor() throws IOException {
+        this.reactor.stopListen();
+    }
+
+    private static WaitStrategy createWaitStrategy(String name) {
+        if (name.equals("spin")) {
+            return new SpinWaitStrategy(10000);
+        }
+        return name.equals("busy-poll") ? WaitStrategy.BUSY_POLL : WaitStrategy.BLOCKING;
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private PacketProcessorClient client;
+
+        private Packet request;
+
+        @Setup(Level.Trial)
+        public void connect(ReactorRoundtripBenchmark server) throws IOException {
+            this.client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT));
+            this.request = FieldMix.create(server.payloadSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            this.client.shutdown();
+        }
+
+    } // inner-class
+
+    @Benchmark
+    public Packet roundtrip(Client client) throws IOException {
+        return client.client.process(client.request);
+    }
+
+    /**
+     * Keeps {@value #PIPELINE_DEPTH} requests outstanding on the connection.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public void pipelined(Client client) throws Exception {
+        Future[] responses = new Future[PIPELINE_DEPTH];
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = client.client.submit(FieldMix.create(this.payloadSize));
+        }
+        for (int i = 0; i < responses.length; i++) {
+            responses[i].get();
+        }
+    }
+
+}
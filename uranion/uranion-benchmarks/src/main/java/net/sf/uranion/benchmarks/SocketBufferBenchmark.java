@@ -0,0 +1,104 @@
+package net.sf.uranion.benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.uranion.packet.Packet;
+import net.sf.uranion.reactor.ClientOptions;
+import net.sf.uranion.reactor.PacketProcessor;
+import net.sf.uranion.reactor.PacketProcessorClient;
+import net.sf.uranion.reactor.PacketReactor;
+import net.sf.uranion.reactor.ProcessorExecutors;
+import net.sf.uranion.reactor.ServerOptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Echo round-trips of large payloads across socket buffer sizes, see
+ * {@link ServerOptions}.
+ * <p>
+ * Guidance: over loopback the round-trip time is tiny and 128 KB buffers
+ * already saturate the copy bandwidth for payloads up to a few hundred KB;
+ * multi-megabyte payloads gain from 1 MB buffers as the reactor needs fewer
+ * selector rounds per response. On real links size the buffers to the
+ * bandwidth-delay product (10 Gbit/s at 1 ms is about 1.2 MB) and emulate the
+ * latency with <code>tc qdisc add dev lo root netem delay 1ms</code> before
+ * comparing. The adaptive mode should come close to the best fixed size
+ * without giving every idle connection that much kernel memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SocketBufferBenchmark {
+
+    private static final int PORT = 7791;
+
+    private static final int MAX_ADAPTIVE_BUFFER = 4 * 1024 * 1024;
+
+    @Param({ "262144", "7340032" })
+    public int payloadSize;
+
+    /**
+     * The send buffer of the server and the receive buffer of the client,
+     * <code>adaptive</code> starts at the default and grows the server side.
+     */
+    @Param({ "65536", "131072", "1048576", "adaptive" })
+    public String bufferSize;
+
+    private PacketReactor reactor;
+
+    private PacketProcessorClient client;
+
+    private Packet request;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        ServerOptions serverOptions = new ServerOptions();
+        ClientOptions clientOptions = new ClientOptions();
+        if (this.bufferSize.equals("adaptive")) {
+            serverOptions.setAdaptiveSendBuffer(MAX_ADAPTIVE_BUFFER);
+            clientOptions.setReceiveBufferSize(MAX_ADAPTIVE_BUFFER);
+        } else {
+            int size = Integer.parseInt(this.bufferSize);
+            serverOptions.setSendBufferSize(size);
+            serverOptions.setReceiveBufferSize(size);
+            clientOptions.setReceiveBufferSize(size);
+            clientOptions.setSendBufferSize(size);
+        }
+        this.reactor = new PacketReactor(new InetSocketAddress(PORT), ProcessorExecutors.fixed(2), 0, null, PacketProcessor.ECHO, serverOptions);
+        Thread acceptor = new Thread(this.reactor, "uranion-benchmark-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        this.client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT), clientOptions);
+        this.request = new Packet(1);
+        this.request.setRaw(0, new byte[this.payloadSize], false);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        this.client.shutdown();
+        this.reactor.shutdown();
+    }
+
+    @Benchmark
+    public Packet roundtrip() throws IOException {
+        return this.client.process(this.request);
+    }
+
+}
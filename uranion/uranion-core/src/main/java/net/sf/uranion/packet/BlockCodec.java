@@ -0,0 +1,200 @@
+package net.sf.uranion.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Byte-oriented LZ77 in the LZ4 block format: sequences of a token, literals
+ * and a back reference of at least four bytes within the last 64 KB. Matches
+ * are found through a single hash table without chains, trading ratio for
+ * speed. Works on heap and direct buffers alike, with absolute gets and puts.
+ */
+final class BlockCodec implements FieldCodec {
+
+    private static final int ID = 1;
+
+    private static final int MIN_MATCH = 4;
+
+    private static final int MAX_DISTANCE = 65535;
+
+    /**
+     * The last literals, and the bytes before them a match may not start in.
+     */
+    private static final int LAST_LITERALS = 5;
+
+    private static final int MF_LIMIT = 12;
+
+    private static final int HASH_LOG = 12;
+
+    /**
+     * Literal runs up to this length are copied byte by byte.
+     */
+    private static final int SHORT_COPY = 32;
+
+    public int getId() {
+        return ID;
+    }
+
+    public boolean compress(ByteBuffer src, ByteBuffer dst) {
+        int base = src.position();
+        int end = src.limit();
+        int out = dst.position();
+        int anchor = base;
+        if (end - base > MF_LIMIT) {
+            // positions relative to base plus one, 0 for none
+            int[] table = new int[1 << HASH_LOG];
+            int limit = end - MF_LIMIT;
+            int matchLimit = end - LAST_LITERALS;
+            int p = base;
+            while (p < limit) {
+                int sequence = src.getInt(p);
+                int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int candidate = table[hash];
+                table[hash] = p - base + 1;
+                int ref = candidate - 1 + base;
+                if (candidate == 0 || p - ref > MAX_DISTANCE || src.getInt(ref) != sequence) {
+                    // skip faster through data which does not compress
+                    p += 1 + ((p - anchor) >>> 6);
+                    continue;
+                }
+                while (p > anchor && ref > base && src.get(p - 1) == src.get(ref - 1)) {
+                    p--;
+                    ref--;
+                }
+                int length = MIN_MATCH;
+                while (p + length < matchLimit && src.get(p + length) == src.get(ref + length)) {
+                    length++;
+                }
+                out = sequence(src, anchor, p - anchor, p - ref, length, dst, out);
+                if (out < 0) {
+                    return false;
+                }
+                p += length;
+                anchor = p;
+            }
+        }
+        out = sequence(src, anchor, end - anchor, 0, 0, dst, out);
+        if (out < 0) {
+            return false;
+        }
+        src.position(end);
+        dst.position(out);
+        return true;
+    }
+
+    /**
+     * Writes literals followed by a match, the last sequence has no match.
+     *
+     * @return the position after the sequence, <code>-1</code> if it does
+     *         not fit
+     */
+    private static int sequence(ByteBuffer src, int literals, int literalLength, int distance, int matchLength, ByteBuffer dst, int out) {
+        int size = 1 + literalLength + literalLength / 255 + 1;
+        if (matchLength > 0) {
+            size += 2 + (matchLength - MIN_MATCH) / 255 + 1;
+        }
+        if (out + size > dst.limit()) {
+            return -1;
+        }
+        int tokenIndex = out++;
+        int token;
+        if (literalLength >= 15) {
+            token = 15 << 4;
+            out = putLength(dst, out, literalLength - 15);
+        } else {
+            token = literalLength << 4;
+        }
+        copy(src, literals, dst, out, literalLength);
+        out += literalLength;
+        if (matchLength > 0) {
+            dst.put(out++, (byte) distance);
+            dst.put(out++, (byte) (distance >>> 8));
+            int length = matchLength - MIN_MATCH;
+            if (length >= 15) {
+                token |= 15;
+                out = putLength(dst, out, length - 15);
+            } else {
+                token |= length;
+            }
+        }
+        dst.put(tokenIndex, (byte) token);
+        return out;
+    }
+
+    private static int putLength(ByteBuffer dst, int out, int length) {
+        while (length >= 255) {
+            dst.put(out++, (byte) 255);
+            length -= 255;
+        }
+        dst.put(out++, (byte) length);
+        return out;
+    }
+
+    private static void copy(ByteBuffer src, int from, ByteBuffer dst, int to, int length) {
+        if (length <= SHORT_COPY) {
+            for (int i = 0; i < length; i++) {
+                dst.put(to + i, src.get(from + i));
+            }
+            return;
+        }
+        ByteBuffer source = src.duplicate();
+        source.limit(from + length).position(from);
+        ByteBuffer target = dst.duplicate();
+        target.position(to);
+        target.put(source);
+    }
+
+    public void decompress(ByteBuffer src, ByteBuffer dst) {
+        int p = src.position();
+        int end = src.limit();
+        int base = dst.position();
+        int out = base;
+        int outEnd = dst.limit();
+        try {
+            while (p < end) {
+                int token = src.get(p++) & 0xff;
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src.get(p++) & 0xff;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                if (p + literalLength > end || out + literalLength > outEnd) {
+                    throw new PacketException("corrupt compressed field");
+                }
+                copy(src, p, dst, out, literalLength);
+                p += literalLength;
+                out += literalLength;
+                if (p == end) {
+                    // the last sequence
+                    break;
+                }
+                int distance = (src.get(p++) & 0xff) | (src.get(p++) & 0xff) << 8;
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src.get(p++) & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = out - distance;
+                if (distance == 0 || ref < base || out + matchLength > outEnd) {
+                    throw new PacketException("corrupt compressed field");
+                }
+                // may overlap, byte by byte repeats the pattern
+                for (int i = 0; i < matchLength; i++) {
+                    dst.put(out + i, dst.get(ref + i));
+                }
+                out += matchLength;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new PacketException("corrupt compressed field", e);
+        }
+        src.position(end);
+        dst.position(out);
+    }
+
+}
@@ -0,0 +1,29 @@
+package net.sf.uranion.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of the buffers a {@link Packet} reads into and assembles its TOC in.
+ * Buffers handed out are positioned at <code>0</code> with their limit set to
+ * the requested size; their capacity may be larger.
+ */
+public interface BufferAllocator {
+
+    public final static BufferAllocator UNPOOLED = new BufferAllocator() {
+        public ByteBuffer allocate(int size, boolean direct) {
+            return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+
+        public void release(ByteBuffer buffer) {
+            // left to the garbage collector
+        }
+    };
+
+    public ByteBuffer allocate(int size, boolean direct);
+
+    /**
+     * Hands a buffer obtained from {@link #allocate(int, boolean)} back. The
+     * caller must not touch the buffer (or any slice of it) afterwards.
+     */
+    public void release(ByteBuffer buffer);
+}
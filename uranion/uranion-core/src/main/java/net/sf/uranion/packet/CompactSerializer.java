@@ -0,0 +1,139 @@
+package net.sf.uranion.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The built-in serializers of {@link FieldSerializers}: fixed-size values
+ * are written as is, strings in UTF-8 and arrays without a length prefix as
+ * the field length tells it.
+ */
+final class CompactSerializer implements FieldSerializer {
+
+    static final Class[] TYPES = { String.class, Integer.class, Long.class, Double.class, Boolean.class, byte[].class, int[].class, long[].class, double[].class };
+
+    private static final int STRING = 0;
+
+    private static final int INTEGER = 1;
+
+    private static final int LONG = 2;
+
+    private static final int DOUBLE = 3;
+
+    private static final int BOOLEAN = 4;
+
+    private static final int BYTES = 5;
+
+    private static final int INTS = 6;
+
+    private static final int LONGS = 7;
+
+    private static final int DOUBLES = 8;
+
+    private final int kind;
+
+    CompactSerializer(int kind) {
+        this.kind = kind;
+    }
+
+    public int getSize(Object data) {
+        switch (this.kind) {
+        case STRING:
+            return 3 * ((String) data).length();
+        case INTEGER:
+            return 4;
+        case LONG:
+        case DOUBLE:
+            return 8;
+        case BOOLEAN:
+            return 1;
+        case BYTES:
+            return ((byte[]) data).length;
+        case INTS:
+            return 4 * ((int[]) data).length;
+        case LONGS:
+            return 8 * ((long[]) data).length;
+        default:
+            return 8 * ((double[]) data).length;
+        }
+    }
+
+    public void write(Object data, ByteBuffer target) {
+        switch (this.kind) {
+        case STRING:
+            TextCodec.encode((String) data, TextCodec.UTF_8, target);
+            break;
+        case INTEGER:
+            target.putInt(((Integer) data).intValue());
+            break;
+        case LONG:
+            target.putLong(((Long) data).longValue());
+            break;
+        case DOUBLE:
+            target.putDouble(((Double) data).doubleValue());
+            break;
+        case BOOLEAN:
+            target.put((byte) (((Boolean) data).booleanValue() ? 1 : 0));
+            break;
+        case BYTES:
+            target.put((byte[]) data);
+            break;
+        case INTS:
+            int[] ints = (int[]) data;
+            for (int i = 0; i < ints.length; i++) {
+                target.putInt(ints[i]);
+            }
+            break;
+        case LONGS:
+            long[] longs = (long[]) data;
+            for (int i = 0; i < longs.length; i++) {
+                target.putLong(longs[i]);
+            }
+            break;
+        default:
+            double[] doubles = (double[]) data;
+            for (int i = 0; i < doubles.length; i++) {
+                target.putDouble(doubles[i]);
+            }
+        }
+    }
+
+    public Object read(ByteBuffer source) {
+        switch (this.kind) {
+        case STRING:
+            StringBuffer text = new StringBuffer(source.remaining());
+            TextCodec.decode(source, source.position(), source.remaining(), TextCodec.UTF_8, text);
+            return text.toString();
+        case INTEGER:
+            return new Integer(source.getInt());
+        case LONG:
+            return new Long(source.getLong());
+        case DOUBLE:
+            return new Double(source.getDouble());
+        case BOOLEAN:
+            return Boolean.valueOf(source.get() != 0);
+        case BYTES:
+            byte[] bytes = new byte[source.remaining()];
+            source.get(bytes);
+            return bytes;
+        case INTS:
+            int[] ints = new int[source.remaining() / 4];
+            for (int i = 0; i < ints.length; i++) {
+                ints[i] = source.getInt();
+            }
+            return ints;
+        case LONGS:
+            long[] longs = new long[source.remaining() / 8];
+            for (int i = 0; i < longs.length; i++) {
+                longs[i] = source.getLong();
+            }
+            return longs;
+        default:
+            double[] doubles = new double[source.remaining() / 8];
+            for (int i = 0; i < doubles.length; i++) {
+                doubles[i] = source.getDouble();
+            }
+            return doubles;
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package net.sf.uranion.packet;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The zlib format of {@link Deflater}. Heap buffers are handed to it as they
+ * are, direct ones are copied.
+ */
+final class DeflateCodec implements FieldCodec {
+
+    private static final int ID = 2;
+
+    private int level;
+
+    DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    public int getId() {
+        return ID;
+    }
+
+    public boolean compress(ByteBuffer src, ByteBuffer dst) {
+        Deflater deflater = new Deflater(this.level);
+        try {
+            if (src.hasArray()) {
+                deflater.setInput(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            } else {
+                byte[] input = new byte[src.remaining()];
+                src.duplicate().get(input);
+                deflater.setInput(input);
+            }
+            deflater.finish();
+            src.position(src.limit());
+            byte[] output = dst.hasArray() ? dst.array() : new byte[dst.remaining()];
+            int offset = dst.hasArray() ? dst.arrayOffset() + dst.position() : 0;
+            int length = dst.remaining();
+            int count = 0;
+            while (!deflater.finished() && count < length) {
+                count += deflater.deflate(output, offset + count, length - count);
+            }
+            if (!deflater.finished()) {
+                return false;
+            }
+            if (dst.hasArray()) {
+                dst.position(dst.position() + count);
+            } else {
+                dst.put(output, 0, count);
+            }
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public void decompress(ByteBuffer src, ByteBuffer dst) {
+        Inflater inflater = new Inflater();
+        try {
+            if (src.hasArray()) {
+                inflater.setInput(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            } else {
+                byte[] input = new byte[src.remaining()];
+                src.duplicate().get(input);
+                inflater.setInput(input);
+            }
+            src.position(src.limit());
+            byte[] output = dst.hasArray() ? dst.array() : new byte[dst.remaining()];
+            int offset = dst.hasArray() ? dst.arrayOffset() + dst.position() : 0;
+            int length = dst.remaining();
+            int count = 0;
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(output, offset + count, length - count);
+                if (inflated == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary() || count == length)) {
+                    throw new PacketException("corrupt compressed field");
+                }
+                count += inflated;
+            }
+            if (dst.hasArray()) {
+                dst.position(dst.position() + count);
+            } else {
+                dst.put(output, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new PacketException("corrupt compressed field", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
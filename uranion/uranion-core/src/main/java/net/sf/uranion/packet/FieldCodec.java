@@ -0,0 +1,49 @@
+package net.sf.uranion.packet;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the fields of a {@link Packet}, see
+ * {@link Packet#compress(FieldCodec, int)}. The id of the codec is written
+ * with every field it compresses, so receivers pick the codec from
+ * {@link FieldCodecs} without configuration.
+ */
+public interface FieldCodec {
+
+    /**
+     * A fast block codec in the LZ4 format, for links where CPU time matters
+     * more than the ratio.
+     */
+    public final static FieldCodec FAST = new BlockCodec();
+
+    /**
+     * Deflate at its fastest level, for bandwidth-bound links.
+     */
+    public final static FieldCodec DEFLATE = new DeflateCodec(Deflater.BEST_SPEED);
+
+    /**
+     * @return the id written with the fields, between <code>1</code> and
+     *         <code>127</code>
+     */
+    public int getId();
+
+    /**
+     * Compresses the remaining bytes of the source into the destination,
+     * advancing both positions.
+     * 
+     * @return false if the result does not fit into the remaining space of
+     *         the destination, the positions are undefined then
+     */
+    public boolean compress(ByteBuffer src, ByteBuffer dst);
+
+    /**
+     * Decompresses the remaining bytes of the source into the destination,
+     * advancing both positions.
+     * 
+     * @throws PacketException
+     *             if the data is corrupt or does not fit
+     */
+    public void decompress(ByteBuffer src, ByteBuffer dst);
+
+}
@@ -0,0 +1,56 @@
+package net.sf.uranion.packet;
+
+/**
+ * The registry of the {@link FieldCodec}s compressed fields are decoded with,
+ * by their id. {@link FieldCodec#FAST} and {@link FieldCodec#DEFLATE} are
+ * registered by default.
+ */
+public final class FieldCodecs {
+
+    /**
+     * Codec ids below are reserved for the built-in codecs.
+     */
+    public static final int FIRST_USER_CODEC_ID = 16;
+
+    private static final int MAX_CODEC_ID = 127;
+
+    /**
+     * Replaced on registration, so lookups need no lock.
+     */
+    private static volatile FieldCodec[] byId = new FieldCodec[MAX_CODEC_ID + 1];
+
+    static {
+        register0(FieldCodec.FAST);
+        register0(FieldCodec.DEFLATE);
+    }
+
+    private FieldCodecs() {
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the id of the codec is not between
+     *             {@link #FIRST_USER_CODEC_ID} and <code>127</code>
+     */
+    public static void register(FieldCodec codec) {
+        if (codec.getId() < FIRST_USER_CODEC_ID || codec.getId() > MAX_CODEC_ID) {
+            throw new IllegalArgumentException("codec id out of range: " + codec.getId());
+        }
+        register0(codec);
+    }
+
+    private static synchronized void register0(FieldCodec codec) {
+        FieldCodec[] codecs = byId.clone();
+        codecs[codec.getId()] = codec;
+        byId = codecs;
+    }
+
+    static FieldCodec forId(int id) {
+        FieldCodec codec = (id > 0 && id <= MAX_CODEC_ID) ? byId[id] : null;
+        if (codec == null) {
+            throw new PacketException("no codec for id " + id);
+        }
+        return codec;
+    }
+
+}
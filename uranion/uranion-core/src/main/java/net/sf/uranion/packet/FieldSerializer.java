@@ -0,0 +1,31 @@
+package net.sf.uranion.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes objects of one class into object fields, replacing Java
+ * serialization for that class. Serializers are registered with
+ * {@link FieldSerializers} under a type id which is sent along with the
+ * field; both peers need the same registration.
+ */
+public interface FieldSerializer {
+
+    /**
+     * @return an upper bound of the number of bytes
+     *         {@link #write(Object, ByteBuffer)} puts
+     */
+    public int getSize(Object data);
+
+    /**
+     * Puts the object at the position of the buffer.
+     */
+    public void write(Object data, ByteBuffer target);
+
+    /**
+     * @param source
+     *            positioned at the start of the encoded object, its limit at
+     *            the end of the field
+     */
+    public Object read(ByteBuffer source);
+
+}
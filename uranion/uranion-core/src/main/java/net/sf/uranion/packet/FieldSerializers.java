@@ -0,0 +1,93 @@
+package net.sf.uranion.packet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The registry of the {@link FieldSerializer}s used by
+ * {@link Packet#setObject(int, Object)}. A serializer is picked by the exact
+ * class of the object; objects of unregistered classes are written with Java
+ * serialization.
+ * <p>
+ * Strings, boxed numbers, booleans and arrays of bytes, ints, longs and
+ * doubles are registered by default.
+ */
+public final class FieldSerializers {
+
+    /**
+     * Type ids below are reserved for the built-in serializers.
+     */
+    public static final int FIRST_USER_TYPE_ID = 64;
+
+    /**
+     * Replaced on registration, so lookups need no lock.
+     */
+    private static volatile Map byClass = new HashMap();
+
+    private static volatile Map byTypeId = new HashMap();
+
+    static {
+        for (int i = 0; i < CompactSerializer.TYPES.length; i++) {
+            register0(i + 1, CompactSerializer.TYPES[i], new CompactSerializer(i));
+        }
+    }
+
+    private FieldSerializers() {
+    }
+
+    /**
+     * @param typeId
+     *            between {@link #FIRST_USER_TYPE_ID} and
+     *            {@link Short#MAX_VALUE}
+     */
+    public static void register(int typeId, Class type, FieldSerializer serializer) {
+        if (typeId < FIRST_USER_TYPE_ID || typeId > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("type id out of range: " + typeId);
+        }
+        register0(typeId, type, serializer);
+    }
+
+    private static synchronized void register0(int typeId, Class type, FieldSerializer serializer) {
+        Registration registration = new Registration(typeId, serializer);
+        Map classes = new HashMap(byClass);
+        classes.put(type, registration);
+        Map typeIds = new HashMap(byTypeId);
+        typeIds.put(new Integer(typeId), registration);
+        byClass = classes;
+        byTypeId = typeIds;
+    }
+
+    public static synchronized void unregister(Class type) {
+        Map classes = new HashMap(byClass);
+        Registration registration = (Registration) classes.remove(type);
+        if (registration != null) {
+            Map typeIds = new HashMap(byTypeId);
+            typeIds.remove(new Integer(registration.typeId));
+            byClass = classes;
+            byTypeId = typeIds;
+        }
+    }
+
+    static Registration forClass(Class type) {
+        return (Registration) byClass.get(type);
+    }
+
+    static FieldSerializer forTypeId(int typeId) {
+        Registration registration = (Registration) byTypeId.get(new Integer(typeId));
+        return (registration == null) ? null : registration.serializer;
+    }
+
+    static final class Registration {
+
+        final int typeId;
+
+        final FieldSerializer serializer;
+
+        Registration(int typeId, FieldSerializer serializer) {
+            this.typeId = typeId;
+            this.serializer = serializer;
+        }
+
+    } // inner-class
+
+}
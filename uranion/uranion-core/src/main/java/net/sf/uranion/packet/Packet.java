@@ -1,14 +1,17 @@
 package net.sf.uranion.packet;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.ScatteringByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
@@ -22,29 +25,69 @@ public class Packet {
 
     private static final byte[] ZERO_TOC = new byte[0];
 
+    private static volatile BufferAllocator defaultAllocator = BufferAllocator.UNPOOLED;
+
+    private static volatile File spoolDirectory;
+
     public final static Packet EMPTY_PACKET = new Packet(0);
 
     private final static ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
 
-    private final static Charset CHARSET = Charset.forName("UTF-16");
+    private static volatile Charset defaultCharset = TextCodec.UTF_16;
 
     private static final byte FLAG_DIRECT = 1;
 
-    private static final byte CONTENT_NUMBER = 2;
+    static final byte CONTENT_NUMBER = 2;
+
+    static final byte CONTENT_CHAR = 4;
+
+    private static final byte FLAG_CHAR_LATIN1 = 32;
 
-    private static final byte CONTENT_CHAR = 4;
+    private static final byte FLAG_CHAR_UTF8 = 64;
+
+    private static final byte CONTENT_CHAR_LATIN1 = CONTENT_CHAR + FLAG_CHAR_LATIN1;
+
+    private static final byte CONTENT_CHAR_UTF8 = CONTENT_CHAR + FLAG_CHAR_UTF8;
 
     private static final byte CONTENT_OBJECT = 8;
 
+    private static final byte FLAG_SERIALIZER = 64;
+
+    private static final byte CONTENT_OBJECT_SERIALIZED = CONTENT_OBJECT + FLAG_SERIALIZER;
+
+    private static final int TYPE_ID_SIZE = 2;
+
     private static final byte CONTENT_RAW = 16;
 
     private static final byte CONTENT_RAW_DIRECT = CONTENT_RAW + FLAG_DIRECT;
 
+    private static final byte CONTENT_FILE = CONTENT_RAW_DIRECT + 32;
+
+    private static final byte CONTENT_ARRAY = 64;
+
+    static final byte CONTENT_NUMBER_ARRAY = CONTENT_NUMBER + CONTENT_ARRAY;
+
+    /**
+     * Set on the type of compressed fields, which start with the id of their
+     * codec and their uncompressed length.
+     */
+    static final byte FLAG_COMPRESSED = (byte) 128;
+
+    private static final int COMPRESSION_HEADER_SIZE = 5;
+
     private static final byte[] TOC_MAGIC = new byte[] { 84, 79, 67 };
 
-    private static final int TOC_SIZE_PER_ENTRY = 5;
+    private static final byte[] TOC_MAGIC_CORRELATED = new byte[] { 84, 79, 73 };
+
+    static final int CORRELATION_ID_SIZE = 4;
+
+    public static final int NO_CORRELATION_ID = 0;
+
+    static final int TOC_SIZE_PER_ENTRY = 5;
 
-    private static final int TOC_HEADER_SIZE = 5;
+    static final int TOC_HEADER_SIZE = 5;
+
+    private static final int SCALAR_SIZE = 8;
 
     // ---------------------------------------------------------------
 
@@ -52,6 +95,26 @@ public class Packet {
 
     private List contents;
 
+    private BufferAllocator allocator;
+
+    private int correlationId = NO_CORRELATION_ID;
+
+    /**
+     * The backing buffers obtained from the allocator, returned on dispose.
+     */
+    private List ownedBuffers = Collections.EMPTY_LIST;
+
+    /**
+     * The temporary files received file fields are mapped from, by position.
+     */
+    private File[] spoolFiles;
+
+    /**
+     * Holds the scalar number fields set on this packet, one slot per
+     * position, so setting them does not allocate a buffer each.
+     */
+    private ByteBuffer scalars;
+
     private Packet() {
 
     }
@@ -59,18 +122,90 @@ public class Packet {
     public Packet(int fieldCount) {
         this.toc = new byte[fieldCount];
         this.contents = new ArrayList(Collections.nCopies(fieldCount, EMPTY));
+        this.allocator = defaultAllocator;
     }
 
     private Packet(AsyncTOCReader tocReader) throws IOException {
+        this.allocator = tocReader.allocator;
         this.parseTOCAndAllocateBuffers(tocReader);
     }
 
+    /**
+     * Creates the header of a streamed packet, its fields are placeholders
+     * knowing only their length.
+     */
+    private static Packet createStreamHeader(AsyncTOCReader tocReader) throws IOException {
+        Packet header = new Packet();
+        header.allocator = tocReader.allocator;
+        ByteBuffer tocData = tocReader.getTOCData();
+        tocData.rewind();
+        int[] lengths = header.parseTOC(tocReader.getFieldCount(), tocReader.isCorrelated(), tocData);
+        header.contents = new ArrayList(lengths.length);
+        for (int i = 0; i < lengths.length; i++) {
+            header.contents.add(new StreamedField(lengths[i]));
+        }
+        return header;
+    }
+
+    /**
+     * Sets the allocator used by packets created from now on.
+     */
+    public static void setDefaultAllocator(BufferAllocator allocator) {
+        defaultAllocator = (allocator == null) ? BufferAllocator.UNPOOLED : allocator;
+    }
+
+    public static BufferAllocator getDefaultAllocator() {
+        return defaultAllocator;
+    }
+
+    /**
+     * Sets the charset {@link #setCharacters(int, CharSequence)} encodes with,
+     * one of UTF-16 (the default, understood by all peers), UTF-8 or
+     * ISO-8859-1. Each field records its charset, so receivers need no
+     * configuration.
+     */
+    public static void setDefaultCharset(Charset charset) {
+        checkCharset(charset);
+        defaultCharset = charset;
+    }
+
+    private static void checkCharset(Charset charset) {
+        if (!TextCodec.UTF_16.equals(charset) && !TextCodec.UTF_8.equals(charset) && !TextCodec.ISO_8859_1.equals(charset)) {
+            throw new IllegalArgumentException("unsupported charset " + charset);
+        }
+    }
+
+    /**
+     * Sets the directory file fields of packets received from now on are
+     * spooled to. Such fields are read into a memory-mapped temporary file
+     * instead of a buffer; <code>null</code> (the default) disables spooling.
+     */
+    public static void setFileSpoolDirectory(File directory) {
+        spoolDirectory = directory;
+    }
+
+    /**
+     * @return the id matching a response to its request on a multiplexed
+     *         connection, {@link #NO_CORRELATION_ID} if there is none
+     */
+    public int getCorrelationId() {
+        return this.correlationId;
+    }
+
+    /**
+     * Packets carrying a correlation id other than {@link #NO_CORRELATION_ID}
+     * are written with an extended TOC header.
+     */
+    public void setCorrelationId(int correlationId) {
+        this.correlationId = correlationId;
+    }
+
     public String toString() {
         StringBuffer res = new StringBuffer("Packet [");
         for (int i = 0; i < this.toc.length; i++) {
             res.append(this.getNameOfContent(i));
             res.append("=");
-            res.append(((ByteBuffer) this.contents.get(i)).limit());
+            res.append(this.getFieldLength(i));
             res.append("b");
             if (i < this.toc.length - 1) {
                 res.append(", ");
@@ -82,25 +217,61 @@ public class Packet {
 
     private String getNameOfContent(int position) {
         byte type = this.toc[position];
+        if ((type & FLAG_COMPRESSED) != 0) {
+            return getNameOfContent((byte) (type & ~FLAG_COMPRESSED)) + "Z";
+        }
+        return getNameOfContent(type);
+    }
+
+    private static String getNameOfContent(byte type) {
         switch (type) {
         case 0:
             return "NUL";
         case CONTENT_NUMBER:
             return "NUM";
+        case CONTENT_NUMBER_ARRAY:
+            return "NUMS";
         case CONTENT_CHAR:
             return "CHAR";
+        case CONTENT_CHAR_LATIN1:
+            return "LATIN1";
+        case CONTENT_CHAR_UTF8:
+            return "UTF8";
         case CONTENT_OBJECT:
             return "OBJ";
+        case CONTENT_OBJECT_SERIALIZED:
+            return "OBJS";
         case CONTENT_RAW:
             return "RAW";
         case CONTENT_RAW_DIRECT:
             return "RAWDIRECT";
+        case CONTENT_FILE:
+            return "FILE";
         default:
             throw new PacketException("invalid content type");
         }
     }
 
+    private void own(ByteBuffer buffer) {
+        if (this.ownedBuffers == Collections.EMPTY_LIST) {
+            this.ownedBuffers = new ArrayList(2);
+        }
+        this.ownedBuffers.add(buffer);
+    }
+
+    /**
+     * Releases the contents of this packet. Buffers the packet has read its
+     * fields into are handed back to its allocator, so neither the packet nor
+     * any buffer obtained from it may be used afterwards.
+     */
     public void dispose() {
+        Iterator buffers = this.ownedBuffers.iterator();
+        while (buffers.hasNext()) {
+            this.allocator.release((ByteBuffer) buffers.next());
+        }
+        this.ownedBuffers = Collections.EMPTY_LIST;
+        this.deleteSpoolFiles();
+        this.scalars = null;
         this.toc = ZERO_TOC;
         this.contents.clear();
         this.contents = Collections.EMPTY_LIST;
@@ -108,25 +279,36 @@ public class Packet {
 
     // ---------------------------------------------------------------
 
-    private ByteBuffer assembleTOC() {
-        int size = TOC_HEADER_SIZE + TOC_SIZE_PER_ENTRY * this.toc.length;
-        ByteBuffer buf = ByteBuffer.allocate(size);
-        buf.put(TOC_MAGIC);
+    private ByteBuffer assembleTOC(int correlationId) {
+        boolean correlated = correlationId != NO_CORRELATION_ID;
+        int size = TOC_HEADER_SIZE + getTOCDataSize(correlated, this.toc.length);
+        ByteBuffer buf = this.allocator.allocate(size, false);
+        buf.put(correlated ? TOC_MAGIC_CORRELATED : TOC_MAGIC);
         buf.putShort((short) this.toc.length);
+        if (correlated) {
+            buf.putInt(correlationId);
+        }
         for (int i = 0; i < this.toc.length; i++) {
             buf.put(this.toc[i]);
-            buf.putInt(((ByteBuffer) this.contents.get(i)).limit());
+            buf.putInt(this.getFieldLength(i));
         }
-        buf.rewind();
+        buf.flip();
         return buf;
     }
 
-    private int[] parseTOC(short fieldCount, ByteBuffer toc) throws IOException {
+    private static int getTOCDataSize(boolean correlated, int fieldCount) {
+        return (correlated ? CORRELATION_ID_SIZE : 0) + fieldCount * TOC_SIZE_PER_ENTRY;
+    }
+
+    private int[] parseTOC(short fieldCount, boolean correlated, ByteBuffer toc) throws IOException {
+        if (correlated) {
+            this.correlationId = toc.getInt();
+        }
         this.toc = new byte[fieldCount];
         int[] lengths = new int[fieldCount];
         for (int i = 0; i < this.toc.length; i++) {
             this.toc[i] = toc.get();
-            lengths[i] = (this.isDirect(i) ? -1 : 1) * toc.getInt();
+            lengths[i] = toc.getInt();
         }
         return lengths;
     }
@@ -135,18 +317,64 @@ public class Packet {
         return (this.toc[i] & FLAG_DIRECT) != 0;
     }
 
-    private static short parseTOCHeader(ByteBuffer header) {
-        assertTOCMagic(header);
-        short fieldCount = header.getShort();
-        return fieldCount;
+    private boolean isSpooled(int i) {
+        return this.toc[i] == CONTENT_FILE && spoolDirectory != null;
+    }
+
+    public int getFieldCount() {
+        return this.toc.length;
+    }
+
+    /**
+     * A compressed field is decompressed when it is first read, its length is
+     * the compressed one until then.
+     */
+    public boolean isCompressed(int position) {
+        return (this.toc[position] & FLAG_COMPRESSED) != 0;
+    }
+
+    public int getFieldLength(int position) {
+        Object content = this.contents.get(position);
+        if (content instanceof FileRegion) {
+            return ((FileRegion) content).length;
+        }
+        if (content instanceof StreamedField) {
+            return ((StreamedField) content).length;
+        }
+        return ((ByteBuffer) content).limit();
     }
 
-    private static void assertTOCMagic(ByteBuffer header) {
+    /**
+     * @return true if the TOC announced by the header carries a correlation id
+     */
+    private static boolean parseTOCMagic(ByteBuffer header) {
+        boolean correlated = matchTOCMagic(header, header.position());
+        header.position(header.position() + TOC_MAGIC.length);
+        return correlated;
+    }
+
+    /**
+     * Checks the magic starting at <code>index</code> without moving the
+     * buffer position.
+     * 
+     * @return true if the TOC announced carries a correlation id
+     */
+    static boolean matchTOCMagic(ByteBuffer header, int index) {
+        boolean plain = true;
+        boolean correlated = true;
         for (int i = 0; i < TOC_MAGIC.length; i++) {
-            if (TOC_MAGIC[i] != header.get()) {
-                throw new PacketException("packet header mismatch");
-            }
+            byte magic = header.get(index + i);
+            plain &= TOC_MAGIC[i] == magic;
+            correlated &= TOC_MAGIC_CORRELATED[i] == magic;
+        }
+        if (!plain && !correlated) {
+            throw new PacketException("packet header mismatch");
         }
+        return correlated;
+    }
+
+    static int getTOCSize(boolean correlated, int fieldCount) {
+        return TOC_HEADER_SIZE + getTOCDataSize(correlated, fieldCount);
     }
 
     private void read(ReadableByteChannel src, ByteBuffer buffer) throws IOException {
@@ -166,12 +394,83 @@ public class Packet {
     }
 
     public void setCharacters(int position, CharSequence data) {
-        this.set(position, CONTENT_CHAR, CHARSET.encode(CharBuffer.wrap(data)));
+        this.setCharacters(position, data, defaultCharset);
+    }
+
+    /**
+     * Encodes the text with UTF-16, UTF-8 or ISO-8859-1; text not
+     * representable in ISO-8859-1 is encoded with UTF-8 instead.
+     */
+    public void setCharacters(int position, CharSequence data, Charset charset) {
+        checkCharset(charset);
+        byte type;
+        if (TextCodec.UTF_16.equals(charset)) {
+            charset = TextCodec.UTF_16;
+            type = CONTENT_CHAR;
+        } else if (TextCodec.ISO_8859_1.equals(charset) && TextCodec.maxChar(data) < 0x100) {
+            charset = TextCodec.ISO_8859_1;
+            type = CONTENT_CHAR_LATIN1;
+        } else {
+            charset = TextCodec.UTF_8;
+            type = CONTENT_CHAR_UTF8;
+        }
+        this.set(position, type, TextCodec.encode(data, charset));
+    }
+
+    /**
+     * @return the slot of a scalar field, positioned at 0
+     */
+    private ByteBuffer scalar(int position, int size) {
+        if (this.scalars == null) {
+            this.scalars = ByteBuffer.allocate(SCALAR_SIZE * this.toc.length);
+        }
+        int offset = SCALAR_SIZE * position;
+        this.scalars.limit(offset + size).position(offset);
+        ByteBuffer slot = this.scalars.slice();
+        this.scalars.clear();
+        return slot;
     }
 
     public void setNumber(int position, long data) {
-        ByteBuffer container = ByteBuffer.allocate(8).putLong(data);
-        this.set(position, CONTENT_NUMBER, container);
+        this.set(position, CONTENT_NUMBER, this.scalar(position, 8).putLong(0, data));
+    }
+
+    public void setInt(int position, int data) {
+        this.set(position, CONTENT_NUMBER, this.scalar(position, 4).putInt(0, data));
+    }
+
+    public void setDouble(int position, double data) {
+        this.set(position, CONTENT_NUMBER, this.scalar(position, 8).putDouble(0, data));
+    }
+
+    public void setBoolean(int position, boolean data) {
+        this.set(position, CONTENT_NUMBER, this.scalar(position, 1).put(0, (byte) (data ? 1 : 0)));
+    }
+
+    public void setInts(int position, int[] data) {
+        ByteBuffer container = ByteBuffer.allocate(4 * data.length);
+        container.asIntBuffer().put(data);
+        this.set(position, CONTENT_NUMBER_ARRAY, container);
+    }
+
+    public void setNumbers(int position, long[] data) {
+        ByteBuffer container = ByteBuffer.allocate(8 * data.length);
+        container.asLongBuffer().put(data);
+        this.set(position, CONTENT_NUMBER_ARRAY, container);
+    }
+
+    public void setDoubles(int position, double[] data) {
+        ByteBuffer container = ByteBuffer.allocate(8 * data.length);
+        container.asDoubleBuffer().put(data);
+        this.set(position, CONTENT_NUMBER_ARRAY, container);
+    }
+
+    public void setBooleans(int position, boolean[] data) {
+        ByteBuffer container = ByteBuffer.allocate(data.length);
+        for (int i = 0; i < data.length; i++) {
+            container.put(i, (byte) (data[i] ? 1 : 0));
+        }
+        this.set(position, CONTENT_NUMBER_ARRAY, container);
     }
 
     public void setRaw(int position, byte[] data, boolean directBuffer) {
@@ -182,7 +481,34 @@ public class Packet {
         this.set(position, directBuffer ? CONTENT_RAW_DIRECT : CONTENT_RAW, data);
     }
 
+    /**
+     * Sets a field to a region of a file. The region is sent with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, without
+     * being copied into memory; the receiver sees a raw field it may spool to
+     * a file (see {@link #setFileSpoolDirectory(File)}). The file channel has
+     * to stay open until the packet is written.
+     */
+    public void setFile(int position, FileChannel file, long offset, int length) {
+        this.toc[position] = CONTENT_FILE;
+        this.contents.set(position, new FileRegion(file, offset, length));
+    }
+
+    /**
+     * Objects of classes registered with {@link FieldSerializers} are written
+     * by their serializer into a buffer of the allocator, all others with
+     * Java serialization.
+     */
     public void setObject(int position, Object data) {
+        FieldSerializers.Registration registration = (data == null) ? null : FieldSerializers.forClass(data.getClass());
+        if (registration != null) {
+            ByteBuffer container = this.allocator.allocate(TYPE_ID_SIZE + registration.serializer.getSize(data), false);
+            this.own(container);
+            container.putShort((short) registration.typeId);
+            registration.serializer.write(data, container);
+            container.flip();
+            this.set(position, CONTENT_OBJECT_SERIALIZED, container);
+            return;
+        }
         ByteArrayOutputStream container = new ByteArrayOutputStream(64);
         try {
             ObjectOutputStream oos = new ObjectOutputStream(container);
@@ -194,28 +520,284 @@ public class Packet {
         this.set(position, CONTENT_OBJECT, ByteBuffer.wrap(container.toByteArray()));
     }
 
+    /**
+     * Compresses the text, object, raw and number array fields of at least
+     * <code>threshold</code> bytes; fields which do not get smaller are left
+     * as they are. The compressed data is held in buffers of the allocator.
+     * Receivers decompress a field when they first read it, streamed fields
+     * are handed over compressed.
+     * <p>
+     * Compressing takes time, the packet should be compressed by the thread
+     * building it rather than the one writing it.
+     */
+    public void compress(FieldCodec codec, int threshold) {
+        for (int i = 0; i < this.toc.length; i++) {
+            ByteBuffer container = this.compressField(i, codec, threshold);
+            if (container != null) {
+                this.own(container);
+                this.set(i, (byte) (this.toc[i] | FLAG_COMPRESSED), container);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #compress(FieldCodec, int)}, but leaves this packet as it
+     * is, so it can be shared between threads and written several times.
+     * 
+     * @return a copy holding the compressed fields and sharing the others, or
+     *         this packet if no field gets smaller. Disposing the copy only
+     *         releases its compressed fields.
+     */
+    public Packet compressed(FieldCodec codec, int threshold) {
+        Packet copy = null;
+        for (int i = 0; i < this.toc.length; i++) {
+            ByteBuffer container = this.compressField(i, codec, threshold);
+            if (container == null) {
+                continue;
+            }
+            if (copy == null) {
+                copy = new Packet();
+                copy.toc = this.toc.clone();
+                copy.contents = new ArrayList(this.contents);
+                copy.allocator = this.allocator;
+            }
+            copy.own(container);
+            copy.set(i, (byte) (this.toc[i] | FLAG_COMPRESSED), container);
+        }
+        return (copy == null) ? this : copy;
+    }
+
+    /**
+     * @return the field compressed into a buffer of the allocator, flipped;
+     *         <code>null</code> if it is not compressed
+     */
+    private ByteBuffer compressField(int position, FieldCodec codec, int threshold) {
+        byte type = this.toc[position];
+        Object content = this.contents.get(position);
+        if (type == 0 || type == CONTENT_NUMBER || (type & FLAG_COMPRESSED) != 0 || !(content instanceof ByteBuffer)) {
+            return null;
+        }
+        ByteBuffer data = ((ByteBuffer) content).duplicate();
+        data.position(0);
+        int length = data.limit();
+        if (length < Math.max(threshold, COMPRESSION_HEADER_SIZE + 1)) {
+            return null;
+        }
+        // only worth it if smaller
+        ByteBuffer container = this.allocator.allocate(length - 1, this.isDirect(position));
+        container.put((byte) codec.getId());
+        container.putInt(length);
+        if (!codec.compress(data, container)) {
+            this.allocator.release(container);
+            return null;
+        }
+        container.flip();
+        return container;
+    }
+
+    /**
+     * Replaces a compressed field by its data.
+     */
+    private void decompress(int position) {
+        byte type = this.toc[position];
+        if ((type & FLAG_COMPRESSED) == 0 || !(this.contents.get(position) instanceof ByteBuffer)) {
+            return;
+        }
+        ByteBuffer container = ((ByteBuffer) this.contents.get(position)).duplicate();
+        container.position(0);
+        if (container.remaining() < COMPRESSION_HEADER_SIZE) {
+            throw new PacketException("corrupt compressed field");
+        }
+        FieldCodec codec = FieldCodecs.forId(container.get());
+        int length = container.getInt();
+        if (length < 0) {
+            throw new PacketException("corrupt compressed field");
+        }
+        ByteBuffer data = this.allocator.allocate(length, this.isDirect(position));
+        this.own(data);
+        codec.decompress(container, data);
+        if (data.hasRemaining()) {
+            throw new PacketException("corrupt compressed field");
+        }
+        data.flip();
+        this.set(position, (byte) (type & ~FLAG_COMPRESSED), data);
+    }
+
     // ---------------------------------------------------------------
 
     private ByteBuffer get(int position, byte type) {
-        assert (this.toc[position] & type) > 0;
-        ByteBuffer container = (ByteBuffer) this.contents.get(position);
+        ByteBuffer container = this.field(position, type);
         container.rewind();
         return container;
     }
 
+    /**
+     * @return the field buffer as is, to be read with absolute gets only
+     */
+    private ByteBuffer field(int position, byte type) {
+        this.decompress(position);
+        assert (this.toc[position] & type) > 0;
+        Object content = this.contents.get(position);
+        if (content instanceof FileRegion) {
+            return ((FileRegion) content).map();
+        }
+        if (content instanceof StreamedField) {
+            throw new PacketException("field contents have been streamed");
+        }
+        return (ByteBuffer) content;
+    }
+
+    /**
+     * @return the field buffer of a number of the given size
+     */
+    private ByteBuffer number(int position, int size) {
+        ByteBuffer container = this.field(position, CONTENT_NUMBER);
+        checkNumberLength(container.limit(), size);
+        return container;
+    }
+
+    /**
+     * @return the field buffer of an array of numbers of the given size
+     */
+    private ByteBuffer array(int position, int size) {
+        ByteBuffer container = this.field(position, CONTENT_NUMBER_ARRAY);
+        checkArrayLength(container.limit(), size);
+        return container;
+    }
+
+    /**
+     * Number fields do not record their type, reading one with another width
+     * than it was written with is caught by its length.
+     */
+    static void checkNumberLength(int length, int size) {
+        if (length != size) {
+            throw new PacketException((length < size) ? "field too short" : "field too long");
+        }
+    }
+
+    static void checkArrayLength(int length, int size) {
+        if (length % size != 0) {
+            throw new PacketException("field length not a multiple of " + size);
+        }
+    }
+
+    static Charset getCharset(byte type) {
+        if ((type & FLAG_CHAR_UTF8) != 0) {
+            return TextCodec.UTF_8;
+        }
+        return ((type & FLAG_CHAR_LATIN1) != 0) ? TextCodec.ISO_8859_1 : TextCodec.UTF_16;
+    }
+
     public CharSequence getCharacters(int position) {
-        return CHARSET.decode(this.get(position, CONTENT_CHAR));
+        ByteBuffer container = this.field(position, CONTENT_CHAR);
+        Charset charset = getCharset(this.toc[position]);
+        CharBuffer text = CharBuffer.allocate(TextCodec.maxChars(container.limit(), charset));
+        TextCodec.decode(container, 0, container.limit(), charset, text);
+        text.flip();
+        return text;
+    }
+
+    /**
+     * Decodes the text into the buffer.
+     * 
+     * @throws java.nio.BufferOverflowException
+     *             if the buffer can not hold the text
+     */
+    public void getCharacters(int position, CharBuffer text) {
+        ByteBuffer container = this.field(position, CONTENT_CHAR);
+        TextCodec.decode(container, 0, container.limit(), getCharset(this.toc[position]), text);
+    }
+
+    /**
+     * Appends the text to the buffer.
+     */
+    public void getCharacters(int position, StringBuffer text) {
+        ByteBuffer container = this.field(position, CONTENT_CHAR);
+        TextCodec.decode(container, 0, container.limit(), getCharset(this.toc[position]), text);
     }
 
     public long getNumber(int position) {
-        return this.get(position, CONTENT_NUMBER).getLong();
+        return this.number(position, 8).getLong(0);
     }
 
+    public int getInt(int position) {
+        return this.number(position, 4).getInt(0);
+    }
+
+    public double getDouble(int position) {
+        return this.number(position, 8).getDouble(0);
+    }
+
+    public boolean getBoolean(int position) {
+        return this.number(position, 1).get(0) != 0;
+    }
+
+    public int[] getInts(int position) {
+        ByteBuffer container = this.array(position, 4);
+        int[] data = new int[container.limit() / 4];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = container.getInt(4 * i);
+        }
+        return data;
+    }
+
+    public long[] getNumbers(int position) {
+        ByteBuffer container = this.array(position, 8);
+        long[] data = new long[container.limit() / 8];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = container.getLong(8 * i);
+        }
+        return data;
+    }
+
+    public double[] getDoubles(int position) {
+        ByteBuffer container = this.array(position, 8);
+        double[] data = new double[container.limit() / 8];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = container.getDouble(8 * i);
+        }
+        return data;
+    }
+
+    public boolean[] getBooleans(int position) {
+        ByteBuffer container = this.array(position, 1);
+        boolean[] data = new boolean[container.limit()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = container.get(i) != 0;
+        }
+        return data;
+    }
+
+    /**
+     * File fields set locally are mapped read-only, received ones are returned
+     * as read (or as mapped from their spool file).
+     */
     public ByteBuffer getRaw(int position) {
         return this.get(position, CONTENT_RAW);
     }
 
+    /**
+     * @return the temporary file a received file field has been spooled to,
+     *         <code>null</code> if the field is held in memory. The file is
+     *         deleted when the packet is disposed.
+     */
+    public File getSpoolFile(int position) {
+        return (this.spoolFiles == null) ? null : this.spoolFiles[position];
+    }
+
     public Object getObject(int position) throws ClassNotFoundException {
+        this.decompress(position);
+        if (this.toc[position] == CONTENT_OBJECT_SERIALIZED) {
+            ByteBuffer container = this.field(position, CONTENT_OBJECT);
+            int typeId = container.getShort(0);
+            FieldSerializer serializer = FieldSerializers.forTypeId(typeId);
+            if (serializer == null) {
+                throw new PacketException("no serializer for type " + typeId);
+            }
+            ByteBuffer source = container.duplicate();
+            source.position(TYPE_ID_SIZE);
+            return serializer.read(source);
+        }
         try {
             final InputStream src = ByteBufferInputStream.wrap(this.get(position, CONTENT_OBJECT));
             return new ObjectInputStream(src).readObject();
@@ -238,14 +820,17 @@ public class Packet {
             this.buf = source;
         }
 
-        public synchronized int read() throws IOException {
+        public int read() throws IOException {
             if (!buf.hasRemaining()) {
                 return -1;
             }
-            return buf.get();
+            return buf.get() & 0xff;
         }
 
-        public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            if (len > 0 && !buf.hasRemaining()) {
+                return -1;
+            }
             int bytesRead = Math.min(len, buf.remaining());
             buf.get(bytes, off, bytesRead);
             return bytesRead;
@@ -253,13 +838,31 @@ public class Packet {
     }
 
     public void write(WritableByteChannel channel) throws IOException {
-        ByteBuffer tocBuffer = this.assembleTOC();
-        while (tocBuffer.hasRemaining()) {
-            channel.write(tocBuffer);
+        this.write(channel, this.correlationId);
+    }
+
+    /**
+     * Writes the packet tagged with the given correlation id instead of its
+     * own, which is left unchanged; the same packet may thus be in flight on
+     * several multiplexed requests at once.
+     */
+    public void write(WritableByteChannel channel, int correlationId) throws IOException {
+        ByteBuffer tocBuffer = this.assembleTOC(correlationId);
+        try {
+            while (tocBuffer.hasRemaining()) {
+                channel.write(tocBuffer);
+            }
+        } finally {
+            this.allocator.release(tocBuffer);
         }
         Iterator fields = this.contents.iterator();
         while (fields.hasNext()) {
-            ByteBuffer fieldBuffer = (ByteBuffer) fields.next();
+            Object field = fields.next();
+            if (field instanceof FileRegion) {
+                ((FileRegion) field).transferTo(channel);
+                continue;
+            }
+            ByteBuffer fieldBuffer = (ByteBuffer) field;
             fieldBuffer.rewind();
             while (fieldBuffer.hasRemaining()) {
                 channel.write(fieldBuffer);
@@ -267,9 +870,34 @@ public class Packet {
         }
     }
 
+    /**
+     * Copies the packet in its wire format into the buffer, see
+     * {@link #getWireSize()} for the room it needs.
+     * 
+     * @throws java.nio.BufferOverflowException
+     *             if the buffer can not hold the packet
+     */
+    public void write(ByteBuffer target) {
+        ByteBuffer tocBuffer = this.assembleTOC(this.correlationId);
+        try {
+            target.put(tocBuffer);
+        } finally {
+            this.allocator.release(tocBuffer);
+        }
+        Iterator fields = this.contents.iterator();
+        while (fields.hasNext()) {
+            Object field = fields.next();
+            ByteBuffer fieldBuffer = (field instanceof FileRegion) ? ((FileRegion) field).map() : ((ByteBuffer) field).duplicate();
+            fieldBuffer.rewind();
+            target.put(fieldBuffer);
+        }
+    }
+
     public Packet(ByteBuffer packet) throws IOException {
-        short numFields = parseTOCHeader(packet);
-        int[] lengths = this.parseTOC(numFields, packet);
+        this.allocator = defaultAllocator;
+        boolean correlated = parseTOCMagic(packet);
+        short numFields = packet.getShort();
+        int[] lengths = this.parseTOC(numFields, correlated, packet);
         this.contents = new ArrayList(numFields);
         for (int i = 0; i < numFields; i++) {
             int fieldLength = lengths[i];
@@ -281,23 +909,29 @@ public class Packet {
     }
 
     public Packet(ReadableByteChannel src) throws IOException {
-        short numFields = this.readAndParseTOCHeader(src);
-        int[] lengths = this.readAndParseTOC(numFields, src);
+        this.allocator = defaultAllocator;
+        int[] lengths = this.readAndParseTOC(src);
         this.readFields(lengths, src);
     }
 
-    private short readAndParseTOCHeader(ReadableByteChannel src) throws IOException {
-        ByteBuffer header = ByteBuffer.allocate(TOC_HEADER_SIZE);
-        this.read(src, header);
-        header.rewind();
-        return parseTOCHeader(header);
-    }
-
-    private int[] readAndParseTOC(short numFields, ReadableByteChannel src) throws IOException {
-        ByteBuffer tocData = ByteBuffer.allocate(numFields * TOC_SIZE_PER_ENTRY);
-        this.read(src, tocData);
-        tocData.rewind();
-        return this.parseTOC(numFields, tocData);
+    private int[] readAndParseTOC(ReadableByteChannel src) throws IOException {
+        ByteBuffer header = this.allocator.allocate(TOC_HEADER_SIZE, false);
+        try {
+            this.read(src, header);
+            header.rewind();
+            boolean correlated = parseTOCMagic(header);
+            short numFields = header.getShort();
+            ByteBuffer tocData = this.allocator.allocate(getTOCDataSize(correlated, numFields), false);
+            try {
+                this.read(src, tocData);
+                tocData.rewind();
+                return this.parseTOC(numFields, correlated, tocData);
+            } finally {
+                this.allocator.release(tocData);
+            }
+        } finally {
+            this.allocator.release(header);
+        }
     }
 
     private void readFields(int[] lengths, ReadableByteChannel src) throws IOException {
@@ -314,15 +948,6 @@ public class Packet {
      *            the source channel
      * @return true if all fields are fully read
      */
-    private boolean scatterReadFields(ScatteringByteChannel src) throws IOException {
-        ByteBuffer[] buffers = getBuffers(false, false);
-        long cnt = src.read(buffers);
-        if (cnt == -1) {
-            src.close();
-        }
-        return hasNoRemaining(buffers);
-    }
-
     private static boolean hasNoRemaining(ByteBuffer[] buffers) {
         for (int i = 0; i < buffers.length; i++) {
             if (buffers[i].hasRemaining()) {
@@ -332,18 +957,45 @@ public class Packet {
         return true;
     }
 
-    private ByteBuffer[] getBuffers(boolean rewind, boolean includeTOC) {
+    /**
+     * @return the number of bytes this packet takes on the wire
+     */
+    public int getWireSize() {
+        return this.getWireSize(this.correlationId);
+    }
+
+    /**
+     * @return the number of bytes this packet takes on the wire when written
+     *         with the given correlation id
+     */
+    public int getWireSize(int correlationId) {
+        int size = TOC_HEADER_SIZE + getTOCDataSize(correlationId != NO_CORRELATION_ID, this.toc.length);
+        for (int i = 0; i < this.toc.length; i++) {
+            size += this.getFieldLength(i);
+        }
+        return size;
+    }
+
+    private ByteBuffer[] getBuffers(boolean rewind, boolean includeTOC, int correlationId) {
 
         ByteBuffer[] fields = new ByteBuffer[(includeTOC ? 1 + this.toc.length : this.toc.length)];
 
         int i = 0;
         if (includeTOC) {
-            fields[i++] = this.assembleTOC();
+            fields[i++] = this.assembleTOC(correlationId);
         }
 
         for (int j = 0; j < this.toc.length; i++, j++) {
-            ByteBuffer buffer = (ByteBuffer) this.contents.get(j);
+            Object content = this.contents.get(j);
+            if (content instanceof FileRegion) {
+                // transferred separately, see WriteCursor
+                fields[i] = EMPTY;
+                continue;
+            }
+            ByteBuffer buffer = (ByteBuffer) content;
             if (rewind) {
+                // a view of its own, the packet may be queued more than once
+                buffer = buffer.duplicate();
                 buffer.rewind();
             }
             fields[i] = buffer;
@@ -354,35 +1006,42 @@ public class Packet {
     private void parseTOCAndAllocateBuffers(AsyncTOCReader tocReader) throws IOException {
         ByteBuffer tocData = tocReader.getTOCData();
         tocData.rewind();
-        int[] lengths = this.parseTOC(tocReader.getFieldCount(), tocData);
+        int[] lengths = this.parseTOC(tocReader.getFieldCount(), tocReader.isCorrelated(), tocData);
         this.allocateBuffers(lengths);
     }
 
-    private void allocateBuffers(final int[] lengths) {
+    /**
+     * Allocates the field buffers, consecutive fields of the same kind (heap or
+     * direct) share one backing buffer. Spooled file fields get a mapped
+     * temporary file each.
+     */
+    private void allocateBuffers(final int[] lengths) throws IOException {
         this.contents = new ArrayList(lengths.length);
+        this.ownedBuffers = new ArrayList(2);
 
         int i = 0;
-        int mergedBufferCount;
-        long mergedBufferSize;
-
         while (i < lengths.length) {
-            mergedBufferCount = 1;
-            mergedBufferSize = Math.abs(lengths[i]);
+            if (this.isSpooled(i)) {
+                this.contents.add(this.spool(i, lengths[i]));
+                i++;
+                continue;
+            }
+            final boolean direct = this.isDirect(i);
+            long mergedBufferSize = lengths[i];
 
             int j = i + 1;
-            while (j < lengths.length && lengths[i] * lengths[j] >= 0 && mergedBufferSize + Math.abs(lengths[j]) < Integer.MAX_VALUE) {
-                mergedBufferCount++;
-                mergedBufferSize += Math.abs(lengths[j]);
+            while (j < lengths.length && this.isDirect(j) == direct && !this.isSpooled(j) && mergedBufferSize + lengths[j] < Integer.MAX_VALUE) {
+                mergedBufferSize += lengths[j];
                 j++;
             }
 
-            final int bufferSize = (int) mergedBufferSize;
-            ByteBuffer backingBuffer = (lengths[i] <= 0) ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+            ByteBuffer backingBuffer = this.allocator.allocate((int) mergedBufferSize, direct);
+            this.ownedBuffers.add(backingBuffer);
 
-            if (mergedBufferCount > 1) {
+            if (j - i > 1) {
                 int limit = 0;
-                for (int k = 0; k < mergedBufferCount; k++) {
-                    limit += lengths[i + k];
+                for (int k = i; k < j; k++) {
+                    limit += lengths[k];
                     backingBuffer.limit(limit);
                     this.contents.add(backingBuffer.slice());
                     backingBuffer.position(limit);
@@ -390,56 +1049,305 @@ public class Packet {
             } else {
                 this.contents.add(backingBuffer);
             }
-            i += j;
+            i = j;
         }
     }
 
+    private ByteBuffer spool(int position, int length) throws IOException {
+        if (this.spoolFiles == null) {
+            this.spoolFiles = new File[this.toc.length];
+        }
+        File file = File.createTempFile("uranion", ".field", spoolDirectory);
+        this.spoolFiles[position] = file;
+        RandomAccessFile spool = new RandomAccessFile(file, "rw");
+        try {
+            spool.setLength(length);
+            return spool.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            spool.close();
+        }
+    }
+
+    private void deleteSpoolFiles() {
+        if (this.spoolFiles != null) {
+            for (int i = 0; i < this.spoolFiles.length; i++) {
+                if (this.spoolFiles[i] != null && !this.spoolFiles[i].delete()) {
+                    // still mapped on some platforms
+                    this.spoolFiles[i].deleteOnExit();
+                }
+            }
+            this.spoolFiles = null;
+        }
+    }
+
+    // ---------------------------------------------------------------
+
+    private static final class FileRegion {
+
+        private final FileChannel channel;
+
+        private final long position;
+
+        private final int length;
+
+        public FileRegion(FileChannel channel, long position, int length) {
+            this.channel = channel;
+            this.position = position;
+            this.length = length;
+        }
+
+        public ByteBuffer map() {
+            try {
+                return this.channel.map(FileChannel.MapMode.READ_ONLY, this.position, this.length);
+            } catch (IOException e) {
+                throw new PacketException(e);
+            }
+        }
+
+        /**
+         * @return the number of bytes transferred, starting at the given
+         *         offset into the region
+         */
+        public long transferTo(long offset, WritableByteChannel target) throws IOException {
+            long count = this.channel.transferTo(this.position + offset, this.length - offset, target);
+            if (count == 0 && this.channel.size() < this.position + this.length) {
+                throw new PacketException("file region truncated");
+            }
+            return count;
+        }
+
+        public void transferTo(WritableByteChannel target) throws IOException {
+            long offset = 0;
+            while (offset < this.length) {
+                offset += this.transferTo(offset, target);
+            }
+        }
+
+    } // inner-class
+
+    private static final class StreamedField {
+
+        private final int length;
+
+        public StreamedField(int length) {
+            this.length = length;
+        }
+
+    } // inner-class
+
+    /**
+     * The buffers of the packets being written by a transfer. In-memory data
+     * goes out with gathering writes, file fields with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+     */
+    private static final class WriteCursor {
+
+        private ByteBuffer[] buffers = new ByteBuffer[0];
+
+        private FileRegion[] regions;
+
+        private int count;
+
+        private int offset;
+
+        private long transferred;
+
+        private long written;
+
+        public int size() {
+            return this.count;
+        }
+
+        /**
+         * @return the number of bytes written so far
+         */
+        public long getWritten() {
+            return this.written;
+        }
+
+        /**
+         * @return the index of the first buffer not completely written
+         */
+        public int getOffset() {
+            return this.offset;
+        }
+
+        public ByteBuffer get(int index) {
+            return this.buffers[index];
+        }
+
+        public void add(Packet packet, int correlationId) {
+            ByteBuffer[] packetBuffers = packet.getBuffers(true, true, correlationId);
+            if (this.count + packetBuffers.length > this.buffers.length) {
+                this.grow(this.count + packetBuffers.length);
+            }
+            System.arraycopy(packetBuffers, 0, this.buffers, this.count, packetBuffers.length);
+            for (int i = 0; i < packet.toc.length; i++) {
+                Object content = packet.contents.get(i);
+                if (content instanceof FileRegion) {
+                    if (this.regions == null) {
+                        this.regions = new FileRegion[this.buffers.length];
+                    }
+                    this.regions[this.count + 1 + i] = (FileRegion) content;
+                }
+            }
+            this.count += packetBuffers.length;
+        }
+
+        private void grow(int minimum) {
+            int capacity = Math.max(minimum, 2 * this.buffers.length);
+            ByteBuffer[] buffers = new ByteBuffer[capacity];
+            System.arraycopy(this.buffers, 0, buffers, 0, this.count);
+            this.buffers = buffers;
+            if (this.regions != null) {
+                FileRegion[] regions = new FileRegion[capacity];
+                System.arraycopy(this.regions, 0, regions, 0, this.count);
+                this.regions = regions;
+            }
+        }
+
+        /**
+         * Writes as much as the channel takes without blocking.
+         * 
+         * @return true if everything has been written
+         */
+        public boolean write(GatheringByteChannel channel) throws IOException {
+            while (this.offset < this.count) {
+                if (this.regions != null && this.regions[this.offset] != null) {
+                    FileRegion region = this.regions[this.offset];
+                    long cnt = region.transferTo(this.transferred, channel);
+                    this.transferred += cnt;
+                    this.written += cnt;
+                    if (this.transferred < region.length) {
+                        return false;
+                    }
+                    this.transferred = 0;
+                    this.offset++;
+                } else {
+                    int end = this.offset + 1;
+                    while (end < this.count && (this.regions == null || this.regions[end] == null)) {
+                        end++;
+                    }
+                    this.written += channel.write(this.buffers, this.offset, end - this.offset);
+                    while (this.offset < end && !this.buffers[this.offset].hasRemaining()) {
+                        this.offset++;
+                    }
+                    if (this.offset < end) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+    } // inner-class
+
     // ---------------------------------------------------------------
 
+    /**
+     * Stops an asynchronous transfer before it completes, e.g. when its
+     * connection is closed. The buffers it holds are released, a packet being
+     * read is disposed; packets being written stay with their owner.
+     *
+     * @param transfer
+     *            a phase handed to a {@link TransferSlot}, may be
+     *            <code>null</code>
+     */
+    public static void abortTransfer(Runnable transfer) {
+        if (transfer instanceof PacketTransfer) {
+            ((PacketTransfer) transfer).abort();
+        }
+    }
+
     private static abstract class PacketTransfer implements Runnable {
 
         private PacketCallback callback;
 
         private SelectionKey sk;
 
-        public PacketTransfer(PacketCallback callback, SelectionKey sk) {
+        private TransferSlot slot;
+
+        public PacketTransfer(PacketCallback callback, SelectionKey sk, TransferSlot slot) {
             super();
             this.callback = callback;
             this.sk = sk;
+            this.slot = slot;
         }
 
         protected PacketTransfer(PacketTransfer predecessor) {
-            this(predecessor.callback, predecessor.sk);
+            this(predecessor.callback, predecessor.sk, predecessor.slot);
         }
 
         protected SocketChannel getClient() {
             return (SocketChannel) this.sk.channel();
         }
 
+        /**
+         * @return the channel written to, usually the client
+         */
+        protected GatheringByteChannel getSink() {
+            return (GatheringByteChannel) this.sk.channel();
+        }
+
+        protected PacketCallback getCallback() {
+            return this.callback;
+        }
+
         protected void setNextReadingPhase(PacketTransfer handler) {
-            this.sk.attach(handler);
+            if (this.slot != null) {
+                this.slot.setTransfer(handler);
+            } else {
+                this.sk.attach(handler);
+            }
             if (sk.isReadable()) {
                 handler.run();
             }
         }
 
+        /**
+         * Reports the bytes moved by a single read or write to the slot.
+         */
+        protected void transferred(long count) {
+            if (this.slot != null && count > 0) {
+                this.slot.transferred(count);
+            }
+        }
+
+        /**
+         * Stops the transfer, releasing the buffers it holds.
+         */
+        protected void abort() {
+            this.dispose();
+        }
+
         protected void transferComplete(Packet packet) {
-            this.sk.attach(null);
-            this.sk.interestOps(0);
+            if (this.slot != null) {
+                this.slot.setTransfer(null);
+            } else {
+                this.sk.attach(null);
+                this.sk.interestOps(0);
+            }
             if (this.callback != null) {
                 this.callback.handlePacketCallback(packet);
                 this.callback = null;
             }
         }
 
-        public void read(ByteBuffer buffer) {
+        /**
+         * @return the number of bytes read, <code>-1</code> if the channel has
+         *         been closed
+         */
+        public int read(ByteBuffer buffer) {
             try {
                 int cnt = this.getClient().read(buffer);
                 if (cnt == -1) {
                     this.sk.channel().close();
                 }
+                this.transferred(cnt);
+                return cnt;
             } catch (IOException e) {
                 handleException(e);
+                return -1;
             }
         }
 
@@ -455,26 +1363,52 @@ public class Packet {
         {
             this.sk = null;
             this.callback = null;
+            this.slot = null;
         }
 
     } // inner-class
 
     public final static class AsyncTOCReader extends PacketTransfer {
 
-        private ByteBuffer header = ByteBuffer.allocate(TOC_HEADER_SIZE);
+        private BufferAllocator allocator;
+
+        private ByteBuffer header;
 
         private ByteBuffer tocData = null;
 
         private short fieldCount;
 
+        private boolean correlated;
+
+        private PacketStreamCallback stream;
+
         public AsyncTOCReader(PacketCallback callback, SelectionKey sk) {
-            super(callback, sk);
+            this(callback, sk, getDefaultAllocator(), null);
+        }
+
+        public AsyncTOCReader(PacketCallback callback, SelectionKey sk, BufferAllocator allocator, TransferSlot slot) {
+            super(callback, sk, slot);
+            this.allocator = allocator;
+            this.header = allocator.allocate(TOC_HEADER_SIZE, false);
+        }
+
+        /**
+         * Reads the TOC and streams the fields of the packet to the callback
+         * instead of buffering them.
+         */
+        public AsyncTOCReader(PacketStreamCallback stream, SelectionKey sk, BufferAllocator allocator, TransferSlot slot) {
+            this((PacketCallback) null, sk, allocator, slot);
+            this.stream = stream;
         }
 
         public short getFieldCount() {
             return fieldCount;
         }
 
+        public boolean isCorrelated() {
+            return correlated;
+        }
+
         public ByteBuffer getTOCData() {
             return tocData;
         }
@@ -486,13 +1420,21 @@ public class Packet {
             if (!header.hasRemaining()) {
                 if (tocData == null) {
                     header.rewind();
-                    this.fieldCount = parseTOCHeader(header);
-                    tocData = ByteBuffer.allocate(fieldCount * TOC_SIZE_PER_ENTRY);
+                    this.correlated = parseTOCMagic(header);
+                    this.fieldCount = header.getShort();
+                    tocData = this.allocator.allocate(getTOCDataSize(correlated, fieldCount), false);
                 }
                 read(tocData);
                 if (!tocData.hasRemaining()) {
                     try {
-                        AsyncContentReader successor = new AsyncContentReader(this);
+                        PacketTransfer successor;
+                        if (this.stream != null) {
+                            Packet streamHeader = createStreamHeader(this);
+                            this.stream.handleHeader(streamHeader);
+                            successor = new AsyncStreamReader(this, streamHeader, this.stream);
+                        } else {
+                            successor = new AsyncContentReader(this);
+                        }
                         this.setNextReadingPhase(successor);
                         this.dispose();
                     } catch (IOException e) {
@@ -504,8 +1446,15 @@ public class Packet {
 
         protected void dispose() {
             super.dispose();
-            this.header = null;
-            this.tocData = null;
+            this.stream = null;
+            if (this.header != null) {
+                this.allocator.release(this.header);
+                this.header = null;
+            }
+            if (this.tocData != null) {
+                this.allocator.release(this.tocData);
+                this.tocData = null;
+            }
         }
 
     } // inner-class
@@ -514,15 +1463,23 @@ public class Packet {
 
         private Packet packet;
 
+        private ByteBuffer[] buffers;
+
         public AsyncContentReader(AsyncTOCReader tocReader) throws IOException {
             super(tocReader);
             this.packet = new Packet(tocReader);
+            this.buffers = this.packet.getBuffers(false, false, NO_CORRELATION_ID);
         }
 
         public void run() {
             try {
-                boolean readCompleted = this.packet.scatterReadFields(this.getClient());
-                if (readCompleted) {
+                SocketChannel client = this.getClient();
+                long cnt = client.read(this.buffers);
+                if (cnt == -1) {
+                    client.close();
+                }
+                this.transferred(cnt);
+                if (hasNoRemaining(this.buffers)) {
                     this.transferComplete(this.packet);
                     this.dispose();
                 }
@@ -531,9 +1488,87 @@ public class Packet {
             }
         }
 
+        protected void abort() {
+            if (this.packet != null) {
+                this.packet.dispose();
+            }
+            this.dispose();
+        }
+
         protected void dispose() {
             super.dispose();
             this.packet = null;
+            this.buffers = null;
+        }
+
+    }// inner-class
+
+    /**
+     * Reads the fields of a packet in chunks, each chunk holds data of a
+     * single field. Memory use is bounded by the chunk buffers the callback
+     * hands out.
+     */
+    public final static class AsyncStreamReader extends PacketTransfer {
+
+        private Packet header;
+
+        private PacketStreamCallback stream;
+
+        private int position;
+
+        private long offset;
+
+        private ByteBuffer chunk;
+
+        private long chunkOffset;
+
+        public AsyncStreamReader(AsyncTOCReader tocReader, Packet header, PacketStreamCallback stream) {
+            super(tocReader);
+            this.header = header;
+            this.stream = stream;
+        }
+
+        public void run() {
+            while (this.position < this.header.getFieldCount()) {
+                int length = this.header.getFieldLength(this.position);
+                if (this.offset == length) {
+                    this.position++;
+                    this.offset = 0;
+                    continue;
+                }
+                if (this.chunk == null) {
+                    this.chunk = this.stream.acquireChunk();
+                    if (this.chunk == null) {
+                        return;
+                    }
+                    this.chunk.clear();
+                    this.chunk.limit((int) Math.min(this.chunk.capacity(), length - this.offset));
+                    this.chunkOffset = this.offset;
+                }
+                int cnt = this.read(this.chunk);
+                if (cnt <= 0) {
+                    return;
+                }
+                this.offset += cnt;
+                if (!this.chunk.hasRemaining()) {
+                    ByteBuffer full = this.chunk;
+                    this.chunk = null;
+                    full.flip();
+                    this.stream.handleChunk(this.header, this.position, this.chunkOffset, full);
+                }
+            }
+            Packet completed = this.header;
+            PacketStreamCallback callback = this.stream;
+            this.transferComplete(completed);
+            this.dispose();
+            callback.handleEnd(completed);
+        }
+
+        protected void dispose() {
+            super.dispose();
+            this.header = null;
+            this.stream = null;
+            this.chunk = null;
         }
 
     }// inner-class
@@ -542,18 +1577,32 @@ public class Packet {
 
         private Packet packet;
 
-        private ByteBuffer[] data;
+        private WriteCursor data = new WriteCursor();
 
         public AsyncWriter(Packet packet, PacketCallback callback, SelectionKey sk) {
-            super(callback, sk);
+            this(packet, callback, sk, null);
+        }
+
+        public AsyncWriter(Packet packet, PacketCallback callback, SelectionKey sk, TransferSlot slot) {
+            this(packet, packet.correlationId, callback, sk, slot);
+        }
+
+        /**
+         * Writes the packet tagged with the given correlation id, see
+         * {@link Packet#write(WritableByteChannel, int)}.
+         */
+        public AsyncWriter(Packet packet, int correlationId, PacketCallback callback, SelectionKey sk, TransferSlot slot) {
+            super(callback, sk, slot);
             this.packet = packet;
-            this.data = this.packet.getBuffers(true, true);
+            this.data.add(packet, correlationId);
         }
 
         public void run() {
             try {
-                this.getClient().write(this.data);
-                if (hasNoRemaining(this.data)) {
+                long written = this.data.getWritten();
+                boolean complete = this.data.write(this.getSink());
+                this.transferred(this.data.getWritten() - written);
+                if (complete) {
                     this.transferComplete(this.packet);
                     this.dispose();
                 }
@@ -564,10 +1613,117 @@ public class Packet {
 
         protected void dispose() {
             super.dispose();
+            if (this.data != null) {
+                // the assembled TOC, the fields belong to the packet
+                this.packet.allocator.release(this.data.get(0));
+            }
             this.packet = null;
             this.data = null;
         }
 
     }// inner-class
 
-}
\ No newline at end of file
+    /**
+     * Writes several packets with as few gathering writes as possible. Packets
+     * are added until the buffer or byte limit of the batch is reached, the
+     * callback is invoked for each of them once it is fully written.
+     */
+    public final static class AsyncGatheringWriter extends PacketTransfer {
+
+        private int maxBuffers;
+
+        private long maxBytes;
+
+        private List packets = new ArrayList();
+
+        private WriteCursor data = new WriteCursor();
+
+        private int[] ends = new int[4];
+
+        private long byteCount;
+
+        private int completed;
+
+        public AsyncGatheringWriter(PacketCallback callback, SelectionKey sk, TransferSlot slot, int maxBuffers, long maxBytes) {
+            super(callback, sk, slot);
+            this.maxBuffers = maxBuffers;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Adds a packet to the batch, the first one is always accepted.
+         * 
+         * @return false if the packet would exceed the limits of the batch
+         */
+        public boolean add(Packet packet) {
+            return this.add(packet, packet.correlationId);
+        }
+
+        /**
+         * Adds a packet tagged with the given correlation id, see
+         * {@link Packet#write(WritableByteChannel, int)}.
+         * 
+         * @return false if the packet would exceed the limits of the batch
+         */
+        public boolean add(Packet packet, int correlationId) {
+            int count = 1 + packet.toc.length;
+            int size = packet.getWireSize(correlationId);
+            if (!this.packets.isEmpty() && (this.data.size() + count > this.maxBuffers || this.byteCount + size > this.maxBytes)) {
+                return false;
+            }
+            if (this.packets.size() == this.ends.length) {
+                int[] ends = new int[2 * this.ends.length];
+                System.arraycopy(this.ends, 0, ends, 0, this.ends.length);
+                this.ends = ends;
+            }
+            this.data.add(packet, correlationId);
+            this.byteCount += size;
+            this.ends[this.packets.size()] = this.data.size();
+            this.packets.add(packet);
+            return true;
+        }
+
+        public void run() {
+            try {
+                long written = this.data.getWritten();
+                this.data.write(this.getSink());
+                this.transferred(this.data.getWritten() - written);
+                while (this.completed < this.packets.size() && this.ends[this.completed] <= this.data.getOffset()) {
+                    Packet packet = this.complete();
+                    if (this.completed == this.packets.size()) {
+                        this.transferComplete(packet);
+                        this.dispose();
+                        return;
+                    } else if (this.getCallback() != null) {
+                        this.getCallback().handlePacketCallback(packet);
+                    }
+                }
+            } catch (IOException e) {
+                this.handleException(e);
+            }
+        }
+
+        private Packet complete() {
+            Packet packet = (Packet) this.packets.get(this.completed);
+            int start = (this.completed == 0) ? 0 : this.ends[this.completed - 1];
+            // the assembled TOC, the fields belong to the packet
+            packet.allocator.release(this.data.get(start));
+            this.completed++;
+            return packet;
+        }
+
+        protected void dispose() {
+            super.dispose();
+            if (this.packets != null) {
+                while (this.completed < this.packets.size()) {
+                    this.complete();
+                }
+            }
+            this.packets = null;
+            this.data = null;
+            this.ends = null;
+        }
+
+    }// inner-class
+
+}
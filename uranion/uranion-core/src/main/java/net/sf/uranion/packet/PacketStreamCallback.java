@@ -0,0 +1,35 @@
+package net.sf.uranion.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives a packet while it is being read: first its TOC, then the contents
+ * of its fields in chunks, finally the end of the packet. All methods are
+ * called by the thread driving the transfer.
+ */
+public interface PacketStreamCallback {
+
+    /**
+     * @param header
+     *            the packet with its TOC only, fields can not be accessed
+     */
+    public void handleHeader(Packet header);
+
+    /**
+     * @return an empty buffer to read the next chunk into, <code>null</code>
+     *         if none is available; reading stalls until the owner of the
+     *         transfer runs it again
+     */
+    public ByteBuffer acquireChunk();
+
+    /**
+     * Hands over a chunk of a field, ready to be read. The buffer belongs to
+     * the callback until it is returned by {@link #acquireChunk()} again.
+     * 
+     * @param offset
+     *            the offset of the chunk within the field
+     */
+    public void handleChunk(Packet header, int position, long offset, ByteBuffer chunk);
+
+    public void handleEnd(Packet header);
+}
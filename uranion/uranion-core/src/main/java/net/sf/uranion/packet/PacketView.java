@@ -0,0 +1,292 @@
+package net.sf.uranion.packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A read-only flyweight over a packet held in a single buffer, in the format
+ * written by {@link Packet#write(java.nio.channels.WritableByteChannel)}.
+ * Fields are read with absolute gets, so reading neither moves the buffer
+ * position nor allocates; a view is meant to be re-pointed at the next packet
+ * with {@link #wrap(ByteBuffer)} instead of creating a new one.
+ * <p>
+ * Array fields are read element-wise or copied into arrays of the caller,
+ * their element count is the field length divided by the element size. Number
+ * fields do not record their width, reading one with a size its length does
+ * not fit throws a {@link PacketException}.
+ */
+public final class PacketView {
+
+    private ByteBuffer buffer;
+
+    private int correlationId;
+
+    private int fieldCount;
+
+    private byte[] types = new byte[8];
+
+    /**
+     * The start of each field in the buffer, followed by the end of the
+     * packet.
+     */
+    private int[] offsets = new int[9];
+
+    /**
+     * Points this view at the packet starting at the position of the buffer.
+     * The buffer is not modified; it must not be changed while the view is in
+     * use.
+     */
+    public PacketView wrap(ByteBuffer packet) {
+        int index = packet.position();
+        if (packet.limit() - index < Packet.TOC_HEADER_SIZE) {
+            throw new PacketException("packet truncated");
+        }
+        boolean correlated = Packet.matchTOCMagic(packet, index);
+        int count = packet.getShort(index + 3);
+        int offset = index + Packet.getTOCSize(correlated, count);
+        if (offset > packet.limit()) {
+            throw new PacketException("packet truncated");
+        }
+        index += Packet.TOC_HEADER_SIZE;
+        if (correlated) {
+            this.correlationId = packet.getInt(index);
+            index += Packet.CORRELATION_ID_SIZE;
+        } else {
+            this.correlationId = Packet.NO_CORRELATION_ID;
+        }
+        if (count > this.types.length) {
+            this.types = new byte[count];
+            this.offsets = new int[count + 1];
+        }
+        for (int i = 0; i < count; i++) {
+            this.types[i] = packet.get(index);
+            this.offsets[i] = offset;
+            offset += packet.getInt(index + 1);
+            index += Packet.TOC_SIZE_PER_ENTRY;
+        }
+        if (offset > packet.limit()) {
+            throw new PacketException("packet truncated");
+        }
+        this.offsets[count] = offset;
+        this.fieldCount = count;
+        this.buffer = packet;
+        return this;
+    }
+
+    /**
+     * Reads one packet from the channel into the buffer and points this view
+     * at it.
+     *
+     * @param buffer
+     *            cleared before reading; has to be large enough for the whole
+     *            packet
+     */
+    public PacketView read(ReadableByteChannel src, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        fill(src, buffer, Packet.TOC_HEADER_SIZE);
+        boolean correlated = Packet.matchTOCMagic(buffer, 0);
+        int tocSize = Packet.getTOCSize(correlated, buffer.getShort(3));
+        fill(src, buffer, tocSize);
+        int size = tocSize;
+        for (int index = tocSize - buffer.getShort(3) * Packet.TOC_SIZE_PER_ENTRY; index < tocSize; index += Packet.TOC_SIZE_PER_ENTRY) {
+            size += buffer.getInt(index + 1);
+        }
+        fill(src, buffer, size);
+        buffer.flip();
+        return this.wrap(buffer);
+    }
+
+    private static void fill(ReadableByteChannel src, ByteBuffer buffer, int size) throws IOException {
+        if (size > buffer.capacity()) {
+            throw new PacketException("packet exceeds buffer");
+        }
+        buffer.limit(size);
+        while (buffer.hasRemaining()) {
+            if (src.read(buffer) < 0) {
+                throw new PacketException("channel closed");
+            }
+        }
+    }
+
+    public ByteBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    public int getCorrelationId() {
+        return this.correlationId;
+    }
+
+    public int getFieldCount() {
+        return this.fieldCount;
+    }
+
+    /**
+     * @return the index of the first byte of the field in the buffer
+     */
+    public int getFieldOffset(int position) {
+        this.checkPosition(position);
+        return this.offsets[position];
+    }
+
+    public int getFieldLength(int position) {
+        this.checkPosition(position);
+        return this.offsets[position + 1] - this.offsets[position];
+    }
+
+    // ---------------------------------------------------------------
+
+    public int getInt(int position) {
+        return this.buffer.getInt(this.scalar(position, 4));
+    }
+
+    public long getNumber(int position) {
+        return this.buffer.getLong(this.scalar(position, 8));
+    }
+
+    public double getDouble(int position) {
+        return this.buffer.getDouble(this.scalar(position, 8));
+    }
+
+    public boolean getBoolean(int position) {
+        return this.buffer.get(this.scalar(position, 1)) != 0;
+    }
+
+    public int getInt(int position, int element) {
+        return this.buffer.getInt(this.element(position, element, 4));
+    }
+
+    public long getNumber(int position, int element) {
+        return this.buffer.getLong(this.element(position, element, 8));
+    }
+
+    public double getDouble(int position, int element) {
+        return this.buffer.getDouble(this.element(position, element, 8));
+    }
+
+    public boolean getBoolean(int position, int element) {
+        return this.buffer.get(this.element(position, element, 1)) != 0;
+    }
+
+    /**
+     * @return the number of elements copied, at most the length of
+     *         <code>data</code>
+     */
+    public int getInts(int position, int[] data) {
+        int index = this.array(position, 4);
+        int count = Math.min(data.length, this.getFieldLength(position) / 4);
+        for (int i = 0; i < count; i++, index += 4) {
+            data[i] = this.buffer.getInt(index);
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of elements copied, at most the length of
+     *         <code>data</code>
+     */
+    public int getNumbers(int position, long[] data) {
+        int index = this.array(position, 8);
+        int count = Math.min(data.length, this.getFieldLength(position) / 8);
+        for (int i = 0; i < count; i++, index += 8) {
+            data[i] = this.buffer.getLong(index);
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of elements copied, at most the length of
+     *         <code>data</code>
+     */
+    public int getDoubles(int position, double[] data) {
+        int index = this.array(position, 8);
+        int count = Math.min(data.length, this.getFieldLength(position) / 8);
+        for (int i = 0; i < count; i++, index += 8) {
+            data[i] = this.buffer.getDouble(index);
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of elements copied, at most the length of
+     *         <code>data</code>
+     */
+    public int getBooleans(int position, boolean[] data) {
+        int index = this.array(position, 1);
+        int count = Math.min(data.length, this.getFieldLength(position));
+        for (int i = 0; i < count; i++, index++) {
+            data[i] = this.buffer.get(index) != 0;
+        }
+        return count;
+    }
+
+    /**
+     * Decodes the text into the buffer, ASCII and ISO-8859-1 text is decoded
+     * without allocating.
+     * 
+     * @throws java.nio.BufferOverflowException
+     *             if the buffer can not hold the text
+     */
+    public void getCharacters(int position, CharBuffer text) {
+        int index = this.text(position);
+        TextCodec.decode(this.buffer, index, this.getFieldLength(position), Packet.getCharset(this.types[position]), text);
+    }
+
+    /**
+     * Appends the text to the buffer.
+     */
+    public void getCharacters(int position, StringBuffer text) {
+        int index = this.text(position);
+        TextCodec.decode(this.buffer, index, this.getFieldLength(position), Packet.getCharset(this.types[position]), text);
+    }
+
+    // ---------------------------------------------------------------
+
+    private void checkPosition(int position) {
+        if (position < 0 || position >= this.fieldCount) {
+            throw new IndexOutOfBoundsException("field " + position);
+        }
+    }
+
+    private int scalar(int position, int size) {
+        assert (this.types[position] & Packet.CONTENT_NUMBER) > 0;
+        Packet.checkNumberLength(this.getFieldLength(position), size);
+        return this.offsets[position];
+    }
+
+    /**
+     * Compressed fields can not be read in place, they have to be read with
+     * a {@link Packet}.
+     */
+    public boolean isCompressed(int position) {
+        this.checkPosition(position);
+        return (this.types[position] & Packet.FLAG_COMPRESSED) != 0;
+    }
+
+    private int text(int position) {
+        if (this.isCompressed(position)) {
+            throw new PacketException("field is compressed");
+        }
+        assert (this.types[position] & Packet.CONTENT_CHAR) > 0;
+        return this.getFieldOffset(position);
+    }
+
+    private int array(int position, int size) {
+        if (this.isCompressed(position)) {
+            throw new PacketException("field is compressed");
+        }
+        assert this.types[position] == Packet.CONTENT_NUMBER_ARRAY;
+        Packet.checkArrayLength(this.getFieldLength(position), size);
+        return this.getFieldOffset(position);
+    }
+
+    private int element(int position, int element, int size) {
+        int index = this.array(position, size) + element * size;
+        if (element < 0 || index + size > this.offsets[position + 1]) {
+            throw new IndexOutOfBoundsException("element " + element);
+        }
+        return index;
+    }
+
+}
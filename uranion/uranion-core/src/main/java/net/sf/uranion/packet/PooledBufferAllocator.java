@@ -0,0 +1,164 @@
+package net.sf.uranion.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Recycles heap and direct buffers in power-of-two size classes. Requests
+ * larger than the biggest size class are served unpooled.
+ */
+public class PooledBufferAllocator implements BufferAllocator {
+
+    private static final int MIN_SIZE_SHIFT = 6;
+
+    private static final int DEFAULT_MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    private static final int DEFAULT_BUFFERS_PER_CLASS = 16;
+
+    private final SizeClass[] heapClasses;
+
+    private final SizeClass[] directClasses;
+
+    private long unpooled;
+
+    public PooledBufferAllocator() {
+        this(DEFAULT_MAX_BUFFER_SIZE, DEFAULT_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * @param maxBufferSize
+     *            the largest buffer size kept in a pool, rounded up to a power
+     *            of two
+     * @param buffersPerClass
+     *            the number of idle buffers retained per size class
+     */
+    public PooledBufferAllocator(int maxBufferSize, int buffersPerClass) {
+        super();
+        int numClasses = Math.max(0, sizeShift(maxBufferSize) - MIN_SIZE_SHIFT) + 1;
+        this.heapClasses = new SizeClass[numClasses];
+        this.directClasses = new SizeClass[numClasses];
+        for (int i = 0; i < numClasses; i++) {
+            int capacity = 1 << (i + MIN_SIZE_SHIFT);
+            this.heapClasses[i] = new SizeClass(capacity, false, buffersPerClass);
+            this.directClasses[i] = new SizeClass(capacity, true, buffersPerClass);
+        }
+    }
+
+    private static int sizeShift(int size) {
+        int shift = MIN_SIZE_SHIFT;
+        while (shift < 31 && (1 << shift) < size) {
+            shift++;
+        }
+        return shift;
+    }
+
+    private SizeClass getSizeClass(int size, boolean direct) {
+        int index = sizeShift(size) - MIN_SIZE_SHIFT;
+        SizeClass[] classes = direct ? this.directClasses : this.heapClasses;
+        return (index < classes.length) ? classes[index] : null;
+    }
+
+    public ByteBuffer allocate(int size, boolean direct) {
+        SizeClass sizeClass = this.getSizeClass(size, direct);
+        if (sizeClass == null) {
+            synchronized (this) {
+                this.unpooled++;
+            }
+            return BufferAllocator.UNPOOLED.allocate(size, direct);
+        }
+        ByteBuffer buffer = sizeClass.acquire();
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        SizeClass sizeClass = this.getSizeClass(capacity, buffer.isDirect());
+        if (sizeClass != null && sizeClass.capacity == capacity && !buffer.isReadOnly()) {
+            sizeClass.release(buffer);
+        }
+    }
+
+    // ---------------------------------------------------------------
+
+    /**
+     * @return the number of requests served from a pool
+     */
+    public long getHits() {
+        long result = 0;
+        for (int i = 0; i < this.heapClasses.length; i++) {
+            result += this.heapClasses[i].getHits() + this.directClasses[i].getHits();
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of requests that had to allocate a new buffer
+     */
+    public long getMisses() {
+        long result;
+        synchronized (this) {
+            result = this.unpooled;
+        }
+        for (int i = 0; i < this.heapClasses.length; i++) {
+            result += this.heapClasses[i].getMisses() + this.directClasses[i].getMisses();
+        }
+        return result;
+    }
+
+    public String toString() {
+        return "PooledBufferAllocator [hits=" + this.getHits() + ", misses=" + this.getMisses() + "]";
+    }
+
+    // ---------------------------------------------------------------
+
+    private static final class SizeClass {
+
+        private final int capacity;
+
+        private final boolean direct;
+
+        private final ByteBuffer[] idle;
+
+        private int idleCount;
+
+        private long hits;
+
+        private long misses;
+
+        public SizeClass(int capacity, boolean direct, int maxIdle) {
+            this.capacity = capacity;
+            this.direct = direct;
+            this.idle = new ByteBuffer[maxIdle];
+        }
+
+        public ByteBuffer acquire() {
+            synchronized (this) {
+                if (this.idleCount > 0) {
+                    this.hits++;
+                    ByteBuffer buffer = this.idle[--this.idleCount];
+                    this.idle[this.idleCount] = null;
+                    return buffer;
+                }
+                this.misses++;
+            }
+            return BufferAllocator.UNPOOLED.allocate(this.capacity, this.direct);
+        }
+
+        public synchronized void release(ByteBuffer buffer) {
+            if (this.idleCount < this.idle.length) {
+                this.idle[this.idleCount++] = buffer;
+            }
+        }
+
+        public synchronized long getHits() {
+            return this.hits;
+        }
+
+        public synchronized long getMisses() {
+            return this.misses;
+        }
+
+    } // inner-class
+
+}
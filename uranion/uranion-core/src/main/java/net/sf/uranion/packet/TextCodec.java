@@ -0,0 +1,211 @@
+package net.sf.uranion.packet;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes and decodes character fields. ASCII and Latin-1 text is copied
+ * byte by byte, anything else goes through coders cached per thread.
+ */
+final class TextCodec {
+
+    static final Charset UTF_16 = Charset.forName("UTF-16");
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final ThreadLocal CODERS = new ThreadLocal() {
+        protected Object initialValue() {
+            return new Coders();
+        }
+    };
+
+    private TextCodec() {
+    }
+
+    /**
+     * @return the largest character in the text
+     */
+    static int maxChar(CharSequence data) {
+        int max = 0;
+        for (int i = 0; i < data.length(); i++) {
+            max |= data.charAt(i);
+        }
+        return max;
+    }
+
+    static ByteBuffer encode(CharSequence data, Charset charset) {
+        if (charset != UTF_16) {
+            int max = maxChar(data);
+            if (max < 0x80 || (max < 0x100 && charset == ISO_8859_1)) {
+                ByteBuffer bytes = ByteBuffer.allocate(data.length());
+                for (int i = 0; i < data.length(); i++) {
+                    bytes.put(i, (byte) data.charAt(i));
+                }
+                return bytes;
+            }
+        }
+        try {
+            return coders().encoder(charset).encode(CharBuffer.wrap(data));
+        } catch (CharacterCodingException e) {
+            // coders replace malformed input
+            throw new PacketException(e.toString());
+        }
+    }
+
+    /**
+     * Puts the encoded text at the position of the target.
+     * 
+     * @throws BufferOverflowException
+     *             if the target is too small
+     */
+    static void encode(CharSequence data, Charset charset, ByteBuffer target) {
+        if (charset != UTF_16) {
+            int max = maxChar(data);
+            if (max < 0x80 || (max < 0x100 && charset == ISO_8859_1)) {
+                for (int i = 0; i < data.length(); i++) {
+                    target.put((byte) data.charAt(i));
+                }
+                return;
+            }
+        }
+        CharsetEncoder encoder = coders().encoder(charset);
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(data), target, true);
+        if (!result.isOverflow()) {
+            result = encoder.flush(target);
+        }
+        if (result.isOverflow()) {
+            throw new BufferOverflowException();
+        }
+    }
+
+    /**
+     * @return an upper bound of the number of characters the encoded text
+     *         decodes to
+     */
+    static int maxChars(int length, Charset charset) {
+        return (charset == UTF_16) ? length / 2 : length;
+    }
+
+    /**
+     * Decodes <code>length</code> bytes at <code>index</code> of the source
+     * into the target, the source buffer is left as is.
+     *
+     * @throws BufferOverflowException
+     *             if the target is too small
+     */
+    static void decode(ByteBuffer src, int index, int length, Charset charset, CharBuffer dst) {
+        int decoded = 0;
+        if (charset != UTF_16) {
+            decoded = decodeBytes(src, index, length, charset, dst, null);
+            if (decoded == length) {
+                return;
+            }
+        }
+        CharsetDecoder decoder = coders().decoder(charset);
+        CoderResult result = decoder.decode(slice(src, index + decoded, length - decoded), dst, true);
+        if (!result.isOverflow()) {
+            result = decoder.flush(dst);
+        }
+        if (result.isOverflow()) {
+            throw new BufferOverflowException();
+        }
+    }
+
+    /**
+     * Appends the decoded text to the target, the source buffer is left as is.
+     */
+    static void decode(ByteBuffer src, int index, int length, Charset charset, StringBuffer dst) {
+        int decoded = 0;
+        if (charset != UTF_16) {
+            decoded = decodeBytes(src, index, length, charset, null, dst);
+            if (decoded == length) {
+                return;
+            }
+        }
+        try {
+            dst.append(coders().decoder(charset).decode(slice(src, index + decoded, length - decoded)));
+        } catch (CharacterCodingException e) {
+            // coders replace malformed input
+            throw new PacketException(e.toString());
+        }
+    }
+
+    /**
+     * Copies single byte characters until the first one which is not.
+     *
+     * @return the number of bytes decoded
+     */
+    private static int decodeBytes(ByteBuffer src, int index, int length, Charset charset, CharBuffer chars, StringBuffer text) {
+        boolean latin1 = charset == ISO_8859_1;
+        if (chars != null && chars.remaining() < length && latin1) {
+            throw new BufferOverflowException();
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = src.get(index + i);
+            if (b < 0 && !latin1) {
+                return i;
+            }
+            char c = (char) (b & 0xff);
+            if (chars != null) {
+                chars.put(c);
+            } else {
+                text.append(c);
+            }
+        }
+        return length;
+    }
+
+    private static ByteBuffer slice(ByteBuffer src, int index, int length) {
+        ByteBuffer slice = src.duplicate();
+        slice.limit(index + length).position(index);
+        return slice;
+    }
+
+    private static Coders coders() {
+        return (Coders) CODERS.get();
+    }
+
+    private static final class Coders {
+
+        private CharsetEncoder[] encoders = new CharsetEncoder[3];
+
+        private CharsetDecoder[] decoders = new CharsetDecoder[3];
+
+        private static int indexOf(Charset charset) {
+            if (charset == UTF_8) {
+                return 0;
+            }
+            return (charset == ISO_8859_1) ? 1 : 2;
+        }
+
+        public CharsetEncoder encoder(Charset charset) {
+            int i = indexOf(charset);
+            if (this.encoders[i] == null) {
+                this.encoders[i] = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            return this.encoders[i];
+        }
+
+        public CharsetDecoder decoder(Charset charset) {
+            int i = indexOf(charset);
+            if (this.decoders[i] == null) {
+                this.decoders[i] = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            CharsetDecoder decoder = this.decoders[i];
+            decoder.reset();
+            return decoder;
+        }
+
+    } // inner-class
+
+}
@@ -0,0 +1,20 @@
+package net.sf.uranion.packet;
+
+/**
+ * Holds the current phase of an asynchronous packet transfer. Transfers given
+ * a slot hand their successor phase (or <code>null</code> once complete) to it
+ * instead of attaching it to the selection key, and leave the interest set of
+ * the key alone. This lets a connection read and write at the same time.
+ */
+public interface TransferSlot {
+
+    public void setTransfer(Runnable transfer);
+
+    /**
+     * Called with the number of bytes every read or write of the transfer
+     * has moved, to keep track of its progress.
+     */
+    public default void transferred(long count) {
+    }
+
+}
@@ -0,0 +1,105 @@
+package net.sf.uranion.packet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class FieldCodecTest extends TestCase {
+
+    private static final FieldCodec[] CODECS = new FieldCodec[] { FieldCodec.FAST, FieldCodec.DEFLATE };
+
+    public FieldCodecTest(String name) {
+        super(name);
+    }
+
+    private static byte[] repetitive(int length) {
+        byte[] data = new byte[length];
+        byte[] pattern = "the quick brown fox jumps over the lazy dog. ".getBytes();
+        for (int i = 0; i < length; i++) {
+            data[i] = pattern[i % pattern.length];
+        }
+        return data;
+    }
+
+    /**
+     * @return the compressed size
+     */
+    private static int roundtrip(FieldCodec codec, byte[] data, boolean direct) {
+        ByteBuffer src = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+        src.put(data).flip();
+        ByteBuffer compressed = ByteBuffer.allocate(2 * data.length + 64);
+        assertTrue(codec.compress(src, compressed));
+        assertFalse(src.hasRemaining());
+        compressed.flip();
+        int size = compressed.remaining();
+        ByteBuffer result = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+        codec.decompress(compressed, result);
+        assertFalse(result.hasRemaining());
+        byte[] copy = new byte[data.length];
+        result.flip();
+        result.get(copy);
+        assertTrue(Arrays.equals(data, copy));
+        return size;
+    }
+
+    public void testRoundtrip() {
+        Random random = new Random(17);
+        byte[] noise = new byte[10000];
+        random.nextBytes(noise);
+        byte[] mixed = repetitive(100000);
+        for (int i = 0; i < mixed.length; i += 1000) {
+            mixed[i] = (byte) random.nextInt();
+        }
+        for (int i = 0; i < CODECS.length; i++) {
+            assertTrue(roundtrip(CODECS[i], repetitive(100000), false) < 100000 / 10);
+            assertTrue(roundtrip(CODECS[i], mixed, true) < 100000 / 5);
+            roundtrip(CODECS[i], noise, false);
+            roundtrip(CODECS[i], new byte[0], false);
+            roundtrip(CODECS[i], new byte[] { 1, 2, 3 }, true);
+            roundtrip(CODECS[i], new byte[70000], false);
+        }
+    }
+
+    public void testNoRoom() {
+        for (int i = 0; i < CODECS.length; i++) {
+            byte[] noise = new byte[1000];
+            new Random(i).nextBytes(noise);
+            assertFalse(CODECS[i].compress(ByteBuffer.wrap(noise), ByteBuffer.allocate(999)));
+        }
+    }
+
+    public void testCorrupt() {
+        for (int i = 0; i < CODECS.length; i++) {
+            ByteBuffer compressed = ByteBuffer.allocate(1000);
+            CODECS[i].compress(ByteBuffer.wrap(repetitive(1000)), compressed);
+            compressed.flip();
+            try {
+                // shorter than announced
+                CODECS[i].decompress(compressed, ByteBuffer.allocate(500));
+                fail();
+            } catch (PacketException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testRegistry() {
+        assertSame(FieldCodec.FAST, FieldCodecs.forId(FieldCodec.FAST.getId()));
+        assertSame(FieldCodec.DEFLATE, FieldCodecs.forId(FieldCodec.DEFLATE.getId()));
+        try {
+            FieldCodecs.register(FieldCodec.FAST);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // reserved id
+        }
+        try {
+            FieldCodecs.forId(100);
+            fail();
+        } catch (PacketException e) {
+            // not registered
+        }
+    }
+
+}
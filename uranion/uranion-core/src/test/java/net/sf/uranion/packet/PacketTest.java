@@ -2,9 +2,22 @@ package net.sf.uranion.packet;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -44,6 +57,41 @@ public class PacketTest extends TestCase {
         assertEquals("baz", this.packet.getCharacters(2).toString());
     }
 
+    public void testCharsets() throws IOException {
+        this.packet.setCharacters(0, "ascii only", Charset.forName("UTF-8"));
+        this.packet.setCharacters(1, "gr\u00fc\u00dfe \u20ac", Charset.forName("UTF-8"));
+        this.packet.setCharacters(2, "\u00e0 la carte \u20ac", Charset.forName("ISO-8859-1"));
+        assertEquals(10, this.packet.getFieldLength(0));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.packet.write(Channels.newChannel(out));
+        out.close();
+        Packet received = new Packet(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals("ascii only", received.getCharacters(0).toString());
+        assertEquals("gr\u00fc\u00dfe \u20ac", received.getCharacters(1).toString());
+        assertEquals("\u00e0 la carte \u20ac", received.getCharacters(2).toString());
+        StringBuffer text = new StringBuffer(">");
+        received.getCharacters(1, text);
+        assertEquals(">gr\u00fc\u00dfe \u20ac", text.toString());
+        CharBuffer chars = CharBuffer.allocate(4);
+        try {
+            received.getCharacters(0, chars);
+            fail();
+        } catch (BufferOverflowException e) {
+            // too small for the text
+        }
+    }
+
+    public void testLatin1() throws IOException {
+        Packet.setDefaultCharset(Charset.forName("ISO-8859-1"));
+        try {
+            this.packet.setCharacters(0, "caf\u00e9");
+            assertEquals(4, this.packet.getFieldLength(0));
+            assertEquals("caf\u00e9", this.packet.getCharacters(0).toString());
+        } finally {
+            Packet.setDefaultCharset(Charset.forName("UTF-16"));
+        }
+    }
+
     public void testRaw() {
         this.packet.setRaw(0, new byte[] { 1, 2, 3 }, false);
         byte[] d1 = this.packet.getRaw(0).array();
@@ -71,6 +119,55 @@ public class PacketTest extends TestCase {
         assertEquals("hello world", this.packet.getObject(2));
     }
 
+    public void testCompactObject() throws Exception {
+        this.packet.setObject(0, "gr\u00fc\u00dfe");
+        this.packet.setObject(1, new int[] { 1, -2, 3 });
+        this.packet.setObject(2, new Double(0.25));
+        assertEquals(2 + 7, this.packet.getFieldLength(0));
+        assertEquals(2 + 12, this.packet.getFieldLength(1));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.packet.write(Channels.newChannel(out));
+        out.close();
+        Packet received = new Packet(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals("gr\u00fc\u00dfe", received.getObject(0));
+        int[] ints = (int[]) received.getObject(1);
+        assertEquals(3, ints.length);
+        assertEquals(-2, ints[1]);
+        assertEquals(new Double(0.25), received.getObject(2));
+    }
+
+    public void testCustomSerializer() throws Exception {
+        FieldSerializers.register(FieldSerializers.FIRST_USER_TYPE_ID, StringBuffer.class, new FieldSerializer() {
+            public int getSize(Object data) {
+                return 2 * ((StringBuffer) data).length();
+            }
+
+            public void write(Object data, ByteBuffer target) {
+                StringBuffer text = (StringBuffer) data;
+                for (int i = 0; i < text.length(); i++) {
+                    target.putChar(text.charAt(i));
+                }
+            }
+
+            public Object read(ByteBuffer source) {
+                StringBuffer text = new StringBuffer();
+                while (source.hasRemaining()) {
+                    text.append(source.getChar());
+                }
+                return text;
+            }
+        });
+        try {
+            this.packet.setObject(0, new StringBuffer("custom"));
+            assertEquals(2 + 12, this.packet.getFieldLength(0));
+            assertEquals("custom", this.packet.getObject(0).toString());
+        } finally {
+            FieldSerializers.unregister(StringBuffer.class);
+        }
+        this.packet.setObject(1, new StringBuffer("java"));
+        assertEquals("java", this.packet.getObject(1).toString());
+    }
+
     public void testRoundtrip() throws IOException {
         this.packet.setNumber(0, 0x44FF);
         this.packet.setCharacters(1, "hello world");
@@ -97,4 +194,238 @@ public class PacketTest extends TestCase {
         assertEquals(this.packet.getRaw(2), packet2.getRaw(2));
     }
 
+    public void testCompression() throws IOException {
+        StringBuffer text = new StringBuffer();
+        for (int i = 0; i < 500; i++) {
+            text.append("field ").append(i % 10).append(' ');
+        }
+        byte[] noise = new byte[1000];
+        new Random(3).nextBytes(noise);
+        this.packet.setCharacters(0, text);
+        this.packet.setRaw(1, noise, true);
+        this.packet.setObject(2, text.toString());
+        int size = this.packet.getWireSize();
+        this.packet.compress(FieldCodec.FAST, 100);
+        assertTrue(this.packet.isCompressed(0));
+        assertFalse(this.packet.isCompressed(1));
+        assertTrue(this.packet.isCompressed(2));
+        assertTrue(this.packet.getWireSize() < size / 3);
+        assertTrue(this.packet.toString().startsWith("Packet [CHARZ="));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.packet.write(Channels.newChannel(out));
+        Packet received = new Packet(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+        assertTrue(received.isCompressed(0));
+        assertEquals(text.toString(), received.getCharacters(0).toString());
+        assertFalse(received.isCompressed(0));
+        assertEquals(ByteBuffer.wrap(noise), received.getRaw(1));
+        try {
+            assertEquals(text.toString(), received.getObject(2));
+        } catch (ClassNotFoundException e) {
+            fail();
+        }
+        try {
+            new PacketView().wrap(ByteBuffer.wrap(out.toByteArray())).getCharacters(0, new StringBuffer());
+            fail();
+        } catch (PacketException e) {
+            // not readable in place
+        }
+    }
+
+    public void testCompressedCopy() throws IOException {
+        StringBuffer text = new StringBuffer();
+        for (int i = 0; i < 500; i++) {
+            text.append("field ").append(i % 10).append(' ');
+        }
+        this.packet.setCharacters(0, text);
+        this.packet.setNumber(1, 7);
+        this.packet.setRaw(2, new byte[10], false);
+        int size = this.packet.getWireSize();
+        Packet copy = this.packet.compressed(FieldCodec.FAST, 100);
+        assertNotSame(this.packet, copy);
+        assertTrue(copy.isCompressed(0));
+        assertFalse(this.packet.isCompressed(0));
+        assertEquals(size, this.packet.getWireSize());
+        assertTrue(copy.getWireSize() < size / 3);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy.write(Channels.newChannel(out));
+        copy.dispose();
+        Packet received = new Packet(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(text.toString(), received.getCharacters(0).toString());
+        assertEquals(7, received.getNumber(1));
+        assertEquals(10, received.getRaw(2).remaining());
+        // disposing the copy leaves the shared fields alone
+        assertEquals(text.toString(), this.packet.getCharacters(0).toString());
+        assertEquals(7, this.packet.getNumber(1));
+
+        // nothing worth compressing
+        assertSame(this.packet, this.packet.compressed(FieldCodec.FAST, 1000000));
+    }
+
+    public void testCorrelationId() throws IOException {
+        this.packet.setNumber(0, 1);
+        this.packet.setCorrelationId(4711);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.packet.write(Channels.newChannel(out));
+        int correlatedSize = out.size();
+        this.packet.setCorrelationId(Packet.NO_CORRELATION_ID);
+        this.packet.write(Channels.newChannel(out));
+        out.close();
+        ByteBuffer wire = ByteBuffer.wrap(out.toByteArray());
+        Packet correlated = new Packet(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(4711, correlated.getCorrelationId());
+        assertEquals(1, correlated.getNumber(0));
+        wire.position(correlatedSize);
+        Packet plain = new Packet(wire.slice());
+        assertEquals(Packet.NO_CORRELATION_ID, plain.getCorrelationId());
+        assertEquals(1, plain.getNumber(0));
+    }
+
+    private static Packet createRawPacket(int size, int marker) {
+        Packet packet = new Packet(1);
+        byte[] data = new byte[size];
+        data[size - 1] = (byte) marker;
+        packet.setRaw(0, data, false);
+        return packet;
+    }
+
+    public void testGatheringWriterLimits() throws IOException {
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        Selector selector = Selector.open();
+        try {
+            SelectionKey sk = pipe.sink().register(selector, SelectionKey.OP_WRITE);
+
+            // the first packet is accepted even if it exceeds the byte limit
+            Packet.AsyncGatheringWriter writer = new Packet.AsyncGatheringWriter(null, sk, null, 64, 256 * 1024);
+            assertTrue(writer.add(createRawPacket(300 * 1024, 0)));
+            assertFalse(writer.add(createRawPacket(1, 1)));
+            Packet.abortTransfer(writer);
+
+            // two buffers per packet, the TOC and the field
+            writer = new Packet.AsyncGatheringWriter(null, sk, null, 64, 256 * 1024);
+            for (int i = 0; i < 32; i++) {
+                assertTrue(writer.add(createRawPacket(16, i)));
+            }
+            assertFalse(writer.add(createRawPacket(16, 32)));
+            Packet.abortTransfer(writer);
+
+            writer = new Packet.AsyncGatheringWriter(null, sk, null, 64, 256 * 1024);
+            assertTrue(writer.add(createRawPacket(100 * 1024, 0)));
+            assertTrue(writer.add(createRawPacket(100 * 1024, 1)));
+            assertFalse(writer.add(createRawPacket(100 * 1024, 2)));
+            Packet.abortTransfer(writer);
+        } finally {
+            selector.close();
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+
+    public void testGatheringWriterPartialWrites() throws IOException {
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        pipe.source().configureBlocking(false);
+        Selector selector = Selector.open();
+        try {
+            SelectionKey sk = pipe.sink().register(selector, SelectionKey.OP_WRITE);
+            final long[] written = new long[1];
+            final List completed = new ArrayList();
+            final List writtenAtCompletion = new ArrayList();
+            TransferSlot slot = new TransferSlot() {
+                public void setTransfer(Runnable transfer) {
+                }
+
+                public void transferred(long count) {
+                    written[0] += count;
+                }
+            };
+            PacketCallback callback = new PacketCallback() {
+                public void handlePacketCallback(Packet packet) {
+                    completed.add(packet);
+                    writtenAtCompletion.add(new Long(written[0]));
+                }
+            };
+            Packet[] packets = new Packet[3];
+            Packet.AsyncGatheringWriter writer = new Packet.AsyncGatheringWriter(callback, sk, slot, 64, Long.MAX_VALUE);
+            int total = 0;
+            for (int i = 0; i < packets.length; i++) {
+                packets[i] = createRawPacket(200 * 1024, i);
+                total += packets[i].getWireSize();
+                assertTrue(writer.add(packets[i]));
+            }
+
+            // the pipe holds less than a packet
+            writer.run();
+            assertTrue(written[0] > 0);
+            assertTrue(completed.isEmpty());
+
+            ByteBuffer received = ByteBuffer.allocate(total);
+            while (completed.size() < packets.length) {
+                pipe.source().read(received);
+                writer.run();
+            }
+            while (received.hasRemaining()) {
+                pipe.source().read(received);
+            }
+
+            long end = 0;
+            for (int i = 0; i < packets.length; i++) {
+                assertSame(packets[i], completed.get(i));
+                end += packets[i].getWireSize();
+                assertTrue(((Long) writtenAtCompletion.get(i)).longValue() >= end);
+            }
+            assertEquals(total, written[0]);
+
+            received.flip();
+            for (int i = 0; i < packets.length; i++) {
+                Packet packet = new Packet(received);
+                assertEquals(i, packet.getRaw(0).get(200 * 1024 - 1));
+                received.limit(total);
+            }
+        } finally {
+            selector.close();
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+
+    public void testFile() throws IOException {
+        File file = File.createTempFile("packet", ".test");
+        FileOutputStream content = new FileOutputStream(file);
+        content.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        content.close();
+        RandomAccessFile source = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = source.getChannel();
+            this.packet.setNumber(0, 42);
+            this.packet.setFile(1, channel, 2, 4);
+            this.packet.setCharacters(2, "file");
+            assertEquals(ByteBuffer.wrap(new byte[] { 3, 4, 5, 6 }), this.packet.getRaw(1));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            this.packet.write(Channels.newChannel(out));
+            out.close();
+
+            Packet received = new Packet(ByteBuffer.wrap(out.toByteArray()));
+            assertNull(received.getSpoolFile(1));
+            assertEquals(ByteBuffer.wrap(new byte[] { 3, 4, 5, 6 }), received.getRaw(1));
+
+            Packet.setFileSpoolDirectory(file.getParentFile());
+            Packet spooled = new Packet(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+            File spoolFile = spooled.getSpoolFile(1);
+            assertNotNull(spoolFile);
+            assertEquals(4, spoolFile.length());
+            assertEquals(42, spooled.getNumber(0));
+            assertEquals(ByteBuffer.wrap(new byte[] { 3, 4, 5, 6 }), spooled.getRaw(1));
+            assertEquals("file", spooled.getCharacters(2).toString());
+            spooled.dispose();
+        } finally {
+            Packet.setFileSpoolDirectory(null);
+            source.close();
+            file.delete();
+        }
+    }
+
 }
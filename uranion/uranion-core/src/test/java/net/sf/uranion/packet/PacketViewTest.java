@@ -0,0 +1,180 @@
+package net.sf.uranion.packet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+public class PacketViewTest extends TestCase {
+
+    private Packet packet;
+
+    public PacketViewTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        this.packet = new Packet(8);
+        this.packet.setInt(0, -7);
+        this.packet.setNumber(1, 0x1122334455667788L);
+        this.packet.setDouble(2, 2.5);
+        this.packet.setBoolean(3, true);
+        this.packet.setInts(4, new int[] { 1, 2, 3 });
+        this.packet.setNumbers(5, new long[] { Long.MIN_VALUE, Long.MAX_VALUE });
+        this.packet.setDoubles(6, new double[] { 0.5, -1.5 });
+        this.packet.setBooleans(7, new boolean[] { true, false, true });
+        this.packet.setCorrelationId(99);
+    }
+
+    private byte[] serialize(Packet source) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        source.write(Channels.newChannel(out));
+        out.close();
+        return out.toByteArray();
+    }
+
+    public void testPrimitives() throws IOException {
+        assertEquals(-7, this.packet.getInt(0));
+        assertEquals(2.5, this.packet.getDouble(2), 0);
+        assertTrue(this.packet.getBoolean(3));
+        Packet received = new Packet(ByteBuffer.wrap(this.serialize(this.packet)));
+        assertEquals(-7, received.getInt(0));
+        assertEquals(0x1122334455667788L, received.getNumber(1));
+        assertEquals(2.5, received.getDouble(2), 0);
+        assertTrue(received.getBoolean(3));
+        assertEquals(3, received.getInts(4)[2]);
+        assertEquals(Long.MAX_VALUE, received.getNumbers(5)[1]);
+        assertEquals(-1.5, received.getDoubles(6)[1], 0);
+        assertFalse(received.getBooleans(7)[1]);
+    }
+
+    public void testView() throws IOException {
+        ByteBuffer wire = ByteBuffer.allocate(256);
+        wire.position(10);
+        wire.put(this.serialize(this.packet));
+        wire.flip().position(10);
+        PacketView view = new PacketView().wrap(wire);
+        assertEquals(10, wire.position());
+        assertEquals(99, view.getCorrelationId());
+        assertEquals(8, view.getFieldCount());
+        assertEquals(-7, view.getInt(0));
+        assertEquals(0x1122334455667788L, view.getNumber(1));
+        assertEquals(2.5, view.getDouble(2), 0);
+        assertTrue(view.getBoolean(3));
+        assertEquals(12, view.getFieldLength(4));
+        assertEquals(2, view.getInt(4, 1));
+        assertEquals(Long.MIN_VALUE, view.getNumber(5, 0));
+        assertEquals(0.5, view.getDouble(6, 0), 0);
+        assertTrue(view.getBoolean(7, 2));
+        int[] ints = new int[2];
+        assertEquals(2, view.getInts(4, ints));
+        assertEquals(1, ints[0]);
+        boolean[] booleans = new boolean[4];
+        assertEquals(3, view.getBooleans(7, booleans));
+        assertFalse(booleans[1]);
+        try {
+            view.getInt(4, 3);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // past the end of the array
+        }
+        assertEquals(10, wire.position());
+    }
+
+    public void testWidthMismatch() throws IOException {
+        Packet received = new Packet(Channels.newChannel(new ByteArrayInputStream(this.serialize(this.packet))));
+        PacketView view = new PacketView().wrap(ByteBuffer.wrap(this.serialize(this.packet)));
+        try {
+            received.getNumber(0);
+            fail();
+        } catch (PacketException e) {
+            assertEquals("field too short", e.getMessage());
+        }
+        try {
+            view.getNumber(0);
+            fail();
+        } catch (PacketException e) {
+            assertEquals("field too short", e.getMessage());
+        }
+        try {
+            received.getBoolean(0);
+            fail();
+        } catch (PacketException e) {
+            assertEquals("field too long", e.getMessage());
+        }
+        try {
+            view.getInt(1);
+            fail();
+        } catch (PacketException e) {
+            assertEquals("field too long", e.getMessage());
+        }
+        // three ints are not a whole number of longs
+        try {
+            received.getNumbers(4);
+            fail();
+        } catch (PacketException e) {
+            assertEquals("field length not a multiple of 8", e.getMessage());
+        }
+        try {
+            view.getNumbers(4, new long[2]);
+            fail();
+        } catch (PacketException e) {
+            assertEquals("field length not a multiple of 8", e.getMessage());
+        }
+        try {
+            view.getNumber(4, 0);
+            fail();
+        } catch (PacketException e) {
+            // not an array of longs either
+        }
+    }
+
+    public void testRead() throws IOException {
+        Packet second = new Packet(1);
+        second.setNumber(0, 42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(this.serialize(this.packet));
+        out.write(this.serialize(second));
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        PacketView view = new PacketView();
+        view.read(Channels.newChannel(in), buffer);
+        assertEquals(-7, view.getInt(0));
+        view.read(Channels.newChannel(in), buffer);
+        assertEquals(1, view.getFieldCount());
+        assertEquals(Packet.NO_CORRELATION_ID, view.getCorrelationId());
+        assertEquals(42, view.getNumber(0));
+    }
+
+    public void testCharacters() throws IOException {
+        Packet text = new Packet(2);
+        text.setCharacters(0, "plain", Charset.forName("UTF-8"));
+        text.setCharacters(1, "\u00fcber", Charset.forName("UTF-16"));
+        PacketView view = new PacketView().wrap(ByteBuffer.wrap(this.serialize(text)));
+        CharBuffer chars = CharBuffer.allocate(16);
+        view.getCharacters(0, chars);
+        view.getCharacters(1, chars);
+        chars.flip();
+        assertEquals("plain\u00fcber", chars.toString());
+        StringBuffer buffer = new StringBuffer();
+        view.getCharacters(1, buffer);
+        assertEquals("\u00fcber", buffer.toString());
+    }
+
+    public void testTruncated() throws IOException {
+        byte[] wire = this.serialize(this.packet);
+        ByteBuffer truncated = ByteBuffer.wrap(wire, 0, wire.length - 1);
+        try {
+            new PacketView().wrap(truncated);
+            fail();
+        } catch (PacketException e) {
+            // the last field is incomplete
+        }
+    }
+
+}
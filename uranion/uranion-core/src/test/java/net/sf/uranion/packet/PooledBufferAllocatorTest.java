@@ -0,0 +1,74 @@
+package net.sf.uranion.packet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import junit.framework.TestCase;
+
+public class PooledBufferAllocatorTest extends TestCase {
+
+    private PooledBufferAllocator allocator;
+
+    public PooledBufferAllocatorTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        this.allocator = new PooledBufferAllocator(1024, 4);
+    }
+
+    protected void tearDown() throws Exception {
+        Packet.setDefaultAllocator(null);
+        super.tearDown();
+    }
+
+    public void testSizeClasses() {
+        ByteBuffer heap = this.allocator.allocate(100, false);
+        assertEquals(0, heap.position());
+        assertEquals(100, heap.limit());
+        assertEquals(128, heap.capacity());
+        assertFalse(heap.isDirect());
+        assertTrue(this.allocator.allocate(10, true).isDirect());
+        assertEquals(0, this.allocator.getHits());
+        assertEquals(2, this.allocator.getMisses());
+
+        this.allocator.release(heap);
+        ByteBuffer recycled = this.allocator.allocate(80, false);
+        assertSame(heap, recycled);
+        assertEquals(80, recycled.limit());
+        assertEquals(1, this.allocator.getHits());
+    }
+
+    public void testOversized() {
+        ByteBuffer large = this.allocator.allocate(4096, false);
+        assertEquals(4096, large.capacity());
+        this.allocator.release(large);
+        assertNotSame(large, this.allocator.allocate(4096, false));
+        assertEquals(0, this.allocator.getHits());
+        assertEquals(2, this.allocator.getMisses());
+    }
+
+    public void testPacketDispose() throws IOException {
+        Packet.setDefaultAllocator(this.allocator);
+        Packet packet = new Packet(3);
+        packet.setNumber(0, 4711);
+        packet.setRaw(1, new byte[] { 1, 2, 3 }, true);
+        packet.setCharacters(2, "pooled");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        packet.write(Channels.newChannel(out));
+
+        for (int i = 0; i < 3; i++) {
+            Packet received = new Packet(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+            assertEquals(4711, received.getNumber(0));
+            assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), received.getRaw(1));
+            assertEquals("pooled", received.getCharacters(2).toString());
+            received.dispose();
+        }
+        long misses = this.allocator.getMisses();
+        assertTrue(this.allocator.getHits() > misses);
+    }
+
+}
@@ -2,43 +2,144 @@ package net.sf.uranion.reactor;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.SocketAddress;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.sf.uranion.packet.FieldCodec;
 import net.sf.uranion.packet.Packet;
 import net.sf.uranion.packet.PacketCallback;
 
-import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
-import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
-
 public abstract class AbstractServer implements Runnable {
 
-    private static final int SO_RCVBUF_SIZE = 128 * 1024;
-
-    private static final int SO_SNDBUF_SIZE = 128 * 1024;
+    private SocketAddress bindAddress;
 
-    private int port;
+    private ServerOptions options;
 
     private ServerSocketChannel serverSocket;
 
     private PacketProcessor processor;
 
-    private PooledExecutor processorPool;
+    private Executor processorPool;
+
+    /**
+     * Whether the pool has been created by the server and is shut down with
+     * it.
+     */
+    private boolean ownsProcessorPool;
+
+    private MetricsRegistry metrics = new MetricsRegistry();
+
+    private StripedCounter processorQueued = this.metrics.counter("processor.queued");
+
+    private StripedCounter processorStarted = this.metrics.counter("processor.started");
+
+    private LatencyHistogram processorWait = this.metrics.histogram("processor.wait");
+
+    private LatencyHistogram processorLatency = this.metrics.histogram("processor.latency");
+
+    private StripedCounter processorInline = this.metrics.counter("processor.inline");
+
+    private StripedCounter processorRejected = this.metrics.counter("processor.rejected");
+
+    private StripedCounter processorDropped = this.metrics.counter("processor.dropped");
+
+    private StripedCounter processorExpired = this.metrics.counter("processor.expired");
+
+    private StripedCounter journalAppended = this.metrics.counter("journal.appended");
+
+    private StripedCounter journalFailed = this.metrics.counter("journal.failed");
+
+    private volatile int queueLimit;
 
-    private int numProcessors;
+    private volatile AdmissionPolicy admissionPolicy = AdmissionPolicy.REJECT;
+
+    private long queueDeadline;
+
+    /**
+     * The number of requests admitted under a queue limit but not yet
+     * started. Requests admitted without a limit are not tracked, the
+     * executor queues them on its own.
+     */
+    private AtomicInteger queuedCount = new AtomicInteger();
+
+    /**
+     * The tracked requests which may be dropped, oldest first; started ones
+     * are removed lazily.
+     */
+    private ConcurrentLinkedQueue queuedJobs = new ConcurrentLinkedQueue();
+
+    private ConcurrentLinkedQueue capacityWaiters = new ConcurrentLinkedQueue();
+
+    private volatile FieldCodec responseCodec;
+
+    private volatile PacketJournal journal;
+
+    private volatile int compressionThreshold;
 
     protected AbstractServer(int port, int numProcessors, PacketProcessor processor) throws IOException {
+        this(new InetSocketAddress(port), ProcessorExecutors.fixed(numProcessors), true, processor, new ServerOptions());
+    }
+
+    /**
+     * @param processorPool
+     *            runs the processor, see {@link ProcessorExecutors}; it is
+     *            not shut down with the server
+     */
+    protected AbstractServer(int port, Executor processorPool, PacketProcessor processor) throws IOException {
+        this(new InetSocketAddress(port), processorPool, false, processor, new ServerOptions());
+    }
+
+    /**
+     * @param bindAddress
+     *            an {@link InetSocketAddress}, or the address of a Unix domain
+     *            socket (see {@link UnixDomainSockets}) whose file is replaced
+     *            if it exists
+     * @param processorPool
+     *            runs the processor, see {@link ProcessorExecutors}; it is
+     *            not shut down with the server
+     */
+    protected AbstractServer(SocketAddress bindAddress, Executor processorPool, PacketProcessor processor, ServerOptions options) throws IOException {
+        this(bindAddress, processorPool, false, processor, options);
+    }
+
+    private AbstractServer(SocketAddress bindAddress, Executor processorPool, boolean ownsProcessorPool, PacketProcessor processor, ServerOptions options) throws IOException {
         super();
-        this.port = port;
+        this.bindAddress = bindAddress;
+        this.options = options;
         this.processor = processor;
-        this.numProcessors = numProcessors;
-        this.processorPool = this.createProcessorPool();
+        this.processorPool = processorPool;
+        this.ownsProcessorPool = ownsProcessorPool;
+        this.metrics.gauge("processor.queue", new Gauge() {
+            public long getValue() {
+                return processorQueued.sum() - processorStarted.sum();
+            }
+        });
         this.prepareNetwork();
     }
 
+    // -------------------------------------------------------------------------
+    // Metrics
+
+    /**
+     * The registry the server and its reactors update, latencies are in
+     * nanoseconds.
+     */
+    public MetricsRegistry getMetrics() {
+        return this.metrics;
+    }
+
+    public MetricsSnapshot getMetricsSnapshot() {
+        return this.metrics.snapshot();
+    }
+
     public void shutdown() throws IOException, InterruptedException {
         this.stopListen();
         this.shutdownProcessorPool();
@@ -51,16 +152,56 @@ public abstract class AbstractServer implements Runnable {
 
     protected abstract void prepareNetwork() throws IOException;
 
-    private InetSocketAddress getBindAddress() {
-        return new InetSocketAddress(this.port);
+    protected SocketAddress getBindAddress() {
+        return this.bindAddress;
+    }
+
+    protected ServerOptions getOptions() {
+        return this.options;
+    }
+
+    protected boolean isUnixDomain() {
+        return UnixDomainSockets.isUnixDomain(this.bindAddress);
     }
 
     protected void startListen(boolean blockingSocket) throws IOException {
-        this.serverSocket = ServerSocketChannel.open();
-        ServerSocket socket = this.serverSocket.socket();
-        socket.setReceiveBufferSize(SO_RCVBUF_SIZE);
-        socket.bind(this.getBindAddress());
-        this.serverSocket.configureBlocking(blockingSocket);
+        this.startListen(blockingSocket, false);
+    }
+
+    /**
+     * @param shared
+     *            whether more sockets will listen on the same port, see
+     *            {@link #openListener(SocketAddress, boolean, boolean)}
+     */
+    protected void startListen(boolean blockingSocket, boolean shared) throws IOException {
+        if (this.isUnixDomain()) {
+            // left over by a server which has not shut down
+            UnixDomainSockets.getFile(this.bindAddress).delete();
+        }
+        this.serverSocket = this.openListener(this.bindAddress, blockingSocket, shared);
+    }
+
+    /**
+     * Opens a socket listening on the address, configured by the options.
+     * 
+     * @param shared
+     *            whether the socket is one of several listening on the same
+     *            TCP port, all of which have to be opened this way
+     */
+    protected ServerSocketChannel openListener(SocketAddress address, boolean blockingSocket, boolean shared) throws IOException {
+        ServerSocketChannel listener = this.isUnixDomain() ? UnixDomainSockets.openServerChannel() : ServerSocketChannel.open();
+        try {
+            this.options.configureListener(listener, shared);
+            listener.bind(address, this.options.getBacklog());
+            listener.configureBlocking(blockingSocket);
+        } catch (IOException e) {
+            listener.close();
+            throw e;
+        } catch (RuntimeException e) {
+            listener.close();
+            throw e;
+        }
+        return listener;
     }
 
     protected ServerSocketChannel getServerSocket() {
@@ -71,49 +212,342 @@ public abstract class AbstractServer implements Runnable {
         if (this.serverSocket != null && this.serverSocket.isOpen()) {
             this.serverSocket.close();
             this.serverSocket = null;
+            if (this.isUnixDomain()) {
+                UnixDomainSockets.getFile(this.bindAddress).delete();
+            }
         }
     }
 
-    protected void adaptClientConnection(SocketChannel client) throws SocketException {
-        Socket socket = client.socket();
-        socket.setSendBufferSize(SO_SNDBUF_SIZE);
-        socket.setTcpNoDelay(true);
-        socket.setKeepAlive(true);
+    protected void adaptClientConnection(SocketChannel client) throws IOException {
+        this.options.configureConnection(client);
     }
 
     // -------------------------------------------------------------------------
     // Packet processing
 
-    private PooledExecutor createProcessorPool() {
-        PooledExecutor executor = new PooledExecutor(new LinkedQueue(), this.numProcessors);
-        executor.setMinimumPoolSize(this.numProcessors);
-        return executor;
+    /**
+     * Lets the packets already queued complete.
+     */
+    private void shutdownProcessorPool() throws InterruptedException {
+        if (this.ownsProcessorPool && this.processorPool instanceof ExecutorService) {
+            ExecutorService pool = (ExecutorService) this.processorPool;
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Opens a connection within the JVM, see {@link LocalPacketClient}.
+     */
+    public LocalPacketClient connectLocal() {
+        return new LocalPacketClient(this);
     }
 
-    private void shutdownProcessorPool() throws InterruptedException {
-        if (this.processorPool != null) {
-            this.processorPool.shutdownAfterProcessingCurrentlyQueuedTasks();
-            this.processorPool.awaitTerminationAfterShutdown();
-            this.processorPool = null;
+    PacketProcessor getProcessor() {
+        return this.processor;
+    }
+
+    /**
+     * Bounds the number of requests waiting for a processor thread.
+     * 
+     * @param limit
+     *            <code>0</code> for no limit (the default)
+     * @param policy
+     *            what to do with requests arriving while the limit is
+     *            reached
+     */
+    public void setQueueLimit(int limit, AdmissionPolicy policy) {
+        this.admissionPolicy = policy;
+        this.queueLimit = Math.max(0, limit);
+    }
+
+    /**
+     * Requests which waited longer than the deadline for a processor thread
+     * are answered with a rejection instead of being processed.
+     * 
+     * @param millis
+     *            <code>0</code> for no deadline (the default)
+     */
+    public void setQueueDeadline(long millis) {
+        this.queueDeadline = millis * 1000000;
+    }
+
+    /**
+     * Compresses the large fields of the responses written to connections on
+     * the processor thread, see {@link Packet#compressed(FieldCodec, int)};
+     * the responses themselves are not changed. Responses of a
+     * {@link NonBlockingPacketProcessor} are not compressed, that would stall
+     * the reactor thread, nor are those passed to a {@link LocalPacketClient}.
+     * Compressed requests are decompressed as the processor reads them.
+     * 
+     * @param codec
+     *            <code>null</code> to disable compression (the default)
+     * @param threshold
+     *            the size from which on a field is compressed
+     */
+    public void setResponseCompression(FieldCodec codec, int threshold) {
+        this.compressionThreshold = threshold;
+        this.responseCodec = codec;
+    }
+
+    /**
+     * Records the requests in the journal before they are processed, on the
+     * processor thread; requests of a {@link NonBlockingPacketProcessor} are
+     * recorded by the reactor thread. Streamed requests are not recorded. The
+     * journal is not closed with the server.
+     * 
+     * @param journal
+     *            <code>null</code> to stop recording (the default)
+     */
+    public void setJournal(PacketJournal journal) {
+        this.journal = journal;
+    }
+
+    private void record(Packet request) {
+        PacketJournal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.append(request);
+            this.journalAppended.increment();
+        } catch (IOException e) {
+            this.journalFailed.increment();
+        } catch (IllegalArgumentException e) {
+            // too large for a segment
+            this.journalFailed.increment();
         }
     }
 
-    protected void process(final PacketCallback resultCallback, final Packet packet) {
-        Runnable job = new Runnable() {
-            public void run() {
-                try {
-                    resultCallback.handlePacketCallback(processor.process(packet));
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+    /**
+     * @return the response as written to a connection: a copy holding its
+     *         compressed fields, or the response itself if compression is off
+     *         or does not pay
+     */
+    Packet compressResponse(Packet response) {
+        FieldCodec codec = this.responseCodec;
+        return (codec == null) ? response : response.compressed(codec, this.compressionThreshold);
+    }
+
+    /**
+     * Builds the answer to a request which is not processed, because the
+     * queue was full (<code>"rejected"</code>, <code>"dropped"</code>) or
+     * the request waited past the deadline (<code>"expired"</code>). The
+     * default is a packet holding the reason as its only field.
+     */
+    protected Packet createRejection(Packet request, String reason) {
+        Packet rejection = new Packet(1);
+        rejection.setCharacters(0, reason);
+        return rejection;
+    }
+
+    /**
+     * Queues the request for processing, subject to the queue limit. A
+     * {@link NonBlockingPacketProcessor} is called right away instead.
+     * 
+     * @return false if the request has not been admitted because of the
+     *         {@link AdmissionPolicy#PAUSE} policy; the caller has to retry
+     *         once {@link #awaitCapacity(Runnable)} signals room
+     */
+    protected boolean process(PacketCallback resultCallback, Packet packet) {
+        if (this.processor instanceof NonBlockingPacketProcessor) {
+            this.processInline(resultCallback, packet);
+            return true;
+        }
+        ProcessingJob job = new ProcessingJob(resultCallback, packet);
+        int limit = this.queueLimit;
+        if (limit > 0) {
+            AdmissionPolicy policy = this.admissionPolicy;
+            ProcessingJob dropped = null;
+            while (true) {
+                int queued = this.queuedCount.get();
+                if (queued < limit) {
+                    if (this.queuedCount.compareAndSet(queued, queued + 1)) {
+                        break;
+                    }
+                } else if (policy == AdmissionPolicy.PAUSE) {
+                    return false;
+                } else if (policy == AdmissionPolicy.DROP_OLDEST && (dropped = this.pollDroppable()) != null) {
+                    // the new request takes the place of the oldest one
+                    break;
+                } else {
+                    this.processorRejected.increment();
+                    resultCallback.handlePacketCallback(this.createRejection(packet, "rejected"));
+                    return true;
                 }
             }
-        };
+            job.track(policy == AdmissionPolicy.DROP_OLDEST);
+            if (dropped != null) {
+                this.processorDropped.increment();
+                dropped.reject("dropped");
+            }
+        }
+        this.execute(job);
+        return true;
+    }
 
+    private void processInline(PacketCallback resultCallback, Packet packet) {
+        this.processorInline.increment();
+        this.record(packet);
         try {
-            this.processorPool.execute(job);
-        } catch (Exception e) {
+            long start = System.nanoTime();
+            Packet response = this.processor.process(packet);
+            this.processorLatency.record(System.nanoTime() - start);
+            resultCallback.handlePacketCallback(nonNull(response));
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Runs the waiter as soon as the queue has room, right away if it has
+     * already. The waiter is run by a processor thread otherwise and must not
+     * block.
+     */
+    void awaitCapacity(Runnable waiter) {
+        int limit = this.queueLimit;
+        if (limit > 0 && this.queuedCount.get() >= limit) {
+            this.capacityWaiters.offer(waiter);
+            // a request may have started meanwhile without seeing the waiter
+            if (this.queuedCount.get() < limit) {
+                this.signalCapacity();
+            }
+            return;
+        }
+        waiter.run();
+    }
+
+    private void signalCapacity() {
+        Runnable waiter = (Runnable) this.capacityWaiters.poll();
+        if (waiter != null) {
+            waiter.run();
+        }
+    }
+
+    private final class ProcessingJob implements Runnable {
+
+        private PacketCallback resultCallback;
+
+        private Packet packet;
+
+        private long queued = System.nanoTime();
+
+        /**
+         * Set once the job is started or dropped, <code>null</code> if it is
+         * not tracked.
+         */
+        private AtomicBoolean claimed;
+
+        public ProcessingJob(PacketCallback resultCallback, Packet packet) {
+            this.resultCallback = resultCallback;
+            this.packet = packet;
+        }
+
+        /**
+         * Counts the job against the queue limit until it starts.
+         */
+        void track(boolean droppable) {
+            this.claimed = new AtomicBoolean();
+            if (droppable) {
+                pruneStarted();
+                queuedJobs.offer(this);
+            }
+        }
+
+        /**
+         * @return false if the job has been started or dropped already
+         */
+        boolean claim() {
+            return this.claimed.compareAndSet(false, true);
+        }
+
+        boolean isClaimed() {
+            return this.claimed.get();
+        }
+
+        public void run() {
+            if (this.claimed != null) {
+                if (!this.claim()) {
+                    // dropped while queued
+                    return;
+                }
+                queuedCount.decrementAndGet();
+                signalCapacity();
+            }
+            if (queueDeadline > 0 && System.nanoTime() - this.queued > queueDeadline) {
+                processorExpired.increment();
+                this.reject("expired");
+                return;
+            }
+            record(this.packet);
+            try {
+                long start = System.nanoTime();
+                Packet response = processor.process(this.packet);
+                processorLatency.record(System.nanoTime() - start);
+                this.resultCallback.handlePacketCallback(nonNull(response));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void reject(String reason) {
+            this.resultCallback.handlePacketCallback(createRejection(this.packet, reason));
+        }
+
+    } // inner-class
+
+    /**
+     * @return the oldest queued job, claimed for dropping; <code>null</code>
+     *         if all have started
+     */
+    private ProcessingJob pollDroppable() {
+        ProcessingJob job;
+        while ((job = (ProcessingJob) this.queuedJobs.poll()) != null) {
+            if (job.claim()) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the started jobs from the head of the droppable ones, which is
+     * where they are as long as the executor runs them in order.
+     */
+    private void pruneStarted() {
+        ProcessingJob head;
+        while ((head = (ProcessingJob) this.queuedJobs.peek()) != null && head.isClaimed()) {
+            this.queuedJobs.remove(head);
+        }
+    }
+
+    /**
+     * Runs the job on a processor thread.
+     */
+    protected void execute(final Runnable job) {
+        final long queued = System.nanoTime();
+        Runnable measured = new Runnable() {
+            public void run() {
+                processorStarted.increment();
+                processorWait.record(System.nanoTime() - queued);
+                job.run();
+            }
+        };
+        this.processorQueued.increment();
+        try {
+            this.processorPool.execute(measured);
+        } catch (RejectedExecutionException e) {
+            this.processorQueued.add(-1);
+            throw e;
+        }
+    }
+
+    /**
+     * The connection writes the response with the correlation id of its
+     * request, the response itself is not changed.
+     */
+    private static Packet nonNull(Packet response) {
+        return (response == null) ? Packet.EMPTY_PACKET : response;
+    }
+
 }
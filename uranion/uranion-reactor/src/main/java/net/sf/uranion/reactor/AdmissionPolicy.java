@@ -0,0 +1,26 @@
+package net.sf.uranion.reactor;
+
+/**
+ * What a server does with a request arriving while its processing queue is
+ * full, see {@link AbstractServer#setQueueLimit(int, AdmissionPolicy)}.
+ */
+public enum AdmissionPolicy {
+
+    /**
+     * Answers the new request with a rejection right away.
+     */
+    REJECT,
+
+    /**
+     * Stops reading from the connection until the queue has room again, the
+     * request waits on its connection instead of the queue.
+     */
+    PAUSE,
+
+    /**
+     * Queues the new request, answering the oldest queued one with a
+     * rejection instead.
+     */
+    DROP_OLDEST
+
+}
@@ -0,0 +1,466 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import net.sf.uranion.packet.Packet;
+import net.sf.uranion.packet.PacketCallback;
+import net.sf.uranion.packet.TransferSlot;
+
+/**
+ * Non-blocking client driving any number of connections from a single
+ * selector thread. Requests may be sent from any thread, they are queued and
+ * written by the selector thread; responses are read with the same transfer
+ * state machines the {@link PacketReactor} uses and matched to their requests
+ * by correlation id, so a connection may have any number of requests
+ * outstanding.
+ */
+public class AsyncPacketClient {
+
+    private static final int MAX_WRITE_BUFFERS = 64;
+
+    private static final int MAX_WRITE_BYTES = 256 * 1024;
+
+    private Selector selector;
+
+    private Thread selectorThread;
+
+    private TaskQueue tasks = new TaskQueue();
+
+    private volatile boolean closed;
+
+    private ClientOptions options;
+
+    public AsyncPacketClient() throws IOException {
+        this(new ClientOptions());
+    }
+
+    public AsyncPacketClient(ClientOptions options) throws IOException {
+        super();
+        this.options = options;
+        this.selector = Selector.open();
+        this.selectorThread = new Thread(new Runnable() {
+            public void run() {
+                AsyncPacketClient.this.run();
+            }
+        }, "uranion-async-client");
+        this.selectorThread.setDaemon(true);
+        this.selectorThread.start();
+    }
+
+    /**
+     * Opens a connection without waiting for it to be established, requests
+     * sent meanwhile are written once it is. The address may be the one of a
+     * Unix domain socket, see {@link UnixDomainSockets}.
+     */
+    public Connection connect(SocketAddress remoteAddress) throws IOException {
+        if (this.closed) {
+            throw new IOException("client shut down");
+        }
+        SocketChannel channel;
+        if (UnixDomainSockets.isUnixDomain(remoteAddress)) {
+            channel = UnixDomainSockets.openChannel();
+        } else {
+            channel = SocketChannel.open();
+        }
+        this.options.configure(channel);
+        channel.configureBlocking(false);
+        final Connection connection = new Connection(channel);
+        final boolean connected = channel.connect(remoteAddress);
+        this.invokeLater(new Runnable() {
+            public void run() {
+                connection.register(connected);
+            }
+        });
+        return connection;
+    }
+
+    public Connection connect(String host, int port) throws IOException {
+        return this.connect(new InetSocketAddress(host, port));
+    }
+
+    /**
+     * Closes all connections, requests still outstanding fail. Waits for the
+     * selector thread to finish unless called by it.
+     */
+    public void shutdown() throws InterruptedException {
+        this.closed = true;
+        this.selector.wakeup();
+        if (Thread.currentThread() != this.selectorThread) {
+            this.selectorThread.join();
+        }
+    }
+
+    private void invokeLater(Runnable task) {
+        if (this.tasks.offer(task) && Thread.currentThread() != this.selectorThread) {
+            this.selector.wakeup();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!this.closed) {
+                this.tasks.resetSignal();
+                Runnable task;
+                while ((task = this.tasks.poll()) != null) {
+                    task.run();
+                }
+                this.selector.select();
+                Iterator it = this.selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey sk = (SelectionKey) it.next();
+                    it.remove();
+                    if (sk.isValid()) {
+                        ((Connection) sk.attachment()).run();
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // shut down
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            this.close();
+        }
+    }
+
+    private void close() {
+        IOException cause = new IOException("client shut down");
+        Iterator keys = this.selector.keys().iterator();
+        while (keys.hasNext()) {
+            ((Connection) ((SelectionKey) keys.next()).attachment()).fail(cause);
+        }
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        // connections registered meanwhile
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * A connection of the client. The request packets must not be changed
+     * until their responses arrive, as the selector thread writes them later;
+     * the client leaves them unchanged, so the same packet may be sent again
+     * while earlier requests with it are outstanding.
+     */
+    public final class Connection implements PacketProcessor, Runnable {
+
+        private SocketChannel channel;
+
+        private SelectionKey sk;
+
+        /**
+         * Futures or callbacks by correlation id, guarded by itself.
+         */
+        private Map pendingRequests = new HashMap();
+
+        private int lastCorrelationId = Packet.NO_CORRELATION_ID;
+
+        private Throwable failure;
+
+        /**
+         * {@link Outbound} requests not yet handed to a writer, guarded by
+         * the connection.
+         */
+        private LinkedList outbound = new LinkedList();
+
+        private boolean flushQueued;
+
+        private Runnable reader;
+
+        private Runnable writer;
+
+        private TransferSlot readSlot = new TransferSlot() {
+            public void setTransfer(Runnable transfer) {
+                reader = transfer;
+            }
+        };
+
+        private TransferSlot writeSlot = new TransferSlot() {
+            public void setTransfer(Runnable transfer) {
+                writer = transfer;
+            }
+        };
+
+        private PacketCallback receiving = new PacketCallback() {
+            public void handlePacketCallback(Packet response) {
+                received(response);
+            }
+        };
+
+        private Runnable flush = new Runnable() {
+            public void run() {
+                synchronized (Connection.this) {
+                    flushQueued = false;
+                }
+                if (sk != null && sk.isValid() && channel.isConnected()) {
+                    sk.interestOps(sk.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+        };
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Blocks until the response arrives, not to be called from a callback.
+         */
+        public Packet process(Packet packet) throws IOException {
+            try {
+                return this.submit(packet).get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw asIOException(e.getCause());
+            }
+        }
+
+        /**
+         * Sends the request without waiting for its response.
+         */
+        public CompletableFuture<Packet> submit(Packet packet) throws IOException {
+            CompletableFuture<Packet> result = new CompletableFuture<Packet>();
+            this.send(packet, result);
+            return result;
+        }
+
+        /**
+         * Sends the request without waiting for its response. The callback is
+         * invoked by the selector thread and must not block; it gets
+         * <code>null</code> if the connection fails before the response
+         * arrives.
+         */
+        public void send(Packet packet, PacketCallback callback) throws IOException {
+            this.send(packet, (Object) callback);
+        }
+
+        private void send(Packet packet, Object pending) throws IOException {
+            Outbound request = new Outbound(packet, this.register(pending));
+            boolean schedule;
+            synchronized (this) {
+                this.outbound.addLast(request);
+                schedule = !this.flushQueued;
+                this.flushQueued = true;
+            }
+            if (schedule) {
+                invokeLater(this.flush);
+            }
+        }
+
+        /**
+         * Closes the connection, requests still outstanding fail.
+         */
+        public void close() {
+            invokeLater(new Runnable() {
+                public void run() {
+                    fail(new IOException("connection closed"));
+                }
+            });
+        }
+
+        /**
+         * @return the number of requests waiting for their response
+         */
+        public int getOutstandingCount() {
+            synchronized (this.pendingRequests) {
+                return this.pendingRequests.size();
+            }
+        }
+
+        // ---------------------------------------------------------------
+        // Selector thread
+
+        private void register(boolean connected) {
+            if (closed) {
+                this.fail(new IOException("client shut down"));
+                return;
+            }
+            try {
+                this.sk = this.channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                this.fail(e);
+                return;
+            }
+            if (connected) {
+                this.connected();
+            }
+        }
+
+        private void connected() {
+            this.receive();
+            this.sk.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        private void receive() {
+            this.reader = new Packet.AsyncTOCReader(this.receiving, this.sk, Packet.getDefaultAllocator(), this.readSlot);
+        }
+
+        public void run() {
+            try {
+                if (this.sk.isConnectable()) {
+                    this.channel.finishConnect();
+                    this.connected();
+                    return;
+                }
+                if (this.reader != null && this.sk.isReadable()) {
+                    this.reader.run();
+                    if (!this.channel.isOpen()) {
+                        throw new IOException("connection closed by server");
+                    }
+                }
+                if (this.sk.isValid() && this.sk.isWritable()) {
+                    this.write();
+                }
+            } catch (IOException e) {
+                this.fail(e);
+            } catch (RuntimeException e) {
+                this.fail((e.getCause() != null) ? e.getCause() : e);
+            }
+        }
+
+        private void received(Packet response) {
+            Object pending = this.unregister(response.getCorrelationId());
+            this.receive();
+            if (pending == null) {
+                throw new IllegalStateException("unexpected response " + response.getCorrelationId());
+            }
+            if (pending instanceof CompletableFuture) {
+                ((CompletableFuture) pending).complete(response);
+            } else {
+                ((PacketCallback) pending).handlePacketCallback(response);
+            }
+        }
+
+        private void write() {
+            do {
+                if (this.writer == null && !this.nextWriter()) {
+                    return;
+                }
+                this.writer.run();
+            } while (this.writer == null);
+        }
+
+        private boolean nextWriter() {
+            synchronized (this) {
+                if (this.outbound.isEmpty()) {
+                    this.sk.interestOps(this.sk.interestOps() & ~SelectionKey.OP_WRITE);
+                    return false;
+                }
+                Packet.AsyncGatheringWriter batch = new Packet.AsyncGatheringWriter(null, this.sk, this.writeSlot, MAX_WRITE_BUFFERS, MAX_WRITE_BYTES);
+                while (!this.outbound.isEmpty()) {
+                    Outbound next = (Outbound) this.outbound.getFirst();
+                    if (!batch.add(next.packet, next.correlationId)) {
+                        break;
+                    }
+                    this.outbound.removeFirst();
+                }
+                this.writer = batch;
+            }
+            return true;
+        }
+
+        private void fail(Throwable cause) {
+            if (this.sk != null) {
+                this.sk.cancel();
+            }
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+            this.reader = null;
+            this.writer = null;
+            synchronized (this) {
+                this.outbound.clear();
+            }
+            Map failed;
+            synchronized (this.pendingRequests) {
+                if (this.failure == null) {
+                    this.failure = cause;
+                }
+                failed = new HashMap(this.pendingRequests);
+                this.pendingRequests.clear();
+            }
+            Iterator it = failed.values().iterator();
+            while (it.hasNext()) {
+                Object pending = it.next();
+                if (pending instanceof CompletableFuture) {
+                    ((CompletableFuture) pending).completeExceptionally(cause);
+                } else {
+                    ((PacketCallback) pending).handlePacketCallback(null);
+                }
+            }
+        }
+
+        // ---------------------------------------------------------------
+        // Outstanding requests
+
+        private int register(Object pending) throws IOException {
+            synchronized (this.pendingRequests) {
+                if (this.failure != null) {
+                    throw asIOException(this.failure);
+                }
+                Integer correlationId;
+                do {
+                    this.lastCorrelationId++;
+                    correlationId = new Integer(this.lastCorrelationId);
+                } while (this.lastCorrelationId == Packet.NO_CORRELATION_ID || this.pendingRequests.containsKey(correlationId));
+                this.pendingRequests.put(correlationId, pending);
+                return this.lastCorrelationId;
+            }
+        }
+
+        private Object unregister(int correlationId) {
+            synchronized (this.pendingRequests) {
+                return this.pendingRequests.remove(new Integer(correlationId));
+            }
+        }
+
+    } // inner-class
+
+    /**
+     * A request waiting to be written. The correlation id is kept here and
+     * written into the header, the packet itself is left unchanged so it may
+     * be sent several times at once.
+     */
+    private static final class Outbound {
+
+        private Packet packet;
+
+        private int correlationId;
+
+        public Outbound(Packet packet, int correlationId) {
+            this.packet = packet;
+            this.correlationId = correlationId;
+        }
+
+    } // inner-class
+
+    private static IOException asIOException(Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        IOException result = new IOException(String.valueOf(cause));
+        result.initCause(cause);
+        return result;
+    }
+
+}
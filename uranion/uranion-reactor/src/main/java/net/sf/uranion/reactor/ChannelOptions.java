@@ -0,0 +1,47 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+/**
+ * Sets socket options on channels of any kind; options a channel does not
+ * support, like TCP ones on Unix domain sockets, are skipped.
+ */
+final class ChannelOptions {
+
+    private ChannelOptions() {
+    }
+
+    static void set(NetworkChannel channel, SocketOption option, Object value) throws IOException {
+        if (option != null && channel.supportedOptions().contains(option)) {
+            channel.setOption(option, value);
+        }
+    }
+
+    /**
+     * Sets a buffer size option unless the size is <code>0</code>, which
+     * keeps the default of the operating system.
+     */
+    static void setBufferSize(NetworkChannel channel, SocketOption option, int size) throws IOException {
+        if (size > 0) {
+            set(channel, option, new Integer(size));
+        }
+    }
+
+    /**
+     * @return <code>SO_REUSEPORT</code>, <code>null</code> before Java 9;
+     *         looked up reflectively as the build targets older releases
+     */
+    static SocketOption reusePort() {
+        try {
+            return (SocketOption) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (NoSuchFieldException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+}
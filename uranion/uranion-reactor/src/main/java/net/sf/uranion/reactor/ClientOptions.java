@@ -0,0 +1,76 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Socket options of client connections. Options a channel does not support
+ * are skipped, so the same options serve TCP and Unix domain sockets. Large
+ * payloads want buffers of the bandwidth-delay product, see
+ * {@link ServerOptions}.
+ */
+public class ClientOptions {
+
+    private int receiveBufferSize;
+
+    private int sendBufferSize;
+
+    private boolean tcpNoDelay = true;
+
+    private boolean keepAlive = true;
+
+    public int getReceiveBufferSize() {
+        return this.receiveBufferSize;
+    }
+
+    /**
+     * @param size
+     *            <code>0</code> (the default) keeps the default of the
+     *            operating system
+     */
+    public void setReceiveBufferSize(int size) {
+        this.receiveBufferSize = Math.max(0, size);
+    }
+
+    public int getSendBufferSize() {
+        return this.sendBufferSize;
+    }
+
+    /**
+     * @param size
+     *            <code>0</code> (the default) keeps the default of the
+     *            operating system
+     */
+    public void setSendBufferSize(int size) {
+        this.sendBufferSize = Math.max(0, size);
+    }
+
+    public boolean isTcpNoDelay() {
+        return this.tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return this.keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Configures a channel before it connects, so the receive buffer takes
+     * part in the window scale negotiation.
+     */
+    void configure(SocketChannel channel) throws IOException {
+        ChannelOptions.setBufferSize(channel, StandardSocketOptions.SO_RCVBUF, this.receiveBufferSize);
+        ChannelOptions.setBufferSize(channel, StandardSocketOptions.SO_SNDBUF, this.sendBufferSize);
+        ChannelOptions.set(channel, StandardSocketOptions.TCP_NODELAY, Boolean.valueOf(this.tcpNoDelay));
+        ChannelOptions.set(channel, StandardSocketOptions.SO_KEEPALIVE, Boolean.valueOf(this.keepAlive));
+    }
+
+}
@@ -0,0 +1,32 @@
+package net.sf.uranion.reactor;
+
+/**
+ * Decides which {@link ConnectionReactor} takes over a freshly accepted
+ * connection when a {@link PacketReactor} runs in multi-reactor mode.
+ */
+public interface ConnectionBalancer {
+
+    public final static ConnectionBalancer LEAST_CONNECTIONS = new ConnectionBalancer() {
+        public ConnectionReactor select(ConnectionReactor[] reactors) {
+            ConnectionReactor result = reactors[0];
+            int least = result.getConnectionCount();
+            for (int i = 1; i < reactors.length; i++) {
+                int count = reactors[i].getConnectionCount();
+                if (count < least) {
+                    least = count;
+                    result = reactors[i];
+                }
+            }
+            return result;
+        }
+    };
+
+    /**
+     * Only ever called from the acceptor thread.
+     * 
+     * @param reactors
+     *            the worker reactors, never empty
+     * @return the reactor the next connection is handed to
+     */
+    public ConnectionReactor select(ConnectionReactor[] reactors);
+}
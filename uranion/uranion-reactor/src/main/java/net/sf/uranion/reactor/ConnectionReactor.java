@@ -0,0 +1,1049 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.uranion.packet.Packet;
+import net.sf.uranion.packet.PacketCallback;
+import net.sf.uranion.packet.PacketStreamCallback;
+import net.sf.uranion.packet.TransferSlot;
+
+/**
+ * A selector loop driving the connections it owns through the
+ * <code>Receiving -> Processing -> Sending -> Finished</code> stages, several
+ * requests of a connection may be in different stages at once. Each
+ * reactor runs on its own thread; connections are handed over by the acceptor
+ * through {@link #register(SocketChannel)}.
+ * <p>
+ * Other threads never touch the selector or its keys, they queue tasks which
+ * the reactor thread runs before it selects again. The selector is only woken
+ * up by the first task queued while the reactor is busy or waiting.
+ */
+public class ConnectionReactor implements Runnable {
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    private static final int DEFAULT_MAX_WRITE_BUFFERS = 64;
+
+    private static final int DEFAULT_MAX_WRITE_BYTES = 256 * 1024;
+
+    private static final int DEFAULT_STREAM_CHUNK_SIZE = 64 * 1024;
+
+    private static final int STREAM_CHUNKS = 2;
+
+    private static final long TIMER_TICK = 100;
+
+    private static final int TIMER_TICKS = 512;
+
+    /**
+     * The period the minimum throughput is measured over.
+     */
+    private static final long THROUGHPUT_WINDOW = 1000;
+
+    /**
+     * The incomplete writes in a row after which a send buffer is grown.
+     */
+    private static final int PARTIAL_WRITES_TO_GROW = 3;
+
+    private AbstractServer server;
+
+    private Selector selector;
+
+    private Thread reactorThread;
+
+    private TaskQueue tasks = new TaskQueue();
+
+    private AtomicInteger pendingConnections = new AtomicInteger();
+
+    private volatile int connectionCount;
+
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    private int maxWriteBuffers = DEFAULT_MAX_WRITE_BUFFERS;
+
+    private int maxWriteBytes = DEFAULT_MAX_WRITE_BYTES;
+
+    private int streamChunkSize = DEFAULT_STREAM_CHUNK_SIZE;
+
+    private WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+
+    private TimingWheel timers = new TimingWheel(TIMER_TICK, TIMER_TICKS, now());
+
+    private long idleTimeout;
+
+    private long readTimeout;
+
+    private long writeTimeout;
+
+    private int minThroughput;
+
+    private StripedCounter selectorLoops;
+
+    private StripedCounter selectorWakeups;
+
+    private LatencyHistogram dispatchTime;
+
+    private StripedCounter packetsIn;
+
+    private StripedCounter bytesIn;
+
+    private StripedCounter packetsOut;
+
+    private StripedCounter bytesOut;
+
+    private StripedCounter connectionsTimedOut;
+
+    private StripedCounter sendBuffersGrown;
+
+    /**
+     * The send buffer connections are configured with, <code>0</code> for the
+     * default of the system.
+     */
+    private int initialSendBufferSize;
+
+    /**
+     * The send buffer connections may grow to, <code>0</code> if they keep
+     * theirs.
+     */
+    private int maxSendBufferSize;
+
+    ConnectionReactor(AbstractServer server) throws IOException {
+        super();
+        this.server = server;
+        this.selector = Selector.open();
+        MetricsRegistry metrics = server.getMetrics();
+        this.selectorLoops = metrics.counter("selector.loops");
+        this.selectorWakeups = metrics.counter("selector.wakeups");
+        this.dispatchTime = metrics.histogram("selector.dispatch");
+        this.packetsIn = metrics.counter("packets.in");
+        this.bytesIn = metrics.counter("bytes.in");
+        this.packetsOut = metrics.counter("packets.out");
+        this.bytesOut = metrics.counter("bytes.out");
+        this.connectionsTimedOut = metrics.counter("connections.timedout");
+        this.sendBuffersGrown = metrics.counter("connections.sndbuf.grown");
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    Selector getSelector() {
+        return this.selector;
+    }
+
+    public boolean hasActiveConnections() {
+        try {
+            return !this.selector.keys().isEmpty();
+        } catch (ClosedSelectorException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Limits the requests of a single connection being processed or waiting to
+     * be written; reading from the connection pauses until responses drain.
+     */
+    void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Limits how many queued responses are coalesced into one gathering write,
+     * a single response is always written regardless of its size.
+     */
+    void setWriteBatchLimits(int maxBuffers, int maxBytes) {
+        this.maxWriteBuffers = maxBuffers;
+        this.maxWriteBytes = maxBytes;
+    }
+
+    /**
+     * Sets the size of the buffers requests are streamed in to a
+     * {@link StreamingPacketProcessor}.
+     */
+    void setStreamChunkSize(int chunkSize) {
+        this.streamChunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Sets how the reactor waits for I/O, {@link WaitStrategy#BLOCKING} by
+     * default.
+     */
+    void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Sets the deadlines connections are closed after, <code>0</code>
+     * disables one.
+     * 
+     * @param idleTimeout
+     *            for connections with no request in progress
+     * @param readTimeout
+     *            for reading a request once its first byte has arrived
+     * @param writeTimeout
+     *            for writing a batch of responses
+     */
+    void setTimeouts(long idleTimeout, long readTimeout, long writeTimeout) {
+        this.idleTimeout = Math.max(0, idleTimeout);
+        this.readTimeout = Math.max(0, readTimeout);
+        this.writeTimeout = Math.max(0, writeTimeout);
+    }
+
+    /**
+     * Closes connections reading a request or writing responses slower than
+     * the given rate, measured every second; <code>0</code> to disable.
+     */
+    void setMinThroughput(int bytesPerSecond) {
+        this.minThroughput = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * Lets connections double their send buffer up to the given size when
+     * their writes keep being left incomplete, <code>0</code> to disable.
+     * 
+     * @param initialSize
+     *            the send buffer the connections are configured with,
+     *            <code>0</code> for the default of the system
+     */
+    void setAdaptiveSendBuffer(int initialSize, int maxSize) {
+        this.initialSendBufferSize = Math.max(0, initialSize);
+        this.maxSendBufferSize = Math.max(0, maxSize);
+    }
+
+    /**
+     * @return the number of connections owned by this reactor, including the
+     *         ones not yet registered with the selector
+     */
+    public int getConnectionCount() {
+        return this.connectionCount + this.pendingConnections.get();
+    }
+
+    /**
+     * Takes over an accepted, non-blocking connection. May be called from any
+     * thread; the channel is registered by the reactor thread itself.
+     */
+    void register(SocketChannel client) throws ClosedChannelException {
+        if (Thread.currentThread() == this.reactorThread) {
+            this.activate(client);
+        } else {
+            this.pendingConnections.incrementAndGet();
+            this.invokeLater(new Registration(client));
+        }
+    }
+
+    /**
+     * Runs the task on the reactor thread before it selects again. May be
+     * called from any thread.
+     */
+    void invokeLater(Runnable task) {
+        if (this.tasks.offer(task) && Thread.currentThread() != this.reactorThread) {
+            this.selectorWakeups.increment();
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * @param resetSignal
+     *            whether tasks queued from here on wake the selector up, which
+     *            is only needed if the reactor blocks in it
+     * @return true if any task has been run
+     */
+    private boolean runTasks(boolean resetSignal) {
+        if (resetSignal) {
+            this.tasks.resetSignal();
+        }
+        boolean ran = false;
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            task.run();
+            ran = true;
+        }
+        return ran;
+    }
+
+    private void activate(SocketChannel client) throws ClosedChannelException {
+        SelectionKey sk = client.register(this.selector, 0);
+        Connection connection = new Connection(sk);
+        sk.attach(connection);
+        connection.receive();
+        connection.watch(now());
+    }
+
+    /**
+     * Stops the reactor, closing its connections.
+     */
+    void shutdown() throws IOException {
+        Thread thread = this.reactorThread;
+        if (thread != null) {
+            // the reactor thread closes up on its way out
+            thread.interrupt();
+        } else {
+            this.close();
+        }
+    }
+
+    private void close() {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            if (task instanceof Registration) {
+                ((Registration) task).close();
+            }
+        }
+        try {
+            Iterator keys = this.selector.keys().iterator();
+            while (keys.hasNext()) {
+                ((SelectionKey) keys.next()).channel().close();
+            }
+            this.selector.close();
+        } catch (ClosedSelectorException e) {
+            // closed already
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    public void run() {
+        try {
+            this.reactorThread = Thread.currentThread();
+            int idle = 0;
+            while (!Thread.interrupted() && this.selector.isOpen()) {
+                boolean block = this.waitStrategy.block(idle);
+                boolean ran = this.runTasks(block);
+                this.connectionCount = this.selector.keys().size();
+                int ready;
+                if (!block) {
+                    ready = this.selector.selectNow();
+                } else if (this.timers.isEmpty()) {
+                    ready = this.selector.select();
+                } else {
+                    ready = this.selector.select(this.timers.getTickDelay(now()));
+                }
+                this.selectorLoops.increment();
+                if (ready > 0 || ran) {
+                    idle = 0;
+                } else if (idle < Integer.MAX_VALUE) {
+                    idle++;
+                }
+                Set selected = selector.selectedKeys();
+                Iterator it = selected.iterator();
+                while (it.hasNext()) {
+                    SelectionKey sk = (SelectionKey) it.next();
+                    if (sk.isValid()) {
+                        this.dispatch(sk);
+                    } else {
+                        sk.cancel();
+                    }
+                    it.remove();
+                }
+                if (!this.timers.isEmpty()) {
+                    this.timers.expire(now());
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // shut down
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            this.reactorThread = null;
+            this.close();
+        }
+    }
+
+    /**
+     * Registers a connection handed over by another thread.
+     */
+    private final class Registration implements Runnable {
+
+        private SocketChannel client;
+
+        public Registration(SocketChannel client) {
+            this.client = client;
+        }
+
+        public void run() {
+            try {
+                activate(this.client);
+            } catch (ClosedChannelException e) {
+                // client went away before we got hold of it
+            }
+            // counted as registered before it stops counting as pending, the
+            // balancer would see one connection too few otherwise
+            connectionCount = selector.keys().size();
+            pendingConnections.decrementAndGet();
+        }
+
+        public void close() {
+            pendingConnections.decrementAndGet();
+            try {
+                this.client.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+
+    } // inner-class
+
+    private void dispatch(SelectionKey key) {
+        Runnable task = (Runnable) key.attachment();
+        if (task != null) {
+            long start = System.nanoTime();
+            task.run();
+            this.dispatchTime.record(System.nanoTime() - start);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Connection stages
+
+    /**
+     * Full-duplex state of a connection. The next request is read while earlier
+     * ones are still processed, responses are queued and written as they
+     * complete. Requests without a correlation id are answered before the
+     * next one is read, as their responses could not be matched otherwise.
+     * <p>
+     * With a {@link StreamingPacketProcessor} requests are handed over in
+     * chunks while they are read. Reading stalls while the processor still
+     * holds all the chunk buffers of the connection.
+     * <p>
+     * A timer of the reactor checks the timeouts of the connection; they only
+     * apply while the connection waits for its client, not for the
+     * processor.
+     */
+    private final class Connection implements Runnable {
+
+        private SelectionKey sk;
+
+        private Runnable reader;
+
+        private Runnable writer;
+
+        /**
+         * The responses queued for writing, as {@link Sending} entries.
+         */
+        private LinkedList outbound = new LinkedList();
+
+        /**
+         * The responses of the batch being written.
+         */
+        private LinkedList writing = new LinkedList();
+
+        private int inFlight;
+
+        private boolean ordered;
+
+        /**
+         * Set while a request waits for room in the processing queue.
+         */
+        private boolean paused;
+
+        private LinkedList freeChunks;
+
+        private boolean chunkStalled;
+
+        /**
+         * Interest changes requested by other threads and not yet applied by
+         * the reactor thread, guarded by the connection.
+         */
+        private int interestSet;
+
+        private int interestCleared;
+
+        private boolean interestQueued;
+
+        /**
+         * Set when a response has been queued on the reactor thread, it is
+         * written without waiting for the selector.
+         */
+        private boolean flush;
+
+        /**
+         * Progress for the timeouts, in milliseconds; a start of
+         * <code>0</code> means no request is being read or no batch written.
+         */
+        private long lastActivity;
+
+        private long readStart;
+
+        private long writeStart;
+
+        private long windowStart;
+
+        private long windowBytes;
+
+        /**
+         * Consecutive writes the socket did not take completely.
+         */
+        private int partialWrites;
+
+        /**
+         * The send buffer requested last, <code>0</code> until grown.
+         */
+        private int sendBufferSize;
+
+        private TimingWheel.Timeout timer = new TimingWheel.Timeout() {
+            protected void run(long now) {
+                check(now);
+            }
+        };
+
+        private final Runnable applyInterest = new Runnable() {
+            public void run() {
+                int set;
+                int cleared;
+                synchronized (Connection.this) {
+                    set = interestSet;
+                    cleared = interestCleared;
+                    interestSet = 0;
+                    interestCleared = 0;
+                    interestQueued = false;
+                }
+                updateInterest(set, cleared);
+            }
+        };
+
+        private TransferSlot readSlot = new TransferSlot() {
+            public void setTransfer(Runnable transfer) {
+                reader = transfer;
+            }
+
+            public void transferred(long count) {
+                progress(count);
+                if (readStart == 0) {
+                    readStart = lastActivity;
+                    startPhase();
+                }
+            }
+        };
+
+        private TransferSlot writeSlot = new TransferSlot() {
+            public void setTransfer(Runnable transfer) {
+                writer = transfer;
+            }
+
+            public void transferred(long count) {
+                progress(count);
+            }
+        };
+
+        public Connection(SelectionKey sk) {
+            this.sk = sk;
+        }
+
+        public void run() {
+            try {
+                if (this.reader != null && this.sk.isReadable()) {
+                    this.reader.run();
+                    if (!this.sk.channel().isOpen()) {
+                        // closed by the client
+                        this.close();
+                        return;
+                    }
+                }
+                if (this.sk.isValid() && (this.flush || this.sk.isWritable())) {
+                    this.flush = false;
+                    this.write();
+                }
+            } catch (RuntimeException e) {
+                this.close();
+            }
+        }
+
+        private boolean canReceive() {
+            return !this.paused && !this.ordered && this.inFlight < maxInFlight;
+        }
+
+        private void receive() {
+            if (server.getProcessor() instanceof StreamingPacketProcessor) {
+                this.reader = new Packet.AsyncTOCReader(new Streaming(), this.sk, Packet.getDefaultAllocator(), this.readSlot);
+            } else {
+                this.reader = new Packet.AsyncTOCReader(new Processing(), this.sk, Packet.getDefaultAllocator(), this.readSlot);
+            }
+            this.changeInterest(SelectionKey.OP_READ, true);
+        }
+
+        private void received(Packet packet) {
+            packetsIn.increment();
+            bytesIn.add(packet.getWireSize());
+            this.inFlight++;
+            this.ordered = packet.getCorrelationId() == Packet.NO_CORRELATION_ID;
+            this.readStart = 0;
+        }
+
+        private void receiveNext() {
+            if (this.canReceive()) {
+                this.receive();
+            } else {
+                this.changeInterest(SelectionKey.OP_READ, false);
+            }
+        }
+
+        private ByteBuffer acquireChunk() {
+            synchronized (this) {
+                if (this.freeChunks == null) {
+                    this.freeChunks = new LinkedList();
+                    for (int i = 0; i < STREAM_CHUNKS; i++) {
+                        this.freeChunks.add(ByteBuffer.allocate(streamChunkSize));
+                    }
+                }
+                if (this.freeChunks.isEmpty()) {
+                    this.chunkStalled = true;
+                    this.changeInterest(SelectionKey.OP_READ, false);
+                    return null;
+                }
+                return (ByteBuffer) this.freeChunks.removeFirst();
+            }
+        }
+
+        private void releaseChunk(ByteBuffer chunk) {
+            synchronized (this) {
+                this.freeChunks.addLast(chunk);
+                if (this.chunkStalled) {
+                    this.chunkStalled = false;
+                    this.changeInterest(SelectionKey.OP_READ, true);
+                }
+            }
+        }
+
+        private void write() {
+            do {
+                if (this.writer == null && !this.nextWriter()) {
+                    return;
+                }
+                this.writer.run();
+                if (this.writer == null) {
+                    this.writeStart = 0;
+                    this.partialWrites = 0;
+                } else {
+                    this.partialWrite();
+                }
+            } while (this.writer == null);
+        }
+
+        /**
+         * The socket took only part of a batch. Grows the send buffer if that
+         * keeps happening, so large responses need fewer selector rounds.
+         */
+        private void partialWrite() {
+            if (maxSendBufferSize == 0 || ++this.partialWrites < PARTIAL_WRITES_TO_GROW) {
+                return;
+            }
+            this.partialWrites = 0;
+            SocketChannel channel = (SocketChannel) this.sk.channel();
+            try {
+                if (this.sendBufferSize == 0) {
+                    // not read back if configured, Linux reports twice the size
+                    this.sendBufferSize = (initialSendBufferSize > 0) ? initialSendBufferSize : channel.getOption(StandardSocketOptions.SO_SNDBUF).intValue();
+                }
+                if (this.sendBufferSize >= maxSendBufferSize) {
+                    return;
+                }
+                this.sendBufferSize = (int) Math.min(2L * this.sendBufferSize, maxSendBufferSize);
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, new Integer(this.sendBufferSize));
+                sendBuffersGrown.increment();
+            } catch (IOException e) {
+                // keeps its buffer, the write fails on its own if broken
+            }
+        }
+
+        /**
+         * Batches as many queued responses as the write limits allow.
+         */
+        private boolean nextWriter() {
+            synchronized (this) {
+                if (this.outbound.isEmpty()) {
+                    this.changeInterest(SelectionKey.OP_WRITE, false);
+                    return false;
+                }
+                Packet.AsyncGatheringWriter batch = new Packet.AsyncGatheringWriter(new Finished(), this.sk, this.writeSlot, maxWriteBuffers, maxWriteBytes);
+                while (!this.outbound.isEmpty()) {
+                    Sending next = (Sending) this.outbound.getFirst();
+                    if (!batch.add(next.written, next.correlationId)) {
+                        break;
+                    }
+                    this.writing.addLast(this.outbound.removeFirst());
+                }
+                this.writer = batch;
+            }
+            this.writeStart = now();
+            this.startPhase();
+            return true;
+        }
+
+        // ---------------------------------------------------------------
+        // Timeouts
+
+        private void progress(long count) {
+            this.lastActivity = now();
+            this.windowBytes += count;
+        }
+
+        /**
+         * Starts watching the connection, called once it is registered.
+         */
+        private void watch(long now) {
+            this.lastActivity = now;
+            this.windowStart = now;
+            this.rearm(now);
+        }
+
+        /**
+         * A request has started to arrive or a batch to be written.
+         */
+        private void startPhase() {
+            long now = now();
+            if (this.readStart == 0 || this.writeStart == 0) {
+                // the only phase, measure its throughput on its own
+                this.windowStart = now;
+                this.windowBytes = 0;
+            }
+            this.rearm(now);
+        }
+
+        private boolean isIdle() {
+            return this.readStart == 0 && this.writeStart == 0 && this.inFlight == 0;
+        }
+
+        /**
+         * Schedules the timer for the earliest deadline, unless it is
+         * scheduled earlier already.
+         */
+        private void rearm(long now) {
+            boolean reading = this.readStart != 0 && !this.chunkStalled;
+            boolean writing = this.writeStart != 0;
+            long next = Long.MAX_VALUE;
+            if (idleTimeout > 0) {
+                next = (this.isIdle() ? this.lastActivity : now) + idleTimeout;
+            }
+            if (reading && readTimeout > 0) {
+                next = Math.min(next, this.readStart + readTimeout);
+            }
+            if (writing && writeTimeout > 0) {
+                next = Math.min(next, this.writeStart + writeTimeout);
+            }
+            if ((reading || writing) && minThroughput > 0) {
+                next = Math.min(next, this.windowStart + THROUGHPUT_WINDOW);
+            }
+            if (next != Long.MAX_VALUE && (!this.timer.isScheduled() || next < this.timer.getDeadline())) {
+                timers.schedule(this.timer, next);
+            }
+        }
+
+        private void check(long now) {
+            if (!this.sk.isValid()) {
+                this.close();
+                return;
+            }
+            boolean reading = this.readStart != 0 && !this.chunkStalled;
+            boolean writing = this.writeStart != 0;
+            boolean expired = false;
+            if (reading && readTimeout > 0 && now - this.readStart >= readTimeout) {
+                expired = true;
+            } else if (writing && writeTimeout > 0 && now - this.writeStart >= writeTimeout) {
+                expired = true;
+            } else if (idleTimeout > 0 && this.isIdle() && now - this.lastActivity >= idleTimeout) {
+                expired = true;
+            } else if ((reading || writing) && minThroughput > 0 && now - this.windowStart >= THROUGHPUT_WINDOW) {
+                expired = this.windowBytes * 1000 / (now - this.windowStart) < minThroughput;
+                this.windowStart = now;
+                this.windowBytes = 0;
+            }
+            if (expired) {
+                connectionsTimedOut.increment();
+                this.close();
+                return;
+            }
+            this.rearm(now);
+        }
+
+        /**
+         * Applies the change right away on the reactor thread, other threads
+         * queue it; changes queued before the reactor gets to them are merged.
+         */
+        private void changeInterest(int interest, boolean enabled) {
+            if (Thread.currentThread() == reactorThread) {
+                this.updateInterest(enabled ? interest : 0, enabled ? 0 : interest);
+                return;
+            }
+            synchronized (this) {
+                if (enabled) {
+                    this.interestSet |= interest;
+                    this.interestCleared &= ~interest;
+                } else {
+                    this.interestCleared |= interest;
+                    this.interestSet &= ~interest;
+                }
+                if (this.interestQueued) {
+                    return;
+                }
+                this.interestQueued = true;
+            }
+            invokeLater(this.applyInterest);
+        }
+
+        private void updateInterest(int set, int cleared) {
+            if (!this.sk.isValid()) {
+                return;
+            }
+            try {
+                int ops = this.sk.interestOps();
+                this.sk.interestOps((ops | set) & ~cleared);
+            } catch (CancelledKeyException e) {
+                // closed meanwhile
+            }
+        }
+
+        /**
+         * Closes the connection and releases its buffers, on the reactor
+         * thread as the transfers belong to it.
+         */
+        private void close() {
+            if (reactorThread != null && Thread.currentThread() != reactorThread) {
+                invokeLater(new Runnable() {
+                    public void run() {
+                        close();
+                    }
+                });
+                return;
+            }
+            timers.cancel(this.timer);
+            this.sk.cancel();
+            try {
+                this.sk.channel().close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+            synchronized (this) {
+                while (!this.outbound.isEmpty()) {
+                    ((Sending) this.outbound.removeFirst()).release();
+                }
+            }
+            Packet.abortTransfer(this.reader);
+            Packet.abortTransfer(this.writer);
+            this.reader = null;
+            this.writer = null;
+            while (!this.writing.isEmpty()) {
+                ((Sending) this.writing.removeFirst()).release();
+            }
+        }
+
+        /**
+         * A request has been read, hand it to the processor pool and go on
+         * reading unless the connection has too many requests in flight.
+         */
+        private final class Processing implements PacketCallback {
+
+            public void handlePacketCallback(final Packet packet) {
+                received(packet);
+                admit(packet);
+            }
+
+            private void admit(final Packet packet) {
+                paused = !server.process(new Sending(packet), packet);
+                if (!paused) {
+                    receiveNext();
+                    return;
+                }
+                changeInterest(SelectionKey.OP_READ, false);
+                server.awaitCapacity(new Runnable() {
+                    public void run() {
+                        invokeLater(new Runnable() {
+                            public void run() {
+                                if (sk.isValid()) {
+                                    admit(packet);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+
+        } // inner-class
+
+        /**
+         * A request streamed to the processor while it is read. Opening the
+         * stream, the chunks and its completion are queued as processor jobs
+         * and run one after the other.
+         */
+        private final class Streaming implements PacketStreamCallback, Runnable {
+
+            private LinkedList jobs = new LinkedList();
+
+            private boolean running;
+
+            private PacketStream stream;
+
+            private boolean failed;
+
+            public void handleHeader(final Packet header) {
+                this.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            stream = ((StreamingPacketProcessor) server.getProcessor()).open(header);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+            }
+
+            public ByteBuffer acquireChunk() {
+                return Connection.this.acquireChunk();
+            }
+
+            public void handleChunk(Packet header, final int position, final long offset, final ByteBuffer chunk) {
+                this.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            if (!failed) {
+                                stream.handleChunk(position, offset, chunk);
+                            }
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        } finally {
+                            releaseChunk(chunk);
+                        }
+                    }
+                });
+            }
+
+            public void handleEnd(final Packet header) {
+                received(header);
+                this.submit(new Runnable() {
+                    public void run() {
+                        if (failed) {
+                            return;
+                        }
+                        try {
+                            new Sending(header).handlePacketCallback(stream.complete());
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+                receiveNext();
+            }
+
+            private void submit(Runnable job) {
+                synchronized (this) {
+                    this.jobs.addLast(job);
+                    if (this.running) {
+                        return;
+                    }
+                    this.running = true;
+                }
+                server.execute(this);
+            }
+
+            public void run() {
+                while (true) {
+                    Runnable job;
+                    synchronized (this) {
+                        if (this.jobs.isEmpty()) {
+                            this.running = false;
+                            return;
+                        }
+                        job = (Runnable) this.jobs.removeFirst();
+                    }
+                    try {
+                        job.run();
+                    } catch (RuntimeException e) {
+                        this.failed = true;
+                        close();
+                    }
+                }
+            }
+
+        } // inner-class
+
+        /**
+         * Called by the processor pool, or by the reactor thread for inline
+         * processors and rejections; queues the response for writing. The
+         * response is written with the correlation id of its request, which is
+         * kept here rather than set on the response, as processors may return
+         * the same packet for several requests.
+         */
+        private final class Sending implements PacketCallback {
+
+            private Packet request;
+
+            private int correlationId;
+
+            private Packet response;
+
+            /**
+             * The response as written, a compressed copy of it if the server
+             * compresses responses.
+             */
+            private Packet written;
+
+            public Sending(Packet request) {
+                this.request = request;
+                this.correlationId = request.getCorrelationId();
+            }
+
+            public void handlePacketCallback(Packet packet) {
+                Packet result = (packet == null) ? Packet.EMPTY_PACKET : packet;
+                // compressed by the processor thread, not the reactor thread
+                Packet written = (Thread.currentThread() == reactorThread) ? result : server.compressResponse(result);
+                synchronized (Connection.this) {
+                    this.response = result;
+                    this.written = written;
+                    if (!sk.isValid()) {
+                        this.release();
+                        return;
+                    }
+                    outbound.addLast(this);
+                }
+                if (Thread.currentThread() == reactorThread) {
+                    flush = true;
+                }
+                changeInterest(SelectionKey.OP_WRITE, true);
+            }
+
+            /**
+             * Disposes the compressed copy and the response if it is the
+             * request, which this connection has read and owns. Any other
+             * response belongs to the processor, which may hand it out again.
+             */
+            public void release() {
+                if (this.written != this.response) {
+                    this.written.dispose();
+                }
+                if (this.response == this.request) {
+                    this.response.dispose();
+                }
+            }
+
+        } // inner-class
+
+        private final class Finished implements PacketCallback {
+
+            public void handlePacketCallback(Packet packet) {
+                Sending sent = (Sending) writing.removeFirst();
+                if (sent.correlationId == Packet.NO_CORRELATION_ID) {
+                    ordered = false;
+                }
+                packetsOut.increment();
+                bytesOut.add(packet.getWireSize(sent.correlationId));
+                sent.release();
+                inFlight--;
+                if (reader == null && canReceive()) {
+                    receive();
+                }
+            }
+        } // inner-class
+
+    } // inner-class
+
+}
@@ -0,0 +1,10 @@
+package net.sf.uranion.reactor;
+
+/**
+ * A value computed when metrics are read.
+ */
+public interface Gauge {
+
+    public long getValue();
+
+}
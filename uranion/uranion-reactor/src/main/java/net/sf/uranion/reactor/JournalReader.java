@@ -0,0 +1,96 @@
+package net.sf.uranion.reactor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.sf.uranion.packet.Packet;
+import net.sf.uranion.packet.PacketException;
+
+/**
+ * Reads the records of a {@link PacketJournal} directory in order. Segments
+ * are mapped read-only and the packets read are views of the mapping, nothing
+ * is copied; a packet stays valid as long as it is referenced.
+ */
+public class JournalReader {
+
+    private File[] segments;
+
+    private int segmentIndex = -1;
+
+    private ByteBuffer segment;
+
+    private Packet packet;
+
+    private long timestamp;
+
+    public JournalReader(File directory) {
+        super();
+        this.segments = PacketJournal.listSegments(directory);
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false if there is none
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (this.segment != null && this.segment.remaining() >= PacketJournal.RECORD_HEADER_SIZE) {
+                int position = this.segment.position();
+                int size = this.segment.getInt(position);
+                if (size > 0) {
+                    if (size > this.segment.remaining() - PacketJournal.RECORD_HEADER_SIZE) {
+                        throw new PacketException("journal record truncated");
+                    }
+                    this.timestamp = this.segment.getLong(position + 4);
+                    ByteBuffer record = this.segment.duplicate();
+                    record.position(position + PacketJournal.RECORD_HEADER_SIZE).limit(position + PacketJournal.RECORD_HEADER_SIZE + size);
+                    this.packet = new Packet(record.slice());
+                    this.segment.position(record.limit());
+                    return true;
+                }
+            }
+            if (!this.openNextSegment()) {
+                this.packet = null;
+                return false;
+            }
+        }
+    }
+
+    private boolean openNextSegment() throws IOException {
+        this.segment = null;
+        if (++this.segmentIndex >= this.segments.length) {
+            return false;
+        }
+        RandomAccessFile file = new RandomAccessFile(this.segments[this.segmentIndex], "r");
+        try {
+            this.segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+        if (this.segment.remaining() < PacketJournal.SEGMENT_HEADER_SIZE || this.segment.getInt(0) != PacketJournal.SEGMENT_MAGIC) {
+            throw new PacketException("not a journal segment: " + this.segments[this.segmentIndex]);
+        }
+        this.segment.position(PacketJournal.SEGMENT_HEADER_SIZE);
+        return true;
+    }
+
+    /**
+     * @return the packet of the current record
+     */
+    public Packet getPacket() {
+        return this.packet;
+    }
+
+    /**
+     * @return the time the current record has been appended at, in
+     *         nanoseconds since the epoch
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+}
@@ -0,0 +1,136 @@
+package net.sf.uranion.reactor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+import net.sf.uranion.packet.Packet;
+
+/**
+ * Replays the packets of a {@link PacketJournal} against a processor or a
+ * remote reactor, at the recorded rate, faster, or as fast as possible. Used
+ * to load test new processor builds with recorded traffic:
+ *
+ * <pre>
+ * java net.sf.uranion.reactor.JournalReplay &lt;directory&gt; &lt;host&gt; &lt;port&gt; [speed] [connections]
+ * </pre>
+ */
+public class JournalReplay {
+
+    /**
+     * Replays as fast as possible.
+     */
+    public static final double MAX_SPEED = 0;
+
+    private File directory;
+
+    private double speed;
+
+    private long firstTimestamp;
+
+    private long start;
+
+    /**
+     * @param speed
+     *            <code>1</code> for the recorded rate, <code>2</code> for
+     *            twice as fast, {@link #MAX_SPEED} to not wait at all
+     */
+    public JournalReplay(File directory, double speed) {
+        super();
+        this.directory = directory;
+        this.speed = speed;
+    }
+
+    /**
+     * Hands the packets to the processor one by one. The responses are left
+     * alone, they belong to the processor which may hand them out again.
+     *
+     * @return the number of packets replayed
+     */
+    public long replay(PacketProcessor processor) throws IOException {
+        JournalReader reader = new JournalReader(this.directory);
+        long count = 0;
+        while (reader.next()) {
+            this.pace(count, reader.getTimestamp());
+            processor.process(reader.getPacket());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Sends the packets through the pool without waiting for the responses,
+     * so the recorded rate is kept even while the server falls behind.
+     * Returns once all responses have arrived.
+     *
+     * @return the number of packets replayed
+     */
+    public long replay(PacketClientPool pool) throws IOException {
+        JournalReader reader = new JournalReader(this.directory);
+        LinkedList outstanding = new LinkedList();
+        long count = 0;
+        while (reader.next()) {
+            this.pace(count, reader.getTimestamp());
+            outstanding.addLast(pool.submit(reader.getPacket()));
+            count++;
+            // collect the responses which already arrived
+            while (!outstanding.isEmpty() && ((Future) outstanding.getFirst()).isDone()) {
+                await((Future) outstanding.removeFirst());
+            }
+        }
+        while (!outstanding.isEmpty()) {
+            await((Future) outstanding.removeFirst());
+        }
+        return count;
+    }
+
+    private static void await(Future response) throws IOException {
+        try {
+            ((Packet) response.get()).dispose();
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /**
+     * Waits until the record is due.
+     */
+    private void pace(long index, long timestamp) {
+        long now = System.nanoTime();
+        if (index == 0) {
+            this.firstTimestamp = timestamp;
+            this.start = now;
+            return;
+        }
+        if (this.speed <= MAX_SPEED) {
+            return;
+        }
+        long due = this.start + (long) ((timestamp - this.firstTimestamp) / this.speed);
+        while (now < due) {
+            LockSupport.parkNanos(due - now);
+            now = System.nanoTime();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("usage: JournalReplay <directory> <host> <port> [speed] [connections]");
+            System.exit(1);
+        }
+        double speed = (args.length > 3) ? Double.parseDouble(args[3]) : 1;
+        int connections = (args.length > 4) ? Integer.parseInt(args[4]) : 4;
+        PacketClientPool pool = new PacketClientPool(new InetSocketAddress(args[1], Integer.parseInt(args[2])), 1, connections);
+        long start = System.currentTimeMillis();
+        long count = new JournalReplay(new File(args[0]), speed).replay(pool);
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println(count + " packets in " + millis + " ms, " + (count * 1000 / millis) + " packets/s");
+        pool.shutdown();
+    }
+
+}
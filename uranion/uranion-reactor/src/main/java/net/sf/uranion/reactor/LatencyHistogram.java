@@ -0,0 +1,121 @@
+package net.sf.uranion.reactor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records non-negative values, typically latencies in nanoseconds, into
+ * log-linear buckets: every power of two is split into
+ * {@value #SUB_BUCKETS} buckets, so percentiles are off by less than 13%
+ * over the whole range. Like a {@link StripedCounter} the histogram is
+ * striped by the recording thread, so recording takes a few uncontended
+ * atomic updates and never allocates; reads merge all stripes.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private static final int COUNT = 0;
+
+    private static final int SUM = 1;
+
+    private static final int MAX = 2;
+
+    /**
+     * The count, sum and max of a stripe, padded to a cache line so they do
+     * not share one with the buckets of the stripe before.
+     */
+    private static final int HEADER = 8;
+
+    private static final int STRIPE = HEADER + BUCKETS;
+
+    private final AtomicLongArray stripes = new AtomicLongArray(StripedCounter.STRIPES * STRIPE);
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the largest value falling into the bucket
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void record(long value) {
+        int stripe = StripedCounter.stripe() * STRIPE;
+        this.stripes.incrementAndGet(stripe + HEADER + bucketOf(value));
+        this.stripes.incrementAndGet(stripe + COUNT);
+        this.stripes.addAndGet(stripe + SUM, value);
+        long max;
+        while (value > (max = this.stripes.get(stripe + MAX)) && !this.stripes.compareAndSet(stripe + MAX, max, value)) {
+            // retry
+        }
+    }
+
+    private long sum(int slot) {
+        long sum = 0;
+        for (int stripe = 0; stripe < this.stripes.length(); stripe += STRIPE) {
+            sum += this.stripes.get(stripe + slot);
+        }
+        return sum;
+    }
+
+    public long getCount() {
+        return this.sum(COUNT);
+    }
+
+    public long getMean() {
+        long count = this.getCount();
+        return (count == 0) ? 0 : this.sum(SUM) / count;
+    }
+
+    public long getMax() {
+        long max = 0;
+        for (int stripe = 0; stripe < this.stripes.length(); stripe += STRIPE) {
+            max = Math.max(max, this.stripes.get(stripe + MAX));
+        }
+        return max;
+    }
+
+    /**
+     * @param percentile
+     *            between <code>0</code> and <code>100</code>
+     * @return the value the given percentage of the recorded values does not
+     *         exceed, approximately
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int stripe = 0; stripe < this.stripes.length(); stripe += STRIPE) {
+            for (int i = 0; i < counts.length; i++) {
+                long count = this.stripes.get(stripe + HEADER + i);
+                counts[i] += count;
+                total += count;
+            }
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBoundOf(i), this.getMax());
+            }
+        }
+        return 0;
+    }
+
+}
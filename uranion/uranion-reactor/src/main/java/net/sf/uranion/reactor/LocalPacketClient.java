@@ -0,0 +1,93 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.sf.uranion.packet.Packet;
+import net.sf.uranion.packet.PacketCallback;
+
+/**
+ * Connection to a server within the same JVM, for embedded deployments and
+ * tests. Requests take the same path through the server as those of a
+ * network connection (admission control, the processor pool, metrics) but
+ * are passed by reference: the processor gets the request instance and the
+ * caller the response instance, nothing is serialized. A request must
+ * therefore not be changed until its response has arrived.
+ */
+public class LocalPacketClient implements PacketProcessor {
+
+    private AbstractServer server;
+
+    private volatile boolean closed;
+
+    LocalPacketClient(AbstractServer server) {
+        super();
+        this.server = server;
+    }
+
+    public Packet process(Packet packet) throws IOException {
+        try {
+            return this.submit(packet).get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /**
+     * Hands the request to the server without waiting for its response.
+     */
+    public CompletableFuture<Packet> submit(Packet packet) throws IOException {
+        final CompletableFuture<Packet> result = new CompletableFuture<Packet>();
+        this.send(packet, new PacketCallback() {
+            public void handlePacketCallback(Packet response) {
+                if (response == null) {
+                    result.completeExceptionally(new IOException("processing failed"));
+                } else {
+                    result.complete(response);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Hands the request to the server without waiting for its response. The
+     * callback is invoked by the processor thread, or by the calling thread
+     * for a {@link NonBlockingPacketProcessor}; it gets <code>null</code> if
+     * an inline processor fails.
+     */
+    public void send(final Packet packet, final PacketCallback callback) throws IOException {
+        if (this.closed) {
+            throw new IOException("connection closed");
+        }
+        Runnable admission = new Runnable() {
+            public void run() {
+                // paused requests wait for room instead of a read
+                if (!server.process(callback, packet)) {
+                    server.awaitCapacity(this);
+                }
+            }
+        };
+        try {
+            admission.run();
+        } catch (RejectedExecutionException e) {
+            throw new IOException("server shut down");
+        } catch (RuntimeException e) {
+            // the processor failed inline
+            callback.handlePacketCallback(null);
+        }
+    }
+
+    /**
+     * Requests sent afterwards fail, outstanding ones still complete.
+     */
+    public void shutdown() {
+        this.closed = true;
+    }
+
+}
@@ -0,0 +1,68 @@
+package net.sf.uranion.reactor;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes a {@link MetricsRegistry} through JMX, attributes are read from a
+ * fresh snapshot.
+ */
+final class MetricsMBean implements DynamicMBean {
+
+    private MetricsRegistry registry;
+
+    MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        MetricsSnapshot snapshot = this.registry.snapshot();
+        if (!snapshot.getNames().contains(attribute)) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return new Long(snapshot.get(attribute));
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        MetricsSnapshot snapshot = this.registry.snapshot();
+        AttributeList result = new AttributeList();
+        for (int i = 0; i < attributes.length; i++) {
+            if (snapshot.getNames().contains(attributes[i])) {
+                result.add(new Attribute(attributes[i], new Long(snapshot.get(attributes[i]))));
+            }
+        }
+        return result;
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        Map values = this.registry.snapshot().asMap();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        Iterator names = values.keySet().iterator();
+        for (int i = 0; names.hasNext(); i++) {
+            attributes[i] = new MBeanAttributeInfo((String) names.next(), Long.class.getName(), null, true, false, false);
+        }
+        return new MBeanInfo(this.getClass().getName(), "uranion server metrics", attributes, null, new MBeanOperationInfo[0], null);
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("read-only: " + attribute.getName());
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+}
@@ -0,0 +1,85 @@
+package net.sf.uranion.reactor;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Named counters, histograms and gauges of a server. Metrics are created once
+ * and updated without locking; {@link #snapshot()} reads them all, and the
+ * registry may be exported as an MBean.
+ */
+public class MetricsRegistry {
+
+    private Map metrics = new TreeMap();
+
+    public synchronized StripedCounter counter(String name) {
+        Object metric = this.metrics.get(name);
+        if (metric == null) {
+            metric = new StripedCounter();
+            this.metrics.put(name, metric);
+        }
+        return (StripedCounter) metric;
+    }
+
+    public synchronized LatencyHistogram histogram(String name) {
+        Object metric = this.metrics.get(name);
+        if (metric == null) {
+            metric = new LatencyHistogram();
+            this.metrics.put(name, metric);
+        }
+        return (LatencyHistogram) metric;
+    }
+
+    public synchronized void gauge(String name, Gauge gauge) {
+        this.metrics.put(name, gauge);
+    }
+
+    /**
+     * Reads all metrics. Histograms appear as several values, their name
+     * suffixed with <code>.count</code>, <code>.mean</code>,
+     * <code>.p50</code>, <code>.p90</code>, <code>.p99</code>,
+     * <code>.p999</code> and <code>.max</code>.
+     */
+    public synchronized MetricsSnapshot snapshot() {
+        Map values = new TreeMap();
+        Iterator entries = this.metrics.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            String name = (String) entry.getKey();
+            Object metric = entry.getValue();
+            if (metric instanceof StripedCounter) {
+                values.put(name, new Long(((StripedCounter) metric).sum()));
+            } else if (metric instanceof Gauge) {
+                values.put(name, new Long(((Gauge) metric).getValue()));
+            } else {
+                LatencyHistogram histogram = (LatencyHistogram) metric;
+                values.put(name + ".count", new Long(histogram.getCount()));
+                values.put(name + ".mean", new Long(histogram.getMean()));
+                values.put(name + ".p50", new Long(histogram.getPercentile(50)));
+                values.put(name + ".p90", new Long(histogram.getPercentile(90)));
+                values.put(name + ".p99", new Long(histogram.getPercentile(99)));
+                values.put(name + ".p999", new Long(histogram.getPercentile(99.9)));
+                values.put(name + ".max", new Long(histogram.getMax()));
+            }
+        }
+        return new MetricsSnapshot(values);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, every value of
+     * {@link #snapshot()} becomes a read-only attribute.
+     */
+    public void export(ObjectName name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), name);
+    }
+
+    public void unexport(ObjectName name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+
+}
@@ -0,0 +1,47 @@
+package net.sf.uranion.reactor;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The values of all metrics of a registry at one point in time.
+ */
+public final class MetricsSnapshot {
+
+    private final long timestamp = System.currentTimeMillis();
+
+    private final Map values;
+
+    MetricsSnapshot(Map values) {
+        this.values = Collections.unmodifiableMap(values);
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public Set getNames() {
+        return this.values.keySet();
+    }
+
+    /**
+     * @return the value, <code>0</code> for unknown metrics
+     */
+    public long get(String name) {
+        Long value = (Long) this.values.get(name);
+        return (value == null) ? 0 : value.longValue();
+    }
+
+    /**
+     * @return the values by name, sorted by name
+     */
+    public Map asMap() {
+        return this.values;
+    }
+
+    public String toString() {
+        return this.values.toString();
+    }
+
+}
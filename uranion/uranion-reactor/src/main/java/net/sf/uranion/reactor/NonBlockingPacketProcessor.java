@@ -0,0 +1,14 @@
+package net.sf.uranion.reactor;
+
+/**
+ * Marks a processor which never blocks and returns quickly, such as
+ * {@link PacketProcessor#ECHO} or a router looking at a field or two. Servers
+ * call it on the thread which read the request instead of handing the request
+ * to the processor pool, saving the thread handoffs; the response goes
+ * straight to the writer.
+ * <p>
+ * A slow processor stalls every connection of its reactor, and requests
+ * processed inline are not subject to the queue limit of the server.
+ */
+public interface NonBlockingPacketProcessor extends PacketProcessor {
+}
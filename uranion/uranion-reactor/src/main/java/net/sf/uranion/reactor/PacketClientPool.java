@@ -0,0 +1,456 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.uranion.packet.Packet;
+import net.sf.uranion.packet.PacketCallback;
+
+/**
+ * Pool of multiplexing {@link PacketProcessorClient} connections to one or
+ * more servers. Every request leases a connection from the endpoint with the
+ * fewest outstanding requests, and within it the least busy connection; a new
+ * connection is opened while all of them are busy, up to the maximum.
+ * <p>
+ * Failed connections are dropped and replaced when next needed, a request
+ * which could not be sent is retried on another connection. An endpoint
+ * which can not be connected to is skipped for the retry delay. A
+ * maintenance thread closes connections idle for longer than the idle timeout,
+ * keeping the minimum open.
+ */
+public class PacketClientPool implements PacketProcessor {
+
+    private static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    private static final long DEFAULT_RETRY_DELAY = 1000;
+
+    private static final long CHECK_INTERVAL = 1000;
+
+    private Endpoint[] endpoints;
+
+    private int minConnections;
+
+    private int maxConnections;
+
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private volatile long retryDelay = DEFAULT_RETRY_DELAY;
+
+    private ClientOptions options;
+
+    private ScheduledExecutorService maintenance;
+
+    private volatile boolean closed;
+
+    /**
+     * @param minConnections
+     *            the connections per endpoint kept open while idle
+     * @param maxConnections
+     *            the connections per endpoint opened at most
+     */
+    public PacketClientPool(SocketAddress[] endpoints, int minConnections, int maxConnections) {
+        this(endpoints, minConnections, maxConnections, new ClientOptions());
+    }
+
+    /**
+     * @param options
+     *            the socket options of the connections
+     */
+    public PacketClientPool(SocketAddress[] endpoints, int minConnections, int maxConnections, ClientOptions options) {
+        super();
+        this.options = options;
+        if (endpoints.length == 0) {
+            throw new IllegalArgumentException("no endpoints");
+        }
+        this.endpoints = new Endpoint[endpoints.length];
+        for (int i = 0; i < endpoints.length; i++) {
+            this.endpoints[i] = new Endpoint(endpoints[i]);
+        }
+        this.minConnections = Math.max(0, minConnections);
+        this.maxConnections = Math.max(1, Math.max(this.minConnections, maxConnections));
+        this.checkHealth();
+        this.maintenance = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "uranion-client-pool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.maintenance.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                checkHealth();
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public PacketClientPool(SocketAddress endpoint, int minConnections, int maxConnections) {
+        this(new SocketAddress[] { endpoint }, minConnections, maxConnections);
+    }
+
+    /**
+     * Closes connections beyond the minimum which have been idle for longer
+     * than the timeout, one minute by default.
+     */
+    public void setIdleTimeout(long millis) {
+        this.idleTimeout = millis;
+    }
+
+    /**
+     * Sets for how long an endpoint is skipped after connecting to it has
+     * failed, one second by default.
+     */
+    public void setRetryDelay(long millis) {
+        this.retryDelay = millis;
+    }
+
+    /**
+     * Closes all connections, requests still outstanding fail.
+     */
+    public void shutdown() {
+        this.closed = true;
+        this.maintenance.shutdownNow();
+        for (int i = 0; i < this.endpoints.length; i++) {
+            this.endpoints[i].close();
+        }
+    }
+
+    public Packet process(Packet packet) throws IOException {
+        Future<Packet> result = this.submit(packet);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            // always failed with an IOException
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /**
+     * Sends the request without waiting for its response, the connection is
+     * released once the response has arrived.
+     *
+     * @return the future response
+     */
+    public Future<Packet> submit(Packet packet) throws IOException {
+        final CompletableFuture<Packet> result = new CompletableFuture<Packet>();
+        int attempts = this.endpoints.length * this.maxConnections + 1;
+        while (true) {
+            final Lease lease = this.lease();
+            try {
+                lease.getClient().send(packet, new PacketCallback() {
+                    public void handlePacketCallback(Packet response) {
+                        lease.release();
+                        if (response == null) {
+                            result.completeExceptionally(new IOException("connection failed"));
+                        } else {
+                            result.complete(response);
+                        }
+                    }
+                });
+                return result;
+            } catch (IOException e) {
+                // not sent, the connection is broken
+                lease.discard();
+                if (--attempts == 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Leases a connection for any number of requests, it may be shared with
+     * other leases and must be released once done with.
+     *
+     * @throws IOException
+     *             if no endpoint can be connected to
+     */
+    public Lease lease() throws IOException {
+        if (this.closed) {
+            throw new IOException("pool shut down");
+        }
+        boolean[] tried = new boolean[this.endpoints.length];
+        IOException failure = null;
+        for (int attempt = 0; attempt < this.endpoints.length; attempt++) {
+            int index = this.selectEndpoint(tried);
+            tried[index] = true;
+            try {
+                return this.endpoints[index].lease();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * @return the endpoint with the fewest outstanding requests which is not
+     *         waiting for its retry delay to pass; or the one which waited the
+     *         longest if all are
+     */
+    private int selectEndpoint(boolean[] tried) {
+        long now = System.currentTimeMillis();
+        int result = -1;
+        for (int i = 0; i < this.endpoints.length; i++) {
+            if (tried[i]) {
+                continue;
+            }
+            if (result < 0) {
+                result = i;
+                continue;
+            }
+            Endpoint best = this.endpoints[result];
+            Endpoint candidate = this.endpoints[i];
+            boolean bestUp = best.isUp(now);
+            if (candidate.isUp(now) != bestUp) {
+                if (!bestUp) {
+                    result = i;
+                }
+            } else if (bestUp ? candidate.outstanding < best.outstanding : candidate.downUntil < best.downUntil) {
+                result = i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops failed and idle connections and opens the minimum.
+     */
+    void checkHealth() {
+        for (int i = 0; i < this.endpoints.length && !this.closed; i++) {
+            this.endpoints[i].check();
+        }
+    }
+
+    /**
+     * @return the number of open connections to the endpoint
+     */
+    int getConnectionCount(int endpoint) {
+        synchronized (this.endpoints[endpoint]) {
+            return this.endpoints[endpoint].connections.size();
+        }
+    }
+
+    /**
+     * A connection leased from the pool.
+     */
+    public final class Lease {
+
+        private Endpoint endpoint;
+
+        private PooledConnection connection;
+
+        private boolean released;
+
+        private Lease(Endpoint endpoint, PooledConnection connection) {
+            this.endpoint = endpoint;
+            this.connection = connection;
+        }
+
+        public PacketProcessorClient getClient() {
+            return this.connection.client;
+        }
+
+        /**
+         * Returns the connection to the pool, releasing twice has no effect.
+         */
+        public void release() {
+            synchronized (this.endpoint) {
+                if (this.released) {
+                    return;
+                }
+                this.released = true;
+                this.connection.outstanding--;
+                this.connection.lastUsed = System.currentTimeMillis();
+                this.endpoint.outstanding--;
+            }
+        }
+
+        /**
+         * Closes the broken connection and releases it.
+         */
+        private void discard() {
+            this.connection.close();
+            this.release();
+        }
+
+    } // inner-class
+
+    private static final class PooledConnection {
+
+        private PacketProcessorClient client;
+
+        private int outstanding;
+
+        private long lastUsed = System.currentTimeMillis();
+
+        public PooledConnection(PacketProcessorClient client) {
+            this.client = client;
+        }
+
+        public void close() {
+            try {
+                this.client.shutdown();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+
+    } // inner-class
+
+    /**
+     * The connections to one server, guarded by the endpoint.
+     */
+    private final class Endpoint {
+
+        private SocketAddress address;
+
+        private LinkedList connections = new LinkedList();
+
+        private int connecting;
+
+        /**
+         * Read without holding the lock to select the endpoint.
+         */
+        private volatile int outstanding;
+
+        private volatile long downUntil;
+
+        public Endpoint(SocketAddress address) {
+            this.address = address;
+        }
+
+        public boolean isUp(long now) {
+            return this.downUntil <= now;
+        }
+
+        public Lease lease() throws IOException {
+            PooledConnection best;
+            synchronized (this) {
+                best = this.leastBusy();
+                if (best != null && (best.outstanding == 0 || this.connections.size() + this.connecting >= maxConnections)) {
+                    return this.lease(best);
+                }
+                this.connecting++;
+            }
+            PooledConnection opened = null;
+            IOException failure = null;
+            try {
+                opened = this.open();
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                synchronized (this) {
+                    this.connecting--;
+                }
+            }
+            synchronized (this) {
+                if (opened != null) {
+                    this.connections.addLast(opened);
+                    return this.lease(opened);
+                }
+                if (best == null || !best.client.isOpen()) {
+                    throw failure;
+                }
+                // busy but working
+                return this.lease(best);
+            }
+        }
+
+        private Lease lease(PooledConnection connection) {
+            connection.outstanding++;
+            this.outstanding++;
+            return new Lease(this, connection);
+        }
+
+        /**
+         * Drops the failed connections on the way.
+         */
+        private PooledConnection leastBusy() {
+            PooledConnection result = null;
+            Iterator it = this.connections.iterator();
+            while (it.hasNext()) {
+                PooledConnection connection = (PooledConnection) it.next();
+                if (!connection.client.isOpen()) {
+                    it.remove();
+                    connection.close();
+                } else if (result == null || connection.outstanding < result.outstanding) {
+                    result = connection;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Connects outside of the lock, marking the endpoint down on failure.
+         */
+        private PooledConnection open() throws IOException {
+            try {
+                PooledConnection connection = new PooledConnection(new PacketProcessorClient(this.address, options));
+                this.downUntil = 0;
+                return connection;
+            } catch (IOException e) {
+                this.downUntil = System.currentTimeMillis() + retryDelay;
+                throw e;
+            }
+        }
+
+        public void check() {
+            long now = System.currentTimeMillis();
+            List idle = new ArrayList();
+            int missing;
+            synchronized (this) {
+                this.leastBusy();
+                Iterator it = this.connections.iterator();
+                while (it.hasNext() && this.connections.size() > minConnections) {
+                    PooledConnection connection = (PooledConnection) it.next();
+                    if (connection.outstanding == 0 && now - connection.lastUsed > idleTimeout) {
+                        it.remove();
+                        idle.add(connection);
+                    }
+                }
+                missing = this.isUp(now) ? minConnections - this.connections.size() - this.connecting : 0;
+                this.connecting += Math.max(0, missing);
+            }
+            for (int i = 0; i < idle.size(); i++) {
+                ((PooledConnection) idle.get(i)).close();
+            }
+            for (int i = 0; i < missing; i++) {
+                PooledConnection opened = null;
+                try {
+                    opened = this.open();
+                } catch (IOException e) {
+                    // retried after the delay
+                } finally {
+                    synchronized (this) {
+                        this.connecting--;
+                        if (opened != null) {
+                            this.connections.addLast(opened);
+                        }
+                    }
+                }
+            }
+        }
+
+        public synchronized void close() {
+            while (!this.connections.isEmpty()) {
+                ((PooledConnection) this.connections.removeFirst()).close();
+            }
+        }
+
+    } // inner-class
+
+}
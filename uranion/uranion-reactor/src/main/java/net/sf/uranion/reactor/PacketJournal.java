@@ -0,0 +1,261 @@
+package net.sf.uranion.reactor;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.uranion.packet.Packet;
+
+/**
+ * Append-only journal of packets in their wire format, written into rolling
+ * memory-mapped segment files. Appending reserves room in the current
+ * segment and copies the packet into the mapping, any number of threads may
+ * append at once. Writing the pages to disk is left to the operating system
+ * and a flusher thread forcing the segments periodically, so appends never
+ * wait for the disk.
+ * <p>
+ * A segment starts with a magic number, followed by records of the packet
+ * size, a timestamp in nanoseconds and the packet; a size of <code>0</code>
+ * ends the segment. Segments are read with {@link JournalReader}.
+ */
+public class PacketJournal {
+
+    static final int SEGMENT_MAGIC = 0x554A4E4C;
+
+    static final int SEGMENT_HEADER_SIZE = 4;
+
+    static final int RECORD_HEADER_SIZE = 12;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private File directory;
+
+    private int segmentSize;
+
+    private long sequence;
+
+    private Segment current;
+
+    /**
+     * Segments rolled over, forced once their last append has completed.
+     */
+    private List sealed = new ArrayList();
+
+    /**
+     * Maps the nano time to the epoch.
+     */
+    private long epochOffset = System.currentTimeMillis() * 1000000 - System.nanoTime();
+
+    private ScheduledExecutorService flusher;
+
+    private boolean closed;
+
+    public PacketJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Continues after the last segment in the directory.
+     *
+     * @param segmentSize
+     *            the size of each segment file, packets must fit into one
+     */
+    public PacketJournal(File directory, int segmentSize) throws IOException {
+        super();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can not create " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        File[] segments = listSegments(directory);
+        if (segments.length > 0) {
+            this.sequence = parseSequence(segments[segments.length - 1]);
+        }
+        this.current = this.openSegment();
+        this.flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "uranion-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the segment files of the directory, oldest first
+     */
+    static File[] listSegments(File directory) {
+        File[] segments = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        // the sequence is zero-padded
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static long parseSequence(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private Segment openSegment() throws IOException {
+        this.sequence++;
+        String name = Long.toString(this.sequence);
+        while (name.length() < 12) {
+            name = "0" + name;
+        }
+        File file = new File(this.directory, SEGMENT_PREFIX + name + SEGMENT_SUFFIX);
+        RandomAccessFile segment = new RandomAccessFile(file, "rw");
+        try {
+            segment.setLength(this.segmentSize);
+            MappedByteBuffer buffer = segment.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+            buffer.putInt(0, SEGMENT_MAGIC);
+            return new Segment(buffer);
+        } finally {
+            // the mapping stays valid
+            segment.close();
+        }
+    }
+
+    /**
+     * Records the packet with the current time. Does not change the packet,
+     * compressed fields are recorded compressed.
+     *
+     * @throws IllegalArgumentException
+     *             if the packet does not fit into a segment
+     * @throws IOException
+     *             if the journal has been closed or a new segment can not be
+     *             created
+     */
+    public void append(Packet packet) throws IOException {
+        int size = packet.getWireSize();
+        int recordSize = RECORD_HEADER_SIZE + size;
+        if (recordSize > this.segmentSize - SEGMENT_HEADER_SIZE) {
+            throw new IllegalArgumentException("packet larger than a segment: " + size);
+        }
+        Segment segment;
+        int offset;
+        synchronized (this) {
+            if (this.closed) {
+                throw new IOException("journal closed");
+            }
+            if (this.current.position + recordSize > this.segmentSize) {
+                this.sealed.add(this.current);
+                this.current = this.openSegment();
+            }
+            segment = this.current;
+            offset = segment.position;
+            segment.position += recordSize;
+            segment.writers++;
+        }
+        try {
+            ByteBuffer record = segment.buffer.duplicate();
+            record.limit(offset + recordSize).position(offset + RECORD_HEADER_SIZE);
+            packet.write(record);
+            record.putLong(offset + 4, this.epochOffset + System.nanoTime());
+            // the size last, readers of a live journal stop at 0
+            record.putInt(offset, size);
+        } finally {
+            synchronized (this) {
+                segment.writers--;
+            }
+        }
+    }
+
+    /**
+     * Forces the segments written since the last flush to disk.
+     */
+    public void flush() {
+        List forced = new ArrayList();
+        synchronized (this) {
+            Iterator it = this.sealed.iterator();
+            while (it.hasNext()) {
+                Segment segment = (Segment) it.next();
+                if (segment.writers == 0) {
+                    it.remove();
+                    forced.add(segment);
+                }
+            }
+            if (!this.closed) {
+                forced.add(this.current);
+            }
+        }
+        for (int i = 0; i < forced.size(); i++) {
+            ((Segment) forced.get(i)).buffer.force();
+        }
+    }
+
+    /**
+     * Stops appending and forces all segments to disk. Appends in progress
+     * complete first.
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.sealed.add(this.current);
+        }
+        this.flusher.shutdown();
+        this.flusher.awaitTermination(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        while (true) {
+            this.flush();
+            synchronized (this) {
+                if (this.sealed.isEmpty()) {
+                    return;
+                }
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * A mapped segment file, guarded by the journal.
+     */
+    private static final class Segment {
+
+        private MappedByteBuffer buffer;
+
+        private int position = SEGMENT_HEADER_SIZE;
+
+        /**
+         * The appends still copying into the segment.
+         */
+        private int writers;
+
+        public Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+    } // inner-class
+
+}
@@ -6,7 +6,7 @@ import net.sf.uranion.packet.Packet;
 
 public interface PacketProcessor {
 
-    public final static PacketProcessor ECHO = new PacketProcessor() {
+    public final static PacketProcessor ECHO = new NonBlockingPacketProcessor() {
         public Packet process(Packet packet) {
             //System.out.print('.');
             return packet;
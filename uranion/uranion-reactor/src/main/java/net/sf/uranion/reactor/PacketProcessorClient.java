@@ -1,23 +1,57 @@
 package net.sf.uranion.reactor;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import net.sf.uranion.packet.Packet;
+import net.sf.uranion.packet.PacketCallback;
+import net.sf.uranion.packet.PacketException;
 
+/**
+ * Client multiplexing any number of outstanding requests over a single
+ * connection. Every request is tagged with a correlation id which the server
+ * echoes in its response; responses are matched by a receiver thread and may
+ * arrive in any order.
+ */
 public class PacketProcessorClient implements PacketProcessor {
 
     private SocketAddress remoteAddress;
 
+    private ClientOptions options;
+
     private SocketChannel clientSocket;
 
+    private Object writeLock = new Object();
+
+    private Map pendingRequests = new HashMap();
+
+    private int lastCorrelationId = Packet.NO_CORRELATION_ID;
+
+    private Throwable failure;
+
+    /**
+     * @param remoteAddress
+     *            may be the address of a Unix domain socket, see
+     *            {@link UnixDomainSockets}
+     */
     public PacketProcessorClient(SocketAddress remoteAddress) throws IOException {
+        this(remoteAddress, new ClientOptions());
+    }
+
+    public PacketProcessorClient(SocketAddress remoteAddress, ClientOptions options) throws IOException {
         super();
         this.remoteAddress = remoteAddress;
+        this.options = options;
         this.connect();
     }
 
@@ -26,24 +60,172 @@ public class PacketProcessorClient implements PacketProcessor {
     }
 
     private void connect() throws IOException {
-        this.clientSocket = SocketChannel.open(this.remoteAddress);
-        Socket socket = this.clientSocket.socket();
-        socket.setTcpNoDelay(true);
-        socket.setKeepAlive(true);
+        if (UnixDomainSockets.isUnixDomain(this.remoteAddress)) {
+            this.clientSocket = UnixDomainSockets.openChannel();
+        } else {
+            this.clientSocket = SocketChannel.open();
+        }
+        try {
+            this.options.configure(this.clientSocket);
+            this.clientSocket.connect(this.remoteAddress);
+        } catch (IOException e) {
+            this.clientSocket.close();
+            throw e;
+        }
+        Thread receiver = new Thread(new Receiver(), "uranion-client-" + this.remoteAddress);
+        receiver.setDaemon(true);
+        receiver.start();
     }
 
-    public synchronized void shutdown() throws IOException {
+    /**
+     * Closes the connection, requests still outstanding fail.
+     */
+    public void shutdown() throws IOException {
         this.clientSocket.close();
     }
 
-    public synchronized Packet process(Packet packet) throws IOException {
-        packet.write(this.clientSocket);
-        return new Packet(this.clientSocket);
+    /**
+     * @return false once the connection has failed or been shut down
+     */
+    public boolean isOpen() {
+        synchronized (this.pendingRequests) {
+            return this.failure == null && this.clientSocket.isOpen();
+        }
+    }
+
+    public Packet process(Packet packet) throws IOException {
+        Future<Packet> result = this.submit(packet);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw asIOException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends the request without waiting for its response.
+     *
+     * @return the future response
+     */
+    public Future<Packet> submit(Packet packet) throws IOException {
+        PendingResult result = new PendingResult();
+        this.send(packet, result);
+        return result.getResult();
+    }
+
+    /**
+     * Sends the request without waiting for its response. The callback is
+     * invoked by the receiver thread and must not block; it gets
+     * <code>null</code> if the connection fails before the response arrives.
+     */
+    public void send(Packet packet, PacketCallback callback) throws IOException {
+        synchronized (this.writeLock) {
+            Integer correlationId = this.register(callback);
+            try {
+                // the packet itself may be in flight more than once
+                packet.write(this.clientSocket, correlationId.intValue());
+            } catch (IOException e) {
+                this.unregister(correlationId.intValue());
+                throw e;
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Outstanding requests
+
+    private Integer register(PacketCallback callback) throws IOException {
+        synchronized (this.pendingRequests) {
+            if (this.failure != null) {
+                throw asIOException(this.failure);
+            }
+            Integer correlationId;
+            do {
+                this.lastCorrelationId++;
+                correlationId = new Integer(this.lastCorrelationId);
+            } while (this.lastCorrelationId == Packet.NO_CORRELATION_ID || this.pendingRequests.containsKey(correlationId));
+            this.pendingRequests.put(correlationId, callback);
+            return correlationId;
+        }
     }
 
+    private PacketCallback unregister(int correlationId) {
+        synchronized (this.pendingRequests) {
+            return (PacketCallback) this.pendingRequests.remove(new Integer(correlationId));
+        }
+    }
+
+    private void failPendingRequests(Throwable cause) {
+        Map failed;
+        synchronized (this.pendingRequests) {
+            this.failure = cause;
+            failed = new HashMap(this.pendingRequests);
+            this.pendingRequests.clear();
+        }
+        Iterator callbacks = failed.values().iterator();
+        while (callbacks.hasNext()) {
+            Object callback = callbacks.next();
+            if (callback instanceof PendingResult) {
+                ((PendingResult) callback).fail(cause);
+            } else {
+                ((PacketCallback) callback).handlePacketCallback(null);
+            }
+        }
+    }
+
+    private static IOException asIOException(Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        IOException result = new IOException(String.valueOf(cause));
+        result.initCause(cause);
+        return result;
+    }
+
+    private class Receiver implements Runnable {
+        public void run() {
+            try {
+                while (true) {
+                    Packet response = new Packet(clientSocket);
+                    PacketCallback callback = unregister(response.getCorrelationId());
+                    if (callback == null) {
+                        throw new PacketException("unexpected response " + response.getCorrelationId());
+                    }
+                    callback.handlePacketCallback(response);
+                }
+            } catch (Exception e) {
+                failPendingRequests(e);
+            }
+        }
+    } // inner-class
+
+    private static class PendingResult implements PacketCallback {
+
+        private CompletableFuture<Packet> result = new CompletableFuture<Packet>();
+
+        public Future<Packet> getResult() {
+            return this.result;
+        }
+
+        public void handlePacketCallback(Packet packet) {
+            this.result.complete(packet);
+        }
+
+        public void fail(Throwable cause) {
+            this.result.completeExceptionally(cause);
+        }
+
+    } // inner-class
+
     public static void main(String[] args) throws Exception {
-        PacketProcessorClient client = new PacketProcessorClient("localhost", 7777);
-        ByteBuffer testData = ByteBuffer.allocateDirect(7*1024*1024);        
+        // the payload needs more than the default buffers
+        ClientOptions options = new ClientOptions();
+        options.setSendBufferSize(4 * 1024 * 1024);
+        options.setReceiveBufferSize(4 * 1024 * 1024);
+        PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", 7777), options);
+        ByteBuffer testData = ByteBuffer.allocateDirect(7*1024*1024);
         for (int i = 0; i < 1000; i++) {
             Packet packet = new Packet(1);
             packet.setRaw(0, testData, true);
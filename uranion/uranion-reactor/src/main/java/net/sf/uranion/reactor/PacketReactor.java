@@ -1,191 +1,338 @@
 package net.sf.uranion.reactor;
 
 import java.io.IOException;
+import java.net.SocketAddress;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
-
-import net.sf.uranion.packet.Packet;
-import net.sf.uranion.packet.PacketCallback;
-
+import java.util.concurrent.Executor;
+
+/**
+ * NIO packet server. The thread calling {@link #run()} accepts connections; in
+ * single-reactor mode it also drives all of them, in multi-reactor mode every
+ * accepted connection is handed to one of <code>numReactors</code> worker
+ * reactors, each with its own selector and thread. With
+ * {@link ServerOptions#setListenerPerReactor(boolean)} the workers also accept
+ * connections themselves, on listening sockets of their own sharing the port.
+ */
 public class PacketReactor extends AbstractServer {
 
-    private Selector selector;
+    private ConnectionReactor acceptor;
 
     private SelectionKey acceptorKey;
 
-    private Thread reactorThread;
+    private ConnectionReactor[] workers;
+
+    private SelectionKey[] listenerKeys;
+
+    private int acceptBatchSize;
+
+    private ConnectionBalancer balancer;
+
+    private StripedCounter connectionsAccepted;
 
     public PacketReactor(int port, int numProcessors, PacketProcessor processor) throws IOException {
+        this(port, numProcessors, 0, null, processor);
+    }
+
+    /**
+     * @param numReactors
+     *            the number of worker reactors, <code>0</code> lets the
+     *            acceptor drive the connections itself
+     * @param balancer
+     *            the placement of new connections onto the worker reactors,
+     *            <code>null</code> for round-robin
+     */
+    public PacketReactor(int port, int numProcessors, int numReactors, ConnectionBalancer balancer, PacketProcessor processor) throws IOException {
         super(port, numProcessors, processor);
+        this.createReactors(numReactors, balancer);
     }
 
-    protected void prepareNetwork() throws IOException {
-        this.selector = Selector.open();
-        this.startListen(false);
-        this.registerAcceptor();
+    /**
+     * @param processorPool
+     *            runs the processor, see {@link ProcessorExecutors}; it is
+     *            not shut down with the server
+     */
+    public PacketReactor(int port, Executor processorPool, int numReactors, ConnectionBalancer balancer, PacketProcessor processor) throws IOException {
+        super(port, processorPool, processor);
+        this.createReactors(numReactors, balancer);
     }
 
-    private void registerAcceptor() throws ClosedChannelException {
-        this.acceptorKey = this.getServerSocket().register(this.selector, SelectionKey.OP_ACCEPT);
-        this.acceptorKey.attach(new PacketAcceptor());
+    /**
+     * Listens on the given address, which may be a Unix domain socket address
+     * (see {@link UnixDomainSockets}).
+     *
+     * @param processorPool
+     *            runs the processor, see {@link ProcessorExecutors}; it is
+     *            not shut down with the server
+     */
+    public PacketReactor(SocketAddress bindAddress, Executor processorPool, int numReactors, ConnectionBalancer balancer, PacketProcessor processor) throws IOException {
+        this(bindAddress, processorPool, numReactors, balancer, processor, new ServerOptions());
     }
 
-    public boolean hasActiveConnections() {
-        return this.selector.isOpen() ? !this.selector.keys().isEmpty() : false;
+    /**
+     * @param options
+     *            the socket options of the listening socket and the
+     *            connections
+     */
+    public PacketReactor(SocketAddress bindAddress, Executor processorPool, int numReactors, ConnectionBalancer balancer, PacketProcessor processor, ServerOptions options) throws IOException {
+        super(bindAddress, processorPool, processor, options);
+        this.createReactors(numReactors, balancer);
     }
 
-    public void stopListen() throws IOException {
-        if (this.acceptorKey != null && this.acceptorKey.isValid()) {
-            this.acceptorKey.cancel();
-            this.acceptorKey = null;
+    private void createReactors(int numReactors, ConnectionBalancer balancer) throws IOException {
+        this.balancer = (balancer == null) ? new RoundRobinBalancer() : balancer;
+        this.workers = new ConnectionReactor[numReactors];
+        for (int i = 0; i < numReactors; i++) {
+            this.workers[i] = new ConnectionReactor(this);
         }
-        super.stopListen();
+        ServerOptions options = this.getOptions();
+        this.acceptBatchSize = options.getAcceptBatchSize();
+        this.listenerKeys = new SelectionKey[0];
+        boolean perReactor = options.isListenerPerReactor() && numReactors > 0 && !this.isUnixDomain();
+        this.startListen(false, perReactor);
+        this.registerAcceptor();
+        if (perReactor) {
+            this.openListeners();
+        }
+        if (options.isBusyPoll()) {
+            this.setWaitStrategy(WaitStrategy.BUSY_POLL);
+        }
+        this.acceptor.setAdaptiveSendBuffer(options.getSendBufferSize(), options.getMaxSendBufferSize());
+        for (int i = 0; i < numReactors; i++) {
+            this.workers[i].setAdaptiveSendBuffer(options.getSendBufferSize(), options.getMaxSendBufferSize());
+        }
+        this.connectionsAccepted = this.getMetrics().counter("connections.accepted");
+        this.getMetrics().gauge("connections.active", new Gauge() {
+            public long getValue() {
+                // the reactors count their listening sockets too
+                long active = acceptor.getConnectionCount() - ((acceptorKey != null) ? 1 : 0);
+                for (int i = 0; i < workers.length; i++) {
+                    active += workers[i].getConnectionCount();
+                }
+                for (int i = 0; i < listenerKeys.length; i++) {
+                    if (listenerKeys[i] != null) {
+                        active--;
+                    }
+                }
+                return active;
+            }
+        });
     }
 
-    public void shutdown() throws IOException, InterruptedException {
-        super.shutdown();
-        if (this.reactorThread != null) {
-            this.reactorThread.interrupt();
-        }
-        this.selector.close();
+    /**
+     * Creates the acceptor; it starts listening once the workers are known.
+     */
+    protected void prepareNetwork() throws IOException {
+        this.acceptor = new ConnectionReactor(this);
     }
 
-    public void run() {
+    private void registerAcceptor() throws ClosedChannelException {
+        this.acceptorKey = this.getServerSocket().register(this.acceptor.getSelector(), SelectionKey.OP_ACCEPT);
+        this.acceptorKey.attach(new PacketAcceptor(this.getServerSocket(), null));
+    }
+
+    /**
+     * Binds a listening socket for every worker to the address the acceptor
+     * got, which has the port picked by the system if the configured one is
+     * <code>0</code>. The socket of the acceptor stays in the group as well,
+     * the connections it takes are balanced as usual.
+     */
+    private void openListeners() throws IOException {
+        this.listenerKeys = new SelectionKey[this.workers.length];
         try {
-            this.reactorThread = Thread.currentThread();
-            while (!Thread.interrupted()) {
-                this.selector.select();
-                Set selected = selector.selectedKeys();
-                Iterator it = selected.iterator();
-                while (it.hasNext()) {
-                    SelectionKey sk = (SelectionKey) it.next();
-                    if (sk.isValid()) {
-                        this.dispatch(sk);
-                    } else {
-                        sk.cancel();
-                    }
-                    it.remove();
-                }
+            SocketAddress address = this.getServerSocket().getLocalAddress();
+            for (int i = 0; i < this.workers.length; i++) {
+                ServerSocketChannel listener = this.openListener(address, false, true);
+                this.listenerKeys[i] = listener.register(this.workers[i].getSelector(), SelectionKey.OP_ACCEPT);
+                this.listenerKeys[i].attach(new PacketAcceptor(listener, this.workers[i]));
             }
         } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
-            this.reactorThread = null;
+            this.stopListen();
+            throw e;
         }
     }
 
-    private void dispatch(SelectionKey key) {
-        Runnable task = (Runnable) key.attachment();
-        if (task != null) {
-            task.run();
+    /**
+     * Limits the number of requests per connection being processed or waiting
+     * to be written, reading from a connection pauses while it is reached. To
+     * be called before {@link #run()}.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.acceptor.setMaxInFlight(maxInFlight);
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i].setMaxInFlight(maxInFlight);
         }
     }
 
-    private class PacketAcceptor implements Runnable {
-        public void run() {
-            try {
-                PacketReactor.this.acceptConnection();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+    /**
+     * Limits how many queued responses of a connection are coalesced into a
+     * single gathering write. To be called before {@link #run()}.
+     */
+    public void setWriteBatchLimits(int maxBuffers, int maxBytes) {
+        this.acceptor.setWriteBatchLimits(maxBuffers, maxBytes);
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i].setWriteBatchLimits(maxBuffers, maxBytes);
         }
-    } // inner-class
+    }
 
-    private void acceptConnection() throws IOException {
-        SocketChannel client = this.getServerSocket().accept();
-        if (client != null) {
-            client.configureBlocking(false);
-            this.adaptClientConnection(client);
-            new Receiving(client.register(selector, 0)).activate();
+    /**
+     * Sets the size of the chunks requests are streamed in if the processor is
+     * a {@link StreamingPacketProcessor}. To be called before {@link #run()}.
+     */
+    public void setStreamChunkSize(int chunkSize) {
+        this.acceptor.setStreamChunkSize(chunkSize);
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i].setStreamChunkSize(chunkSize);
         }
     }
 
-    private abstract class ReactorStage implements PacketCallback {
-
-        private SelectionKey sk;
-
-        public ReactorStage(SelectionKey sk) {
-            this.sk = sk;
+    /**
+     * Sets how the reactors wait for I/O, see {@link WaitStrategy} and
+     * {@link SpinWaitStrategy}. To be called before {@link #run()}.
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.acceptor.setWaitStrategy(waitStrategy);
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i].setWaitStrategy(waitStrategy);
         }
+    }
 
-        public ReactorStage(ReactorStage predecessor) {
-            this(predecessor.sk);
+    /**
+     * Sets the deadlines connections are closed after, in milliseconds;
+     * <code>0</code>, the default, disables one. To be called before
+     * {@link #run()}.
+     * 
+     * @param idleTimeout
+     *            for connections with no request in progress
+     * @param readTimeout
+     *            for reading a request once its first byte has arrived
+     * @param writeTimeout
+     *            for writing a batch of responses
+     */
+    public void setTimeouts(long idleTimeout, long readTimeout, long writeTimeout) {
+        this.acceptor.setTimeouts(idleTimeout, readTimeout, writeTimeout);
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i].setTimeouts(idleTimeout, readTimeout, writeTimeout);
         }
+    }
 
-        protected SelectionKey getKey() {
-            return sk;
+    /**
+     * Closes connections which read a request or take responses slower than
+     * the given rate, <code>0</code> (the default) to disable. To be called
+     * before {@link #run()}.
+     */
+    public void setMinThroughput(int bytesPerSecond) {
+        this.acceptor.setMinThroughput(bytesPerSecond);
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i].setMinThroughput(bytesPerSecond);
         }
+    }
 
-        public void changeInterest(int interest, Runnable handler) {
-            sk.interestOps(interest);
-            sk.attach(handler);
-            selector.wakeup();
+    public boolean hasActiveConnections() {
+        for (int i = 0; i < this.workers.length; i++) {
+            if (this.workers[i].hasActiveConnections()) {
+                return true;
+            }
         }
+        return this.acceptor.hasActiveConnections();
+    }
 
-    } // inner-class
-
-    private final class Receiving extends ReactorStage {
-
-        public Receiving(SelectionKey sk) {
-            super(sk);
-        }
+    /**
+     * @return the reactors connections are handed to, none in single-reactor
+     *         mode
+     */
+    ConnectionReactor[] getWorkers() {
+        return this.workers;
+    }
 
-        public Receiving(Finished predecessor) {
-            super(predecessor);
+    public void stopListen() throws IOException {
+        if (this.acceptorKey != null && this.acceptorKey.isValid()) {
+            this.acceptorKey.cancel();
+            this.acceptorKey = null;
         }
-
-        public void activate() {
-            Runnable handler = new Packet.AsyncTOCReader(new Processing(this), this.getKey());
-            this.changeInterest(SelectionKey.OP_READ, handler);
+        super.stopListen();
+        // the listening socket is only released once the key is deregistered
+        this.acceptor.getSelector().wakeup();
+        for (int i = 0; i < this.listenerKeys.length; i++) {
+            SelectionKey key = this.listenerKeys[i];
+            if (key != null) {
+                this.listenerKeys[i] = null;
+                key.cancel();
+                key.channel().close();
+                this.workers[i].getSelector().wakeup();
+            }
         }
+    }
 
-        public void handlePacketCallback(final Packet packet) {
-            // never-called, no because this is the first stage
+    public void shutdown() throws IOException, InterruptedException {
+        super.shutdown();
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i].shutdown();
         }
+        this.acceptor.shutdown();
+    }
 
-    } // inner-class
-
-    private final class Processing extends ReactorStage {
-
-        public Processing(Receiving predecessor) {
-            super(predecessor);
+    public void run() {
+        for (int i = 0; i < this.workers.length; i++) {
+            Thread worker = new Thread(this.workers[i], "uranion-reactor-" + i);
+            worker.setDaemon(true);
+            worker.start();
         }
+        this.acceptor.run();
+    }
 
-        public void handlePacketCallback(final Packet packet) {
-            process(new Sending(this), packet);
-        }
+    private class PacketAcceptor implements Runnable {
 
-    } // inner-class
+        private ServerSocketChannel listener;
 
-    private final class Sending extends ReactorStage {
+        /**
+         * The reactor taking the connections, <code>null</code> to balance
+         * them.
+         */
+        private ConnectionReactor reactor;
 
-        public Sending(Processing predecessor) {
-            super(predecessor);
+        public PacketAcceptor(ServerSocketChannel listener, ConnectionReactor reactor) {
+            super();
+            this.listener = listener;
+            this.reactor = reactor;
         }
 
-        public void handlePacketCallback(Packet packet) {
-            Packet result = (packet == null) ? Packet.EMPTY_PACKET : packet;
-            Runnable handler = new Packet.AsyncWriter(result, new Finished(this), this.getKey());
-            this.changeInterest(SelectionKey.OP_WRITE, handler);
+        public void run() {
+            try {
+                PacketReactor.this.acceptConnections(this.listener, this.reactor);
+            } catch (ClosedChannelException e) {
+                // stopped listening meanwhile
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
-
     } // inner-class
 
-    private final class Finished extends ReactorStage {
-
-        public Finished(Sending predecessor) {
-            super(predecessor);
+    /**
+     * Accepts the pending connections up to the batch size, the rest wait for
+     * the next selector round.
+     */
+    private void acceptConnections(ServerSocketChannel listener, ConnectionReactor reactor) throws IOException {
+        for (int i = 0; i < this.acceptBatchSize; i++) {
+            SocketChannel client = listener.accept();
+            if (client == null) {
+                return;
+            }
+            this.connectionsAccepted.increment();
+            client.configureBlocking(false);
+            this.adaptClientConnection(client);
+            ((reactor == null) ? this.selectReactor() : reactor).register(client);
         }
+    }
 
-        public void handlePacketCallback(Packet packet) {
-            packet.dispose();
-            new Receiving(this).activate();
+    private ConnectionReactor selectReactor() {
+        if (this.workers.length == 0) {
+            return this.acceptor;
         }
-    } // inner-class
+        return this.balancer.select(this.workers);
+    }
 
     public static void main(String[] args) throws IOException {
         new PacketReactor(7777, 4, PacketProcessor.ECHO).run();
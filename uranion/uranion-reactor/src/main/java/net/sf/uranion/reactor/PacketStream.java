@@ -0,0 +1,32 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.sf.uranion.packet.Packet;
+
+/**
+ * The contents of a single request being streamed to a
+ * {@link StreamingPacketProcessor}. The methods are called one after the
+ * other, though not necessarily by the same processor thread.
+ */
+public interface PacketStream {
+
+    /**
+     * Consumes the next chunk of a field, chunks arrive in order and never
+     * span fields. The buffer is recycled for further chunks once this method
+     * returns and must not be kept.
+     * 
+     * @param offset
+     *            the offset of the chunk within the field
+     */
+    public void handleChunk(int position, long offset, ByteBuffer chunk) throws IOException;
+
+    /**
+     * Called after the last chunk of the request.
+     * 
+     * @return the response
+     */
+    public Packet complete() throws IOException;
+
+}
@@ -6,62 +6,31 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 
 import net.sf.uranion.packet.Packet;
-import EDU.oswego.cs.dl.util.concurrent.BoundedBuffer;
-import EDU.oswego.cs.dl.util.concurrent.Callable;
-import EDU.oswego.cs.dl.util.concurrent.FutureResult;
-import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
-
 
+/**
+ * Spreads the requests of any number of threads over up to
+ * <code>numClients</code> connections to a single server, see
+ * {@link PacketClientPool} for several servers.
+ */
 public class ParallelPacketProcessorClient implements PacketProcessor {
 
-    private ThreadLocal client = new ThreadLocal() {
-        protected synchronized Object initialValue() {
-            try {
-                return new PacketProcessorClient(remoteAddress);
-            } catch (IOException e) {
-                throw new Error(e);
-            }
-        }
-    };
-
-    private SocketAddress remoteAddress;
-
-    private PooledExecutor executor;
+    private PacketClientPool pool;
 
     public ParallelPacketProcessorClient(int numClients, SocketAddress remoteAddress) throws IOException {
         super();
-        this.executor = new PooledExecutor(new BoundedBuffer(numClients), numClients);
-        this.executor.setMinimumPoolSize(numClients);
-        this.executor.runWhenBlocked();
-        this.remoteAddress = remoteAddress;
+        this.pool = new PacketClientPool(remoteAddress, 1, numClients);
     }
 
     public ParallelPacketProcessorClient(int numClients, String host, int port) throws IOException {
         this(numClients, new InetSocketAddress(host, port));
     }
 
-    protected PacketProcessorClient getClient() {
-        return (PacketProcessorClient) this.client.get();
-    }
-
     public void shutdown() throws InterruptedException {
-        this.executor.shutdownAfterProcessingCurrentlyQueuedTasks();
-        this.executor.awaitTerminationAfterShutdown();
+        this.pool.shutdown();
     }
 
-    public Packet process(final Packet packet) throws IOException {
-
-        try {
-            FutureResult result = new FutureResult();
-            this.executor.execute(result.setter(new Callable() {
-                public Object call() throws Exception {
-                    return getClient().process(packet);
-                }
-            }));
-            return (Packet) result.get();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    public Packet process(Packet packet) throws IOException {
+        return this.pool.process(packet);
     }
 
     public static void main(String[] args) throws Exception {
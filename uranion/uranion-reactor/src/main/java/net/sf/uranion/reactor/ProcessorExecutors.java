@@ -0,0 +1,87 @@
+package net.sf.uranion.reactor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The built-in executors a server may process packets with. Any
+ * {@link java.util.concurrent.Executor} will do; these are the common ones.
+ */
+public final class ProcessorExecutors {
+
+    private ProcessorExecutors() {
+    }
+
+    /**
+     * A fixed number of daemon threads sharing an unbounded queue, the
+     * default of the servers.
+     */
+    public static ExecutorService fixed(int numThreads) {
+        return new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ProcessorThreadFactory());
+    }
+
+    /**
+     * A work-stealing pool running packets in arrival order, suited to
+     * processors which never block.
+     */
+    public static ExecutorService forkJoin(int parallelism) {
+        return new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    /**
+     * Starts a virtual thread for every packet, so blocking processors (JDBC,
+     * file I/O) scale to many concurrent requests without sizing a pool.
+     * Requires Java 21; looked up reflectively as the build targets older
+     * releases.
+     * 
+     * @throws UnsupportedOperationException
+     *             if the running JVM has no virtual threads
+     */
+    public static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("virtual threads need Java 21");
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException(e.toString());
+        } catch (InvocationTargetException e) {
+            throw new UnsupportedOperationException(e.getTargetException().toString());
+        }
+    }
+
+    /**
+     * @return true if {@link #virtualThreads()} is supported
+     */
+    public static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static final class ProcessorThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+        private final int pool = POOL_NUMBER.incrementAndGet();
+
+        private final AtomicInteger thread = new AtomicInteger();
+
+        public Thread newThread(Runnable task) {
+            Thread processor = new Thread(task, "uranion-processor-" + this.pool + "-" + this.thread.incrementAndGet());
+            processor.setDaemon(true);
+            return processor;
+        }
+
+    } // inner-class
+
+}
@@ -0,0 +1,17 @@
+package net.sf.uranion.reactor;
+
+/**
+ * Hands connections to the worker reactors in turn.
+ */
+public class RoundRobinBalancer implements ConnectionBalancer {
+
+    private int next;
+
+    public ConnectionReactor select(ConnectionReactor[] reactors) {
+        if (this.next >= reactors.length) {
+            this.next = 0;
+        }
+        return reactors[this.next++];
+    }
+
+}
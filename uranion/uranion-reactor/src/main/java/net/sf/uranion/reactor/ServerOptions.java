@@ -0,0 +1,192 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Socket options of a server, handed to its constructor and not to be changed
+ * afterwards. Options a channel does not support are skipped, so the same
+ * options serve TCP and Unix domain sockets.
+ * <p>
+ * The send buffer should hold the bandwidth-delay product of the links
+ * responses travel over: 128 KB (the default) covers a gigabit link with a
+ * millisecond of latency, cross-datacenter links want megabytes. Rather than
+ * sizing every connection for the worst case, the adaptive mode grows the
+ * send buffer of connections whose writes keep filling it. See the
+ * <code>SocketBufferBenchmark</code> of the benchmarks module.
+ */
+public class ServerOptions {
+
+    public static final int DEFAULT_BUFFER_SIZE = 128 * 1024;
+
+    public static final int DEFAULT_ACCEPT_BATCH_SIZE = 16;
+
+    private int receiveBufferSize = DEFAULT_BUFFER_SIZE;
+
+    private int sendBufferSize = DEFAULT_BUFFER_SIZE;
+
+    private int maxSendBufferSize;
+
+    private boolean tcpNoDelay = true;
+
+    private boolean keepAlive = true;
+
+    private boolean reusePort;
+
+    private int backlog;
+
+    private boolean busyPoll;
+
+    private boolean listenerPerReactor;
+
+    private int acceptBatchSize = DEFAULT_ACCEPT_BATCH_SIZE;
+
+    public int getReceiveBufferSize() {
+        return this.receiveBufferSize;
+    }
+
+    /**
+     * Sets the receive buffer of the connections, set on the listening socket
+     * so the TCP window scale is negotiated accordingly; <code>0</code> keeps
+     * the default of the operating system.
+     */
+    public void setReceiveBufferSize(int size) {
+        this.receiveBufferSize = Math.max(0, size);
+    }
+
+    public int getSendBufferSize() {
+        return this.sendBufferSize;
+    }
+
+    /**
+     * Sets the initial send buffer of the connections, <code>0</code> keeps
+     * the default of the operating system.
+     */
+    public void setSendBufferSize(int size) {
+        this.sendBufferSize = Math.max(0, size);
+    }
+
+    public int getMaxSendBufferSize() {
+        return this.maxSendBufferSize;
+    }
+
+    /**
+     * Enables the adaptive send buffer: the buffer of a connection is doubled,
+     * up to the given size, whenever its writes are left incomplete several
+     * times in a row. <code>0</code> (the default) keeps the initial size.
+     */
+    public void setAdaptiveSendBuffer(int maxSize) {
+        this.maxSendBufferSize = Math.max(0, maxSize);
+    }
+
+    public boolean isTcpNoDelay() {
+        return this.tcpNoDelay;
+    }
+
+    /**
+     * Disables Nagle's algorithm, on by default as responses are written
+     * whole.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return this.keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public boolean isReusePort() {
+        return this.reusePort;
+    }
+
+    /**
+     * Binds with <code>SO_REUSEPORT</code>, so several servers may listen on
+     * the same port and the kernel balances the connections between them.
+     * Requires Java 9 and an operating system supporting it.
+     */
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    public int getBacklog() {
+        return this.backlog;
+    }
+
+    /**
+     * Sets the number of connections the kernel queues until they are
+     * accepted, <code>0</code> for the default of the JDK.
+     */
+    public void setBacklog(int backlog) {
+        this.backlog = Math.max(0, backlog);
+    }
+
+    public boolean isBusyPoll() {
+        return this.busyPoll;
+    }
+
+    /**
+     * Lets the reactor threads busy poll their selectors, see
+     * {@link WaitStrategy#BUSY_POLL}. The JDK does not expose the socket level
+     * <code>SO_BUSY_POLL</code>, polling the selector is the nearest
+     * equivalent.
+     */
+    public void setBusyPoll(boolean busyPoll) {
+        this.busyPoll = busyPoll;
+    }
+
+    public boolean isListenerPerReactor() {
+        return this.listenerPerReactor;
+    }
+
+    /**
+     * Lets every worker reactor of a {@link PacketReactor} accept on a
+     * listening socket of its own, all bound to the same port with
+     * <code>SO_REUSEPORT</code>. The kernel spreads the connections across
+     * them, so a reconnect storm is accepted by all reactors in parallel and
+     * no connection is handed between threads. Ignored for Unix domain
+     * sockets and in single-reactor mode.
+     */
+    public void setListenerPerReactor(boolean listenerPerReactor) {
+        this.listenerPerReactor = listenerPerReactor;
+    }
+
+    public int getAcceptBatchSize() {
+        return this.acceptBatchSize;
+    }
+
+    /**
+     * Limits the connections a reactor accepts per selector round, so the
+     * requests of established connections are served between the batches of a
+     * reconnect storm.
+     */
+    public void setAcceptBatchSize(int acceptBatchSize) {
+        this.acceptBatchSize = Math.max(1, acceptBatchSize);
+    }
+
+    /**
+     * @param shared
+     *            whether the socket is one of several a server listens on
+     */
+    void configureListener(ServerSocketChannel channel, boolean shared) throws IOException {
+        ChannelOptions.setBufferSize(channel, StandardSocketOptions.SO_RCVBUF, this.receiveBufferSize);
+        if (this.reusePort || shared) {
+            if (ChannelOptions.reusePort() == null || !channel.supportedOptions().contains(ChannelOptions.reusePort())) {
+                throw new UnsupportedOperationException("SO_REUSEPORT not supported");
+            }
+            channel.setOption(ChannelOptions.reusePort(), Boolean.TRUE);
+        }
+    }
+
+    void configureConnection(SocketChannel channel) throws IOException {
+        ChannelOptions.setBufferSize(channel, StandardSocketOptions.SO_SNDBUF, this.sendBufferSize);
+        ChannelOptions.set(channel, StandardSocketOptions.TCP_NODELAY, Boolean.valueOf(this.tcpNoDelay));
+        ChannelOptions.set(channel, StandardSocketOptions.SO_KEEPALIVE, Boolean.valueOf(this.keepAlive));
+    }
+
+}
@@ -0,0 +1,23 @@
+package net.sf.uranion.reactor;
+
+/**
+ * Polls the selector a number of times before blocking in it, so a reactor
+ * under steady load never parks while an idle one does not burn its core.
+ */
+public class SpinWaitStrategy implements WaitStrategy {
+
+    private int spins;
+
+    /**
+     * @param spins
+     *            the number of empty polls before blocking
+     */
+    public SpinWaitStrategy(int spins) {
+        this.spins = spins;
+    }
+
+    public boolean block(int idle) {
+        return idle >= this.spins;
+    }
+
+}
@@ -0,0 +1,25 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+
+import net.sf.uranion.packet.Packet;
+
+/**
+ * A processor consuming requests while they are being read, so large fields
+ * never have to be buffered as a whole. {@link PacketReactor} streams every
+ * request to processors implementing this interface; {@link #process(Packet)}
+ * is used by the other servers.
+ */
+public interface StreamingPacketProcessor extends PacketProcessor {
+
+    /**
+     * Called on a processor thread once the TOC of a request has been read.
+     * 
+     * @param header
+     *            the request with its TOC only, the field lengths and the
+     *            correlation id can be queried but not the field contents
+     * @return the receiver of the field contents
+     */
+    public PacketStream open(Packet header) throws IOException;
+
+}
@@ -0,0 +1,58 @@
+package net.sf.uranion.reactor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter updated by many threads. Updates are spread over padded cells
+ * picked by the updating thread, so threads rarely contend for a cell; reads
+ * sum up all cells.
+ */
+public final class StripedCounter {
+
+    static final int STRIPES = stripes();
+
+    /**
+     * Cells are this many longs apart, keeping them on separate cache lines.
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int stripes() {
+        int stripes = 1;
+        while (stripes < 2 * Runtime.getRuntime().availableProcessors()) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /**
+     * @return the stripe of the current thread, below {@link #STRIPES}
+     */
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 16)) * 0x9E3779B9;
+        return (hash >>> 16) & (STRIPES - 1);
+    }
+
+    private static int cell() {
+        return stripe() * PADDING;
+    }
+
+    public void increment() {
+        this.add(1);
+    }
+
+    public void add(long delta) {
+        this.cells.addAndGet(cell(), delta);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < this.cells.length(); i += PADDING) {
+            sum += this.cells.get(i);
+        }
+        return sum;
+    }
+
+}
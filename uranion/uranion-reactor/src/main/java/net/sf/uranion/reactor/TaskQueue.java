@@ -0,0 +1,86 @@
+package net.sf.uranion.reactor;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free queue of tasks handed to a reactor thread, any number of threads
+ * may offer while only the reactor thread polls. Producers link their node
+ * with a single atomic swap of the tail, the consumer follows the links
+ * without synchronization.
+ * <p>
+ * The queue also tells producers when the consumer needs to be woken up: only
+ * the first offer after the consumer has {@link #resetSignal() reset the
+ * signal} does, so a burst of tasks costs a single wakeup.
+ */
+final class TaskQueue {
+
+    /**
+     * The last node linked, shared by the producers.
+     */
+    private final AtomicReference<Node> tail;
+
+    /**
+     * The node before the next task, owned by the consumer.
+     */
+    private Node head;
+
+    private final AtomicBoolean signalled = new AtomicBoolean();
+
+    TaskQueue() {
+        super();
+        this.head = new Node(null);
+        this.tail = new AtomicReference<Node>(this.head);
+    }
+
+    /**
+     * Appends the task. May be called from any thread.
+     *
+     * @return true if the consumer has to be woken up
+     */
+    boolean offer(Runnable task) {
+        Node node = new Node(task);
+        Node previous = this.tail.getAndSet(node);
+        // the task is visible to the consumer from here on
+        previous.next = node;
+        return !this.signalled.get() && this.signalled.compareAndSet(false, true);
+    }
+
+    /**
+     * Takes the next task, only to be called by the consumer.
+     *
+     * @return <code>null</code> if there is none, or its producer has not
+     *         linked it yet; the producer signals in that case
+     */
+    Runnable poll() {
+        Node next = this.head.next;
+        if (next == null) {
+            return null;
+        }
+        Runnable task = next.task;
+        next.task = null;
+        this.head = next;
+        return task;
+    }
+
+    /**
+     * Called by the consumer before it drains the queue, so that the next offer
+     * signals again.
+     */
+    void resetSignal() {
+        this.signalled.set(false);
+    }
+
+    private static final class Node {
+
+        private Runnable task;
+
+        private volatile Node next;
+
+        public Node(Runnable task) {
+            this.task = task;
+        }
+
+    } // inner-class
+
+}
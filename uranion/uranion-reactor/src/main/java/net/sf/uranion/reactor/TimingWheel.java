@@ -0,0 +1,144 @@
+package net.sf.uranion.reactor;
+
+/**
+ * Hashed timing wheel: timeouts are hashed by their deadline tick into a ring
+ * of buckets, so scheduling and cancelling are constant time however many
+ * connections are watched. Deadlines are rounded up to the next tick. Not
+ * thread-safe, a wheel belongs to the thread of its reactor.
+ */
+final class TimingWheel {
+
+    private long tickMillis;
+
+    private Timeout[] buckets;
+
+    private int mask;
+
+    /**
+     * The next tick to expire.
+     */
+    private long tick;
+
+    private int size;
+
+    /**
+     * @param ticks
+     *            the number of buckets, rounded up to a power of two
+     */
+    TimingWheel(long tickMillis, int ticks, long now) {
+        super();
+        int length = 1;
+        while (length < ticks) {
+            length <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.buckets = new Timeout[length];
+        this.mask = length - 1;
+        this.tick = now / tickMillis;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * (Re-)schedules the timeout.
+     */
+    void schedule(Timeout timeout, long deadline) {
+        this.cancel(timeout);
+        timeout.deadline = deadline;
+        timeout.tick = Math.max(this.tick, (deadline + this.tickMillis - 1) / this.tickMillis);
+        int index = (int) (timeout.tick & this.mask);
+        timeout.next = this.buckets[index];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        this.buckets[index] = timeout;
+        timeout.wheel = this;
+        this.size++;
+    }
+
+    void cancel(Timeout timeout) {
+        if (timeout.wheel != this) {
+            return;
+        }
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            this.buckets[(int) (timeout.tick & this.mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.wheel = null;
+        this.size--;
+    }
+
+    /**
+     * @return the milliseconds until the next tick is due, at least one
+     */
+    long getTickDelay(long now) {
+        return Math.max(1, this.tick * this.tickMillis - now);
+    }
+
+    /**
+     * Runs the timeouts due up to now. They may schedule themselves again.
+     */
+    void expire(long now) {
+        long last = now / this.tickMillis;
+        if (last - this.tick > this.mask) {
+            // one round covers every bucket
+            this.tick = last - this.mask;
+        }
+        Timeout expired = null;
+        for (; this.tick <= last; this.tick++) {
+            int index = (int) (this.tick & this.mask);
+            Timeout timeout = this.buckets[index];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.tick <= last) {
+                    this.cancel(timeout);
+                    timeout.next = expired;
+                    expired = timeout;
+                }
+                timeout = next;
+            }
+        }
+        while (expired != null) {
+            Timeout timeout = expired;
+            expired = timeout.next;
+            timeout.next = null;
+            timeout.run(now);
+        }
+    }
+
+    /**
+     * An entry of the wheel, it can be scheduled on one wheel at a time.
+     */
+    static abstract class Timeout {
+
+        private TimingWheel wheel;
+
+        private long deadline;
+
+        private long tick;
+
+        private Timeout previous;
+
+        private Timeout next;
+
+        boolean isScheduled() {
+            return this.wheel != null;
+        }
+
+        long getDeadline() {
+            return this.deadline;
+        }
+
+        protected abstract void run(long now);
+
+    } // inner-class
+
+}
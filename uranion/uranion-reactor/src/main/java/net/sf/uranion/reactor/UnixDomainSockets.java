@@ -0,0 +1,98 @@
+package net.sf.uranion.reactor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix domain socket addresses for servers and clients on the same host,
+ * which skip the TCP stack of the loopback interface. The reactor and the
+ * clients take such an address wherever they take an
+ * {@link java.net.InetSocketAddress}. Requires Java 16; looked up reflectively
+ * as the build targets older releases.
+ */
+public final class UnixDomainSockets {
+
+    private static final String ADDRESS_CLASS = "java.net.UnixDomainSocketAddress";
+
+    private UnixDomainSockets() {
+    }
+
+    /**
+     * @return true if the running JVM supports Unix domain socket channels
+     */
+    public static boolean isSupported() {
+        try {
+            Class.forName(ADDRESS_CLASS);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the address of the socket file
+     * @throws UnsupportedOperationException
+     *             if the running JVM has no Unix domain sockets
+     */
+    public static SocketAddress address(String path) {
+        try {
+            return (SocketAddress) Class.forName(ADDRESS_CLASS).getMethod("of", new Class[] { String.class }).invoke(null, new Object[] { path });
+        } catch (ClassNotFoundException e) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16");
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException(e.toString());
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException(e.toString());
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException(e.getTargetException().toString());
+        }
+    }
+
+    static boolean isUnixDomain(SocketAddress address) {
+        return address != null && ADDRESS_CLASS.equals(address.getClass().getName());
+    }
+
+    /**
+     * @return the socket file of the address
+     */
+    static File getFile(SocketAddress address) {
+        try {
+            return new File(String.valueOf(address.getClass().getMethod("getPath").invoke(address)));
+        } catch (Exception e) {
+            throw new UnsupportedOperationException(e.toString());
+        }
+    }
+
+    static ServerSocketChannel openServerChannel() throws IOException {
+        return (ServerSocketChannel) open(ServerSocketChannel.class);
+    }
+
+    static SocketChannel openChannel() throws IOException {
+        return (SocketChannel) open(SocketChannel.class);
+    }
+
+    private static Object open(Class channelClass) throws IOException {
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            return channelClass.getMethod("open", new Class[] { ProtocolFamily.class }).invoke(null, new Object[] { unix });
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16");
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16");
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException(e.toString());
+        } catch (InvocationTargetException e) {
+            if (e.getTargetException() instanceof IOException) {
+                throw (IOException) e.getTargetException();
+            }
+            throw new UnsupportedOperationException(e.getTargetException().toString());
+        }
+    }
+
+}
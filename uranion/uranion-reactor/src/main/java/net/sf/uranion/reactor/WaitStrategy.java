@@ -0,0 +1,40 @@
+package net.sf.uranion.reactor;
+
+/**
+ * How a {@link ConnectionReactor} waits for I/O once it has nothing left to
+ * do. Blocking in the selector parks the reactor thread, which costs a park
+ * and unpark for every burst of traffic; polling keeps the thread spinning on
+ * a core instead and cuts that latency.
+ */
+public interface WaitStrategy {
+
+    /**
+     * Always blocks in the selector, the default.
+     */
+    public final static WaitStrategy BLOCKING = new WaitStrategy() {
+        public boolean block(int idle) {
+            return true;
+        }
+    };
+
+    /**
+     * Never blocks, every reactor keeps a core busy.
+     */
+    public final static WaitStrategy BUSY_POLL = new WaitStrategy() {
+        public boolean block(int idle) {
+            return false;
+        }
+    };
+
+    /**
+     * Only ever called from the reactor thread.
+     * 
+     * @param idle
+     *            the number of selects in a row which found neither I/O nor
+     *            queued tasks
+     * @return true to block in {@link java.nio.channels.Selector#select()},
+     *         false to poll with
+     *         {@link java.nio.channels.Selector#selectNow()}
+     */
+    public boolean block(int idle);
+}
@@ -0,0 +1,115 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import net.sf.uranion.packet.Packet;
+
+public class AdmissionControlTest extends TestCase {
+
+    private static final int PORT = 7780;
+
+    private static final int DELAY = 100;
+
+    /**
+     * Echoes every request after a delay.
+     */
+    private static final PacketProcessor SLOW_ECHO = new PacketProcessor() {
+        public Packet process(Packet packet) throws IOException {
+            try {
+                Thread.sleep(DELAY);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return packet;
+        }
+    };
+
+    private PacketReactor reactor;
+
+    private PacketProcessorClient client;
+
+    public AdmissionControlTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        this.reactor = new PacketReactor(PORT, 1, SLOW_ECHO);
+        new Thread(this.reactor).start();
+        this.client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT));
+    }
+
+    protected void tearDown() throws Exception {
+        this.client.shutdown();
+        this.reactor.stopListen();
+        for (int i = 0; i < 100 && this.reactor.hasActiveConnections(); i++) {
+            Thread.sleep(10);
+        }
+        super.tearDown();
+    }
+
+    /**
+     * @return the text of the single field of each response
+     */
+    private String[] submit(int count) throws Exception {
+        Future[] results = new Future[count];
+        for (int i = 0; i < count; i++) {
+            Packet request = new Packet(1);
+            request.setCharacters(0, "request " + i);
+            results[i] = this.client.submit(request);
+            // keep the arrival order deterministic
+            Thread.sleep(10);
+            if (i == 0) {
+                // the first request occupies the processor, it is not queued
+                for (int j = 0; j < 100 && this.reactor.getMetricsSnapshot().get("processor.started") == 0; j++) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        String[] responses = new String[count];
+        for (int i = 0; i < count; i++) {
+            responses[i] = ((Packet) results[i].get()).getCharacters(0).toString();
+        }
+        return responses;
+    }
+
+    public void testReject() throws Exception {
+        this.reactor.setQueueLimit(1, AdmissionPolicy.REJECT);
+        String[] responses = this.submit(4);
+        assertEquals("request 0", responses[0]);
+        assertEquals("request 1", responses[1]);
+        assertEquals("rejected", responses[2]);
+        assertEquals("rejected", responses[3]);
+        assertEquals(2, this.reactor.getMetricsSnapshot().get("processor.rejected"));
+    }
+
+    public void testDropOldest() throws Exception {
+        this.reactor.setQueueLimit(1, AdmissionPolicy.DROP_OLDEST);
+        String[] responses = this.submit(3);
+        assertEquals("request 0", responses[0]);
+        assertEquals("dropped", responses[1]);
+        assertEquals("request 2", responses[2]);
+    }
+
+    public void testPause() throws Exception {
+        this.reactor.setQueueLimit(1, AdmissionPolicy.PAUSE);
+        String[] responses = this.submit(4);
+        for (int i = 0; i < responses.length; i++) {
+            assertEquals("request " + i, responses[i]);
+        }
+        assertEquals(0, this.reactor.getMetricsSnapshot().get("processor.rejected"));
+    }
+
+    public void testDeadline() throws Exception {
+        this.reactor.setQueueDeadline(DELAY / 2);
+        String[] responses = this.submit(3);
+        assertEquals("request 0", responses[0]);
+        assertEquals("expired", responses[1]);
+        assertEquals("expired", responses[2]);
+        assertEquals(2, this.reactor.getMetricsSnapshot().get("processor.expired"));
+    }
+
+}
@@ -0,0 +1,128 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import junit.framework.TestCase;
+import net.sf.uranion.packet.Packet;
+import net.sf.uranion.packet.PacketCallback;
+
+public class AsyncPacketClientTest extends TestCase {
+
+    private static final int PORT = 7785;
+
+    private static final int NUM_CONNECTIONS = 4;
+
+    private PacketReactor reactor;
+
+    private Thread acceptor;
+
+    private AsyncPacketClient client;
+
+    public AsyncPacketClientTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        this.reactor = new PacketReactor(PORT, 2, 2, null, PacketProcessor.ECHO);
+        this.acceptor = ReactorTestSupport.start(this.reactor);
+        this.client = new AsyncPacketClient();
+    }
+
+    protected void tearDown() throws Exception {
+        this.client.shutdown();
+        ReactorTestSupport.stop(this.reactor, this.acceptor);
+        super.tearDown();
+    }
+
+    public void testOutstanding() throws Exception {
+        AsyncPacketClient.Connection[] connections = new AsyncPacketClient.Connection[NUM_CONNECTIONS];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = this.client.connect("localhost", PORT);
+        }
+        CompletableFuture[] results = new CompletableFuture[2000];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = connections[i % connections.length].submit(ReactorTestSupport.createRequest(i));
+        }
+        for (int i = 0; i < results.length; i++) {
+            Packet response = (Packet) results[i].get();
+            assertEquals(i, response.getNumber(0));
+            assertEquals("request " + i, response.getCharacters(1).toString());
+        }
+        for (int i = 0; i < connections.length; i++) {
+            assertEquals(0, connections[i].getOutstandingCount());
+            connections[i].close();
+        }
+    }
+
+    public void testCallback() throws Exception {
+        AsyncPacketClient.Connection connection = this.client.connect("localhost", PORT);
+        final Packet[] responses = new Packet[100];
+        for (int i = 0; i < responses.length; i++) {
+            final int index = i;
+            connection.send(ReactorTestSupport.createRequest(i), new PacketCallback() {
+                public void handlePacketCallback(Packet packet) {
+                    synchronized (responses) {
+                        responses[index] = packet;
+                        responses.notifyAll();
+                    }
+                }
+            });
+        }
+        synchronized (responses) {
+            for (int i = 0; i < responses.length; i++) {
+                while (responses[i] == null) {
+                    responses.wait(5000);
+                }
+                assertEquals(i, responses[i].getNumber(0));
+            }
+        }
+        assertEquals(7, connection.process(ReactorTestSupport.createRequest(7)).getNumber(0));
+    }
+
+    public void testSharedRequest() throws Exception {
+        AsyncPacketClient.Connection connection = this.client.connect("localhost", PORT);
+        Packet request = ReactorTestSupport.createRequest(3);
+        CompletableFuture[] results = new CompletableFuture[20];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = connection.submit(request);
+        }
+        for (int i = 0; i < results.length; i++) {
+            assertEquals(3, ((Packet) results[i].get()).getNumber(0));
+        }
+        assertEquals(Packet.NO_CORRELATION_ID, request.getCorrelationId());
+        assertEquals(0, connection.getOutstandingCount());
+    }
+
+    public void testConnectionFailure() throws Exception {
+        AsyncPacketClient.Connection refused = this.client.connect("localhost", PORT + 100);
+        try {
+            refused.submit(ReactorTestSupport.createRequest(0)).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        try {
+            refused.submit(ReactorTestSupport.createRequest(1));
+            fail();
+        } catch (IOException e) {
+            // failed for good
+        }
+
+        AsyncPacketClient.Connection connection = this.client.connect("localhost", PORT);
+        assertEquals(1, connection.process(ReactorTestSupport.createRequest(1)).getNumber(0));
+        this.reactor.shutdown();
+        for (int i = 0; i < 100 && this.reactor.hasActiveConnections(); i++) {
+            Thread.sleep(10);
+        }
+        try {
+            connection.process(ReactorTestSupport.createRequest(2));
+            fail();
+        } catch (IOException e) {
+            // connection closed by the server
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package net.sf.uranion.reactor;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import junit.framework.TestCase;
+
+public class MetricsRegistryTest extends TestCase {
+
+    private MetricsRegistry registry;
+
+    public MetricsRegistryTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        this.registry = new MetricsRegistry();
+    }
+
+    public void testCounter() throws InterruptedException {
+        final StripedCounter counter = this.registry.counter("test.counter");
+        assertSame(counter, this.registry.counter("test.counter"));
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertEquals(40000, this.registry.snapshot().get("test.counter"));
+    }
+
+    public void testBuckets() {
+        for (long value = 0; value < 100000; value += 7) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value <= LatencyHistogram.upperBoundOf(bucket));
+            assertTrue(bucket == 0 || value > LatencyHistogram.upperBoundOf(bucket - 1));
+        }
+        assertTrue(LatencyHistogram.bucketOf(Long.MAX_VALUE) < 64 * 8);
+    }
+
+    public void testHistogram() {
+        LatencyHistogram histogram = this.registry.histogram("test.latency");
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        MetricsSnapshot snapshot = this.registry.snapshot();
+        assertEquals(1000, snapshot.get("test.latency.count"));
+        assertEquals(500, snapshot.get("test.latency.mean"));
+        assertEquals(1000, snapshot.get("test.latency.max"));
+        long median = snapshot.get("test.latency.p50");
+        assertTrue(median >= 500 && median < 500 * 1.13);
+        long p99 = snapshot.get("test.latency.p99");
+        assertTrue(p99 >= 990 && p99 <= 1000);
+    }
+
+    public void testConcurrentHistogram() throws InterruptedException {
+        final LatencyHistogram histogram = this.registry.histogram("test.latency");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = 1000 * i;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 1; j <= 1000; j++) {
+                        histogram.record(offset + j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        MetricsSnapshot snapshot = this.registry.snapshot();
+        assertEquals(4000, snapshot.get("test.latency.count"));
+        assertEquals(2000, snapshot.get("test.latency.mean"));
+        assertEquals(4000, snapshot.get("test.latency.max"));
+        long median = snapshot.get("test.latency.p50");
+        assertTrue(median >= 2000 && median < 2000 * 1.13);
+    }
+
+    public void testExport() throws Exception {
+        this.registry.counter("test.counter").add(5);
+        this.registry.gauge("test.gauge", new Gauge() {
+            public long getValue() {
+                return 42;
+            }
+        });
+        ObjectName name = new ObjectName("net.sf.uranion:type=Metrics,name=test");
+        this.registry.export(name);
+        try {
+            assertEquals(new Long(5), ManagementFactory.getPlatformMBeanServer().getAttribute(name, "test.counter"));
+            assertEquals(new Long(42), ManagementFactory.getPlatformMBeanServer().getAttribute(name, "test.gauge"));
+            try {
+                ManagementFactory.getPlatformMBeanServer().invoke(name, "reset", null, null);
+                fail();
+            } catch (ReflectionException e) {
+                assertTrue(e.getTargetException() instanceof NoSuchMethodException);
+            }
+        } finally {
+            this.registry.unexport(name);
+        }
+    }
+
+}
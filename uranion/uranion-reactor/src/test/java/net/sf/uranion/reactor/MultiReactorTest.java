@@ -0,0 +1,64 @@
+package net.sf.uranion.reactor;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+import net.sf.uranion.packet.Packet;
+
+public class MultiReactorTest extends TestCase {
+
+    private static final int PORT = 7778;
+
+    private static final int NUM_CLIENTS = 4;
+
+    private PacketReactor reactor;
+
+    public MultiReactorTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        this.reactor = new PacketReactor(PORT, 2, 3, ConnectionBalancer.LEAST_CONNECTIONS, PacketProcessor.ECHO);
+        new Thread(this.reactor).start();
+    }
+
+    protected void tearDown() throws Exception {
+        this.reactor.stopListen();
+        super.tearDown();
+    }
+
+    public void testRoundtrip() throws Exception {
+        PacketProcessorClient[] clients = new PacketProcessorClient[NUM_CLIENTS];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new PacketProcessorClient(new InetSocketAddress("localhost", PORT));
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < clients.length; i++) {
+                Packet dummy = new Packet(2);
+                dummy.setCharacters(0, "hello reactor " + i);
+                dummy.setNumber(1, round);
+                Packet processed = clients[i].process(dummy);
+                assertEquals(dummy.getCharacters(0), processed.getCharacters(0));
+                assertEquals(round, processed.getNumber(1));
+            }
+        }
+        // 4 connections on 3 workers, least connections first
+        ConnectionReactor[] workers = this.reactor.getWorkers();
+        assertEquals(3, workers.length);
+        int total = 0;
+        for (int i = 0; i < workers.length; i++) {
+            int count = workers[i].getConnectionCount();
+            assertTrue("worker " + i + " has " + count + " connections", count == 1 || count == 2);
+            total += count;
+        }
+        assertEquals(NUM_CLIENTS, total);
+        for (int i = 0; i < clients.length; i++) {
+            clients[i].shutdown();
+        }
+        // echo runs on the reactor threads
+        MetricsSnapshot snapshot = this.reactor.getMetricsSnapshot();
+        assertEquals(2 * NUM_CLIENTS, snapshot.get("processor.inline"));
+        assertEquals(0, snapshot.get("processor.queued"));
+    }
+
+}
@@ -0,0 +1,106 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import net.sf.uranion.packet.Packet;
+
+public class PacketClientPoolTest extends TestCase {
+
+    private static final int PORT = 7783;
+
+    private static final PacketProcessor SLOW_ECHO = new PacketProcessor() {
+        public Packet process(Packet packet) throws IOException {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return packet;
+        }
+    };
+
+    private PacketReactor[] reactors = new PacketReactor[2];
+
+    private Thread[] threads = new Thread[2];
+
+    private SocketAddress[] endpoints = new SocketAddress[2];
+
+    private PacketClientPool pool;
+
+    public PacketClientPoolTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        for (int i = 0; i < this.reactors.length; i++) {
+            this.reactors[i] = new PacketReactor(PORT + i, 4, SLOW_ECHO);
+            this.threads[i] = ReactorTestSupport.start(this.reactors[i]);
+            this.endpoints[i] = new InetSocketAddress("localhost", PORT + i);
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        if (this.pool != null) {
+            this.pool.shutdown();
+        }
+        for (int i = 0; i < this.reactors.length; i++) {
+            ReactorTestSupport.stop(this.reactors[i], this.threads[i]);
+        }
+        super.tearDown();
+    }
+
+    public void testBalancing() throws Exception {
+        this.pool = new PacketClientPool(this.endpoints, 1, 2);
+        assertEquals(1, this.pool.getConnectionCount(0));
+        assertEquals(1, this.pool.getConnectionCount(1));
+
+        Future[] results = new Future[8];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = this.pool.submit(ReactorTestSupport.createRequest(i));
+        }
+        for (int i = 0; i < results.length; i++) {
+            assertEquals(i, ((Packet) results[i].get()).getNumber(0));
+        }
+        // least outstanding alternates between the endpoints
+        for (int i = 0; i < this.reactors.length; i++) {
+            assertEquals(results.length / 2, this.reactors[i].getMetricsSnapshot().get("packets.in"));
+            assertEquals(2, this.pool.getConnectionCount(i));
+        }
+    }
+
+    public void testIdleEviction() throws Exception {
+        this.pool = new PacketClientPool(this.endpoints[0], 1, 4);
+        Future[] results = new Future[4];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = this.pool.submit(ReactorTestSupport.createRequest(i));
+        }
+        for (int i = 0; i < results.length; i++) {
+            results[i].get();
+        }
+        assertEquals(4, this.pool.getConnectionCount(0));
+        this.pool.setIdleTimeout(0);
+        Thread.sleep(10);
+        this.pool.checkHealth();
+        assertEquals(1, this.pool.getConnectionCount(0));
+    }
+
+    public void testFailover() throws Exception {
+        this.pool = new PacketClientPool(this.endpoints, 1, 1);
+        this.pool.setRetryDelay(60000);
+        this.reactors[0].shutdown();
+        for (int i = 0; i < 100 && this.reactors[0].hasActiveConnections(); i++) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, this.pool.process(ReactorTestSupport.createRequest(i)).getNumber(0));
+        }
+        assertEquals(0, this.pool.getConnectionCount(0));
+        assertEquals(4, this.reactors[1].getMetricsSnapshot().get("packets.in"));
+    }
+
+}
@@ -0,0 +1,125 @@
+package net.sf.uranion.reactor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+import net.sf.uranion.packet.Packet;
+
+public class PacketJournalTest extends TestCase {
+
+    private static final int PORT = 7787;
+
+    private File directory;
+
+    private PacketJournal journal;
+
+    public PacketJournalTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        this.directory = File.createTempFile("uranion", ".journal");
+        this.directory.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        if (this.journal != null) {
+            this.journal.close();
+        }
+        File[] files = this.directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        this.directory.delete();
+        super.tearDown();
+    }
+
+    public void testRollingSegments() throws Exception {
+        this.journal = new PacketJournal(this.directory, 1024);
+        for (int i = 0; i < 100; i++) {
+            this.journal.append(ReactorTestSupport.createRequest(i));
+        }
+        this.journal.close();
+        assertTrue(PacketJournal.listSegments(this.directory).length > 1);
+
+        JournalReader reader = new JournalReader(this.directory);
+        long timestamp = 0;
+        for (int i = 0; i < 100; i++) {
+            assertTrue(reader.next());
+            assertEquals(i, reader.getPacket().getNumber(0));
+            assertEquals("request " + i, reader.getPacket().getCharacters(1).toString());
+            assertTrue(reader.getTimestamp() >= timestamp);
+            timestamp = reader.getTimestamp();
+        }
+        assertFalse(reader.next());
+
+        // continues after the last segment
+        int segments = PacketJournal.listSegments(this.directory).length;
+        this.journal = new PacketJournal(this.directory, 1024);
+        this.journal.append(ReactorTestSupport.createRequest(100));
+        this.journal.close();
+        assertEquals(segments + 1, PacketJournal.listSegments(this.directory).length);
+        try {
+            this.journal.append(ReactorTestSupport.createRequest(0));
+            fail();
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    public void testReplayRate() throws Exception {
+        this.journal = new PacketJournal(this.directory);
+        for (int i = 0; i < 5; i++) {
+            this.journal.append(ReactorTestSupport.createRequest(i));
+            Thread.sleep(50);
+        }
+        this.journal.close();
+        final int[] next = new int[1];
+        final Packet constant = new Packet(1);
+        constant.setNumber(0, 42);
+        PacketProcessor checking = new PacketProcessor() {
+            public Packet process(Packet packet) {
+                assertEquals(next[0]++ % 5, packet.getNumber(0));
+                return constant;
+            }
+        };
+        long start = System.currentTimeMillis();
+        assertEquals(5, new JournalReplay(this.directory, 1).replay(checking));
+        assertTrue(System.currentTimeMillis() - start >= 180);
+
+        start = System.currentTimeMillis();
+        assertEquals(5, new JournalReplay(this.directory, JournalReplay.MAX_SPEED).replay(checking));
+        assertTrue(System.currentTimeMillis() - start < 150);
+        assertEquals(10, next[0]);
+        // the response belongs to the processor
+        assertEquals(42, constant.getNumber(0));
+    }
+
+    public void testRecordAndReplay() throws Exception {
+        PacketReactor reactor = new PacketReactor(PORT, 2, PacketProcessor.ECHO);
+        this.journal = new PacketJournal(this.directory);
+        reactor.setJournal(this.journal);
+        Thread thread = ReactorTestSupport.start(reactor);
+        try {
+            PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT));
+            for (int i = 0; i < 5; i++) {
+                client.process(ReactorTestSupport.createRequest(i));
+            }
+            client.shutdown();
+            this.journal.close();
+            assertEquals(5, reactor.getMetricsSnapshot().get("journal.appended"));
+
+            PacketClientPool pool = new PacketClientPool(new InetSocketAddress("localhost", PORT), 1, 2);
+            assertEquals(5, new JournalReplay(this.directory, JournalReplay.MAX_SPEED).replay(pool));
+            pool.shutdown();
+            assertEquals(10, reactor.getMetricsSnapshot().get("packets.in"));
+            // closed before the replay
+            assertEquals(5, reactor.getMetricsSnapshot().get("journal.failed"));
+        } finally {
+            ReactorTestSupport.stop(reactor, thread);
+        }
+    }
+
+}
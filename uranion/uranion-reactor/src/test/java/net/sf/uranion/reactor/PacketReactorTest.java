@@ -1,8 +1,12 @@
 package net.sf.uranion.reactor;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Future;
 
 import junit.framework.TestCase;
+import net.sf.uranion.packet.FieldCodec;
 import net.sf.uranion.packet.Packet;
 
 
@@ -10,6 +14,24 @@ public class PacketReactorTest extends TestCase {
 
     private static final int PORT = 7777;
 
+    private static final int SHARED_RESPONSE_PORT = 7792;
+
+    /**
+     * Echoes packets, delaying those with a negative number by as many ms.
+     */
+    private static final PacketProcessor DELAYED_ECHO = new PacketProcessor() {
+        public Packet process(Packet packet) throws IOException {
+            if (packet.getNumber(1) < 0) {
+                try {
+                    Thread.sleep(-packet.getNumber(1));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return packet;
+        }
+    };
+
     private PacketReactor reactor;
 
     public PacketReactorTest(String name) {
@@ -17,12 +39,15 @@ public class PacketReactorTest extends TestCase {
     }
 
     protected void setUp() throws Exception {
-        this.reactor = new PacketReactor(PORT, 2, PacketProcessor.ECHO);
+        this.reactor = new PacketReactor(PORT, 2, DELAYED_ECHO);
         new Thread(this.reactor).start();
     }
 
     protected void tearDown() throws Exception {
         this.reactor.stopListen();
+        for (int i = 0; i < 100 && this.reactor.hasActiveConnections(); i++) {
+            Thread.sleep(10);
+        }
         super.tearDown();
     }
 
@@ -39,6 +64,157 @@ public class PacketReactorTest extends TestCase {
         assertProcessed(dummy, processed2);
     }
 
+    public void testMetrics() throws Exception {
+        PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT));
+        Packet dummy = this.createDummyRequest("metrics");
+        for (int i = 0; i < 3; i++) {
+            client.process(dummy);
+        }
+        client.shutdown();
+
+        MetricsSnapshot snapshot = this.reactor.getMetricsSnapshot();
+        assertEquals(1, snapshot.get("connections.accepted"));
+        assertEquals(3, snapshot.get("packets.in"));
+        // sent with a correlation id, the request itself carries none
+        assertEquals(3 * dummy.getWireSize(1), snapshot.get("bytes.in"));
+        assertEquals(3, snapshot.get("processor.latency.count"));
+        assertEquals(0, snapshot.get("processor.queue"));
+        assertTrue(snapshot.get("selector.loops") > 0);
+        assertTrue(snapshot.get("selector.dispatch.count") > 0);
+    }
+
+    public void testPipelined() throws Exception {
+        PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT));
+
+        Future[] results = new Future[50];
+        for (int i = 0; i < results.length; i++) {
+            Packet request = new Packet(2);
+            request.setCharacters(0, "request " + i);
+            request.setNumber(1, i);
+            results[i] = client.submit(request);
+        }
+        for (int i = 0; i < results.length; i++) {
+            Packet response = (Packet) results[i].get();
+            assertEquals("request " + i, response.getCharacters(0).toString());
+            assertEquals(i, response.getNumber(1));
+        }
+
+        client.shutdown();
+    }
+
+    public void testOutOfOrder() throws Exception {
+        PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT));
+
+        Packet slow = this.createDummyRequest("slow");
+        slow.setNumber(1, -1000);
+        Packet fast = this.createDummyRequest("fast");
+        Future slowResult = client.submit(slow);
+        Future fastResult = client.submit(fast);
+
+        assertProcessed(fast, (Packet) fastResult.get());
+        assertFalse(slowResult.isDone());
+        assertProcessed(slow, (Packet) slowResult.get());
+
+        client.shutdown();
+    }
+
+    public void testSharedRequest() throws Exception {
+        PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT));
+
+        Packet dummy = this.createDummyRequest("shared");
+        Future[] results = new Future[20];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = client.submit(dummy);
+        }
+        for (int i = 0; i < results.length; i++) {
+            assertProcessed(dummy, (Packet) results[i].get());
+        }
+        assertEquals(Packet.NO_CORRELATION_ID, dummy.getCorrelationId());
+
+        client.shutdown();
+    }
+
+    public void testSharedResponse() throws Exception {
+        StringBuffer buffer = new StringBuffer();
+        for (int i = 0; i < 100; i++) {
+            buffer.append("shared ");
+        }
+        final String text = buffer.toString();
+        final Packet constant = new Packet(3);
+        constant.setCharacters(0, text);
+        constant.setObject(1, new Integer(42));
+        constant.setNumber(2, 7);
+        constant.compress(FieldCodec.FAST, 64);
+        assertTrue(constant.isCompressed(0));
+        PacketReactor shared = new PacketReactor(SHARED_RESPONSE_PORT, 4, new PacketProcessor() {
+            public Packet process(Packet packet) {
+                return constant;
+            }
+        });
+        new Thread(shared).start();
+        final PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", SHARED_RESPONSE_PORT));
+        final int[] failures = new int[1];
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 200; j++) {
+                        try {
+                            Packet response = client.process(new Packet(0));
+                            if (response.getFieldCount() != 3 || !text.equals(response.getCharacters(0).toString())
+                                    || !new Integer(42).equals(response.getObject(1)) || response.getNumber(2) != 7) {
+                                throw new IOException("unexpected response " + response);
+                            }
+                        } catch (Exception e) {
+                            synchronized (failures) {
+                                failures[0]++;
+                            }
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        client.shutdown();
+        shared.shutdown();
+
+        assertEquals(0, failures[0]);
+        assertEquals(Packet.NO_CORRELATION_ID, constant.getCorrelationId());
+        assertEquals(text, constant.getCharacters(0).toString());
+        assertEquals(new Integer(42), constant.getObject(1));
+    }
+
+    public void testResponseCompression() throws Exception {
+        this.reactor.setResponseCompression(FieldCodec.FAST, 256);
+        PacketClientPool pool = new PacketClientPool(new InetSocketAddress("localhost", PORT), 1, 1);
+        StringBuffer text = new StringBuffer();
+        for (int i = 0; i < 200; i++) {
+            text.append("compressible ");
+        }
+        Packet request = this.createDummyRequest(text.toString());
+        Packet response = pool.process(request);
+        assertTrue(response.isCompressed(0));
+        assertFalse(response.isCompressed(1));
+        assertTrue(response.getWireSize() < request.getWireSize() / 4);
+        assertProcessed(request, response);
+
+        // compressed requests are decompressed as the processor reads them
+        Packet small = this.createDummyRequest(text.toString());
+        small.compress(FieldCodec.DEFLATE, 0);
+        assertProcessed(request, pool.process(small));
+        pool.shutdown();
+
+        // the processor's response is written compressed but not changed
+        LocalPacketClient local = this.reactor.connectLocal();
+        Packet echoed = local.process(request);
+        assertSame(request, echoed);
+        assertFalse(echoed.isCompressed(0));
+        local.shutdown();
+    }
+
     private void assertProcessed(Packet dummy, Packet result) {
         assertEquals(dummy.getCharacters(0), result.getCharacters(0));
         assertEquals(dummy.getNumber(1), result.getNumber(1));
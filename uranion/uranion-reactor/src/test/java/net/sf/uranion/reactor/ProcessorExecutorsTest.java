@@ -0,0 +1,71 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+
+import junit.framework.TestCase;
+import net.sf.uranion.packet.Packet;
+
+public class ProcessorExecutorsTest extends TestCase {
+
+    private static final int PORT = 7781;
+
+    public ProcessorExecutorsTest(String name) {
+        super(name);
+    }
+
+    public void testForkJoin() throws Exception {
+        ExecutorService pool = ProcessorExecutors.forkJoin(2);
+        this.roundtrip(pool);
+        assertFalse(pool.isShutdown());
+        pool.shutdown();
+    }
+
+    public void testVirtualThreads() throws Exception {
+        if (!ProcessorExecutors.hasVirtualThreads()) {
+            try {
+                ProcessorExecutors.virtualThreads();
+                fail();
+            } catch (UnsupportedOperationException e) {
+                // older runtime
+            }
+            return;
+        }
+        ExecutorService pool = ProcessorExecutors.virtualThreads();
+        this.roundtrip(pool);
+        pool.shutdown();
+    }
+
+    /**
+     * Echoes a request through a reactor on the pool and shuts the reactor
+     * down while the client is still connected.
+     */
+    private void roundtrip(ExecutorService pool) throws Exception {
+        PacketReactor reactor = new PacketReactor(PORT, pool, 1, null, new PacketProcessor() {
+            public Packet process(Packet packet) {
+                return packet;
+            }
+        });
+        Thread acceptor = new Thread(reactor);
+        acceptor.start();
+        PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT));
+
+        Packet dummy = new Packet(1);
+        dummy.setCharacters(0, "hello pool");
+        assertEquals(dummy.getCharacters(0), client.process(dummy).getCharacters(0));
+        assertEquals(1, reactor.getMetricsSnapshot().get("processor.started"));
+
+        reactor.shutdown();
+        acceptor.join(5000);
+        assertFalse(acceptor.isAlive());
+        try {
+            client.process(dummy);
+            fail();
+        } catch (IOException e) {
+            // connection closed by the server
+        }
+        client.shutdown();
+    }
+
+}
@@ -0,0 +1,46 @@
+package net.sf.uranion.reactor;
+
+import net.sf.uranion.packet.Packet;
+
+/**
+ * Fixtures shared by the reactor tests.
+ */
+final class ReactorTestSupport {
+
+    private ReactorTestSupport() {
+    }
+
+    /**
+     * @return a request holding its index as number (field 0) and within
+     *         <code>"request " + i</code> (field 1)
+     */
+    static Packet createRequest(int i) {
+        Packet request = new Packet(2);
+        request.setNumber(0, i);
+        request.setCharacters(1, "request " + i);
+        return request;
+    }
+
+    /**
+     * Runs the reactor on a thread of its own.
+     */
+    static Thread start(PacketReactor reactor) {
+        Thread thread = new Thread(reactor);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Shuts the reactor down and waits for its thread, so the port is free
+     * for the next test. Either may be <code>null</code>.
+     */
+    static void stop(PacketReactor reactor, Thread thread) throws Exception {
+        if (reactor != null) {
+            reactor.shutdown();
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+package net.sf.uranion.reactor;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+import net.sf.uranion.packet.Packet;
+
+public class ReusePortTest extends TestCase {
+
+    private static final int PORT = 7790;
+
+    private PacketReactor reactor;
+
+    private Thread thread;
+
+    public ReusePortTest(String name) {
+        super(name);
+    }
+
+    protected void tearDown() throws Exception {
+        ReactorTestSupport.stop(this.reactor, this.thread);
+        super.tearDown();
+    }
+
+    private static boolean isReusePortSupported() throws Exception {
+        if (ChannelOptions.reusePort() == null) {
+            return false;
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            return channel.supportedOptions().contains(ChannelOptions.reusePort());
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void start(ServerOptions options) throws Exception {
+        this.start(PORT, options);
+    }
+
+    private void start(int port, ServerOptions options) throws Exception {
+        this.reactor = new PacketReactor(new InetSocketAddress(port), ProcessorExecutors.fixed(2), 3, null, PacketProcessor.ECHO, options);
+        this.thread = ReactorTestSupport.start(this.reactor);
+    }
+
+    private static void connect(int count) throws Exception {
+        connect(PORT, count);
+    }
+
+    private static void connect(int port, int count) throws Exception {
+        PacketProcessorClient[] clients = new PacketProcessorClient[count];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new PacketProcessorClient(new InetSocketAddress("localhost", port));
+        }
+        for (int i = 0; i < clients.length; i++) {
+            Packet request = new Packet(1);
+            request.setNumber(0, i);
+            assertEquals(i, clients[i].process(request).getNumber(0));
+        }
+        for (int i = 0; i < clients.length; i++) {
+            clients[i].shutdown();
+        }
+    }
+
+    public void testListenerPerReactor() throws Exception {
+        if (!isReusePortSupported()) {
+            return;
+        }
+        ServerOptions options = new ServerOptions();
+        options.setListenerPerReactor(true);
+        this.start(options);
+
+        connect(40);
+        assertEquals(40, this.reactor.getMetricsSnapshot().get("connections.accepted"));
+
+        // all listeners are closed, the port can be bound without sharing
+        ReactorTestSupport.stop(this.reactor, this.thread);
+        this.reactor = null;
+        this.thread = null;
+        Thread.sleep(100);
+        this.start(new ServerOptions());
+        connect(1);
+    }
+
+    public void testListenerPerReactorEphemeralPort() throws Exception {
+        if (!isReusePortSupported()) {
+            return;
+        }
+        ServerOptions options = new ServerOptions();
+        options.setListenerPerReactor(true);
+        this.start(0, options);
+
+        int port = ((InetSocketAddress) this.reactor.getServerSocket().getLocalAddress()).getPort();
+        ConnectionReactor[] workers = this.reactor.getWorkers();
+        for (int i = 0; i < workers.length; i++) {
+            int listeners = 0;
+            Iterator keys = workers[i].getSelector().keys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = (SelectionKey) keys.next();
+                if (key.channel() instanceof ServerSocketChannel) {
+                    assertEquals(port, ((InetSocketAddress) ((ServerSocketChannel) key.channel()).getLocalAddress()).getPort());
+                    listeners++;
+                }
+            }
+            assertEquals(1, listeners);
+        }
+        connect(port, 20);
+        assertEquals(20, this.reactor.getMetricsSnapshot().get("connections.accepted"));
+    }
+
+    public void testSingleReactorDoesNotSharePort() throws Exception {
+        ServerOptions options = new ServerOptions();
+        options.setListenerPerReactor(true);
+        this.reactor = new PacketReactor(new InetSocketAddress(PORT), ProcessorExecutors.fixed(2), 0, null, PacketProcessor.ECHO, options);
+        this.thread = ReactorTestSupport.start(this.reactor);
+        if (isReusePortSupported()) {
+            assertEquals(Boolean.FALSE, this.reactor.getServerSocket().getOption(ChannelOptions.reusePort()));
+        }
+        connect(1);
+    }
+
+    public void testAcceptBatchSize() throws Exception {
+        ServerOptions options = new ServerOptions();
+        assertEquals(ServerOptions.DEFAULT_ACCEPT_BATCH_SIZE, options.getAcceptBatchSize());
+        options.setAcceptBatchSize(0);
+        assertEquals(1, options.getAcceptBatchSize());
+        this.start(options);
+
+        connect(20);
+        assertEquals(20, this.reactor.getMetricsSnapshot().get("connections.accepted"));
+    }
+
+}
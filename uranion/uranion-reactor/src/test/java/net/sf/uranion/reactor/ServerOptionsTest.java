@@ -0,0 +1,110 @@
+package net.sf.uranion.reactor;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import junit.framework.TestCase;
+import net.sf.uranion.packet.Packet;
+
+public class ServerOptionsTest extends TestCase {
+
+    private static final int PORT = 7789;
+
+    private PacketReactor reactor;
+
+    private Thread thread;
+
+    public ServerOptionsTest(String name) {
+        super(name);
+    }
+
+    protected void tearDown() throws Exception {
+        ReactorTestSupport.stop(this.reactor, this.thread);
+        super.tearDown();
+    }
+
+    private void start(SocketAddress address, ServerOptions options) throws Exception {
+        this.reactor = new PacketReactor(address, ProcessorExecutors.fixed(2), 1, null, PacketProcessor.ECHO, options);
+        this.thread = ReactorTestSupport.start(this.reactor);
+    }
+
+    public void testDefaults() {
+        ServerOptions options = new ServerOptions();
+        assertEquals(ServerOptions.DEFAULT_BUFFER_SIZE, options.getReceiveBufferSize());
+        assertEquals(ServerOptions.DEFAULT_BUFFER_SIZE, options.getSendBufferSize());
+        assertEquals(0, options.getMaxSendBufferSize());
+        assertTrue(options.isTcpNoDelay());
+        options.setSendBufferSize(-1);
+        assertEquals(0, options.getSendBufferSize());
+    }
+
+    public void testAdaptiveSendBuffer() throws Exception {
+        ServerOptions options = new ServerOptions();
+        options.setSendBufferSize(16 * 1024);
+        options.setAdaptiveSendBuffer(1024 * 1024);
+        this.start(new InetSocketAddress(PORT), options);
+
+        ClientOptions clientOptions = new ClientOptions();
+        clientOptions.setReceiveBufferSize(16 * 1024);
+        PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT), clientOptions);
+        byte[] payload = new byte[4 * 1024 * 1024];
+        payload[payload.length - 1] = 42;
+        for (int i = 0; i < 3; i++) {
+            Packet request = new Packet(1);
+            request.setRaw(0, payload, false);
+            Packet response = client.process(request);
+            assertEquals(42, response.getRaw(0).get(payload.length - 1));
+        }
+        client.shutdown();
+        assertTrue(this.reactor.getMetricsSnapshot().get("connections.sndbuf.grown") > 0);
+    }
+
+    public void testAdaptiveSendBufferLimit() throws Exception {
+        ServerOptions options = new ServerOptions();
+        options.setSendBufferSize(16 * 1024);
+        options.setAdaptiveSendBuffer(64 * 1024);
+        this.start(new InetSocketAddress(PORT), options);
+
+        ClientOptions clientOptions = new ClientOptions();
+        clientOptions.setReceiveBufferSize(16 * 1024);
+        PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT), clientOptions);
+        Packet request = new Packet(1);
+        request.setRaw(0, new byte[4 * 1024 * 1024], false);
+        client.process(request);
+        client.shutdown();
+        // 16 KB to 32 KB to 64 KB, whatever size the system reports
+        assertEquals(2, this.reactor.getMetricsSnapshot().get("connections.sndbuf.grown"));
+    }
+
+    public void testFixedSendBuffer() throws Exception {
+        ServerOptions options = new ServerOptions();
+        options.setSendBufferSize(16 * 1024);
+        this.start(new InetSocketAddress(PORT), options);
+
+        PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT), new ClientOptions());
+        Packet request = new Packet(1);
+        request.setRaw(0, new byte[1024 * 1024], false);
+        assertEquals(1024 * 1024, client.process(request).getRaw(0).remaining());
+        client.shutdown();
+        assertEquals(0, this.reactor.getMetricsSnapshot().get("connections.sndbuf.grown"));
+    }
+
+    public void testUnixDomainSocketSkipsTcpOptions() throws Exception {
+        if (!UnixDomainSockets.isSupported()) {
+            return;
+        }
+        File file = File.createTempFile("uranion", ".sock");
+        SocketAddress address = UnixDomainSockets.address(file.getPath());
+        ServerOptions options = new ServerOptions();
+        options.setAdaptiveSendBuffer(1024 * 1024);
+        this.start(address, options);
+
+        PacketProcessorClient client = new PacketProcessorClient(address, new ClientOptions());
+        Packet request = new Packet(1);
+        request.setNumber(0, 7);
+        assertEquals(7, client.process(request).getNumber(0));
+        client.shutdown();
+    }
+
+}
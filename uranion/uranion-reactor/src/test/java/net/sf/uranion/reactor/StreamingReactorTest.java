@@ -0,0 +1,95 @@
+package net.sf.uranion.reactor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import net.sf.uranion.packet.Packet;
+
+public class StreamingReactorTest extends TestCase {
+
+    private static final int PORT = 7779;
+
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Answers the number of bytes and the sum of all bytes of every field, and
+     * whether the chunks arrived in order and within the chunk size.
+     */
+    private static final StreamingPacketProcessor CHECKSUM = new StreamingPacketProcessor() {
+
+        public Packet process(Packet packet) {
+            throw new UnsupportedOperationException();
+        }
+
+        public PacketStream open(final Packet header) {
+            return new PacketStream() {
+
+                private long[] counts = new long[header.getFieldCount()];
+
+                private long[] sums = new long[header.getFieldCount()];
+
+                private boolean wellFormed = true;
+
+                public void handleChunk(int position, long offset, ByteBuffer chunk) {
+                    this.wellFormed &= offset == this.counts[position] && chunk.remaining() <= CHUNK_SIZE;
+                    this.counts[position] += chunk.remaining();
+                    while (chunk.hasRemaining()) {
+                        this.sums[position] += chunk.get() & 0xff;
+                    }
+                }
+
+                public Packet complete() {
+                    Packet result = new Packet(2 * this.counts.length + 1);
+                    for (int i = 0; i < this.counts.length; i++) {
+                        result.setNumber(2 * i, this.counts[i]);
+                        result.setNumber(2 * i + 1, this.sums[i]);
+                    }
+                    result.setNumber(2 * this.counts.length, this.wellFormed ? 1 : 0);
+                    return result;
+                }
+            };
+        }
+    };
+
+    private PacketReactor reactor;
+
+    public StreamingReactorTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        this.reactor = new PacketReactor(PORT, 2, CHECKSUM);
+        this.reactor.setStreamChunkSize(CHUNK_SIZE);
+        new Thread(this.reactor).start();
+    }
+
+    protected void tearDown() throws Exception {
+        this.reactor.stopListen();
+        super.tearDown();
+    }
+
+    public void testLargeField() throws IOException {
+        PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT));
+        ByteBuffer data = ByteBuffer.allocate(3 * 1024 * 1024 + 17);
+        long sum = 0;
+        for (int i = 0; i < data.capacity(); i++) {
+            data.put(i, (byte) i);
+            sum += i & 0xff;
+        }
+        for (int round = 0; round < 3; round++) {
+            Packet request = new Packet(3);
+            request.setCharacters(0, "large");
+            request.setRaw(1, data, false);
+            Packet response = client.process(request);
+            assertEquals(1, response.getNumber(6));
+            assertEquals(request.getFieldLength(0), response.getNumber(0));
+            assertEquals(0, response.getNumber(4));
+            assertEquals(data.capacity(), response.getNumber(2));
+            assertEquals(sum, response.getNumber(3));
+        }
+        client.shutdown();
+    }
+
+}
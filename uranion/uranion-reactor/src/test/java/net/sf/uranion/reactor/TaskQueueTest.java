@@ -0,0 +1,76 @@
+package net.sf.uranion.reactor;
+
+import junit.framework.TestCase;
+
+public class TaskQueueTest extends TestCase {
+
+    private static final int PRODUCERS = 4;
+
+    private static final int TASKS = 10000;
+
+    public TaskQueueTest(String name) {
+        super(name);
+    }
+
+    public void testSignal() {
+        TaskQueue queue = new TaskQueue();
+        assertNull(queue.poll());
+        assertTrue(queue.offer(new Task(0, 0)));
+        assertFalse(queue.offer(new Task(0, 1)));
+        queue.resetSignal();
+        assertFalse(queue.poll() == null);
+        assertTrue(queue.offer(new Task(0, 2)));
+        assertEquals(1, ((Task) queue.poll()).sequence);
+        assertEquals(2, ((Task) queue.poll()).sequence);
+        assertNull(queue.poll());
+    }
+
+    public void testProducers() throws Exception {
+        final TaskQueue queue = new TaskQueue();
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < producers.length; i++) {
+            final int producer = i;
+            producers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < TASKS; j++) {
+                        queue.offer(new Task(producer, j));
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        int[] next = new int[PRODUCERS];
+        int received = 0;
+        while (received < PRODUCERS * TASKS) {
+            Task task = (Task) queue.poll();
+            if (task == null) {
+                Thread.yield();
+                continue;
+            }
+            // tasks of one producer keep their order
+            assertEquals(next[task.producer]++, task.sequence);
+            received++;
+        }
+        for (int i = 0; i < producers.length; i++) {
+            producers[i].join();
+        }
+        assertNull(queue.poll());
+    }
+
+    private static final class Task implements Runnable {
+
+        private int producer;
+
+        private int sequence;
+
+        public Task(int producer, int sequence) {
+            this.producer = producer;
+            this.sequence = sequence;
+        }
+
+        public void run() {
+        }
+
+    } // inner-class
+
+}
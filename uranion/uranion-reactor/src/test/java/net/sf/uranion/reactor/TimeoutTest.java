@@ -0,0 +1,98 @@
+package net.sf.uranion.reactor;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+import net.sf.uranion.packet.Packet;
+
+public class TimeoutTest extends TestCase {
+
+    private static final int PORT = 7786;
+
+    private PacketReactor reactor;
+
+    private Thread thread;
+
+    public TimeoutTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        this.reactor = new PacketReactor(PORT, 2, PacketProcessor.ECHO);
+    }
+
+    private void start() {
+        this.thread = new Thread(this.reactor);
+        this.thread.start();
+    }
+
+    protected void tearDown() throws Exception {
+        this.reactor.shutdown();
+        this.thread.join();
+        super.tearDown();
+    }
+
+    /**
+     * @return the milliseconds until the server closed the connection
+     */
+    private static long awaitClose(Socket socket) throws Exception {
+        long start = System.currentTimeMillis();
+        socket.setSoTimeout(5000);
+        InputStream in = socket.getInputStream();
+        assertEquals(-1, in.read());
+        return System.currentTimeMillis() - start;
+    }
+
+    public void testIdleTimeout() throws Exception {
+        this.reactor.setTimeouts(300, 0, 0);
+        this.start();
+        Socket socket = new Socket("localhost", PORT);
+        long closed = awaitClose(socket);
+        assertTrue(closed >= 200);
+        socket.close();
+        assertEquals(1, this.reactor.getMetricsSnapshot().get("connections.timedout"));
+    }
+
+    public void testReadTimeout() throws Exception {
+        this.reactor.setTimeouts(0, 300, 0);
+        this.start();
+        Socket socket = new Socket("localhost", PORT);
+        OutputStream out = socket.getOutputStream();
+        // part of a TOC header, the rest never comes
+        out.write(new byte[] { 0, 0 });
+        out.flush();
+        awaitClose(socket);
+        socket.close();
+        assertEquals(1, this.reactor.getMetricsSnapshot().get("connections.timedout"));
+    }
+
+    public void testMinThroughput() throws Exception {
+        this.reactor.setMinThroughput(1000);
+        this.start();
+        Socket socket = new Socket("localhost", PORT);
+        socket.getOutputStream().write(new byte[] { 0 });
+        socket.getOutputStream().flush();
+        long closed = awaitClose(socket);
+        assertTrue(closed < 4000);
+        socket.close();
+        assertEquals(1, this.reactor.getMetricsSnapshot().get("connections.timedout"));
+    }
+
+    public void testActiveConnection() throws Exception {
+        this.reactor.setTimeouts(300, 300, 300);
+        this.start();
+        PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT));
+        Packet dummy = new Packet(1);
+        dummy.setCharacters(0, "still there");
+        for (int i = 0; i < 6; i++) {
+            assertEquals(dummy.getCharacters(0), client.process(dummy).getCharacters(0));
+            Thread.sleep(100);
+        }
+        assertEquals(0, this.reactor.getMetricsSnapshot().get("connections.timedout"));
+        client.shutdown();
+    }
+
+}
@@ -0,0 +1,77 @@
+package net.sf.uranion.reactor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TimingWheelTest extends TestCase {
+
+    private List fired = new ArrayList();
+
+    public TimingWheelTest(String name) {
+        super(name);
+    }
+
+    private TimingWheel.Timeout timeout(final String name) {
+        return new TimingWheel.Timeout() {
+            protected void run(long now) {
+                fired.add(name);
+            }
+        };
+    }
+
+    public void testExpire() {
+        TimingWheel wheel = new TimingWheel(10, 8, 1000);
+        TimingWheel.Timeout a = this.timeout("a");
+        TimingWheel.Timeout b = this.timeout("b");
+        wheel.schedule(a, 1025);
+        wheel.schedule(b, 1050);
+        assertFalse(wheel.isEmpty());
+
+        wheel.expire(1020);
+        assertTrue(this.fired.isEmpty());
+        assertEquals(6, wheel.getTickDelay(1024));
+        // rounded up to the tick
+        wheel.expire(1030);
+        assertEquals(1, this.fired.size());
+        assertFalse(a.isScheduled());
+        assertTrue(b.isScheduled());
+        wheel.expire(1050);
+        assertEquals(2, this.fired.size());
+        assertTrue(wheel.isEmpty());
+    }
+
+    public void testCancel() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        TimingWheel.Timeout a = this.timeout("a");
+        TimingWheel.Timeout b = this.timeout("b");
+        wheel.schedule(a, 20);
+        wheel.schedule(b, 20);
+        wheel.cancel(a);
+        wheel.cancel(a);
+        // rescheduling moves it
+        wheel.schedule(b, 40);
+        wheel.expire(30);
+        assertTrue(this.fired.isEmpty());
+        wheel.expire(40);
+        assertEquals("b", this.fired.get(0));
+        assertEquals(1, this.fired.size());
+        assertTrue(wheel.isEmpty());
+    }
+
+    public void testRounds() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        TimingWheel.Timeout a = this.timeout("a");
+        // same bucket as tick 2, one round later
+        wheel.schedule(a, 100);
+        wheel.expire(20);
+        assertTrue(this.fired.isEmpty());
+        wheel.expire(90);
+        assertTrue(this.fired.isEmpty());
+        // late by more than a round
+        wheel.expire(1000);
+        assertEquals(1, this.fired.size());
+    }
+
+}
@@ -0,0 +1,100 @@
+package net.sf.uranion.reactor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import net.sf.uranion.packet.Packet;
+
+public class TransportTest extends TestCase {
+
+    private PacketReactor reactor;
+
+    private Thread thread;
+
+    public TransportTest(String name) {
+        super(name);
+    }
+
+    protected void tearDown() throws Exception {
+        ReactorTestSupport.stop(this.reactor, this.thread);
+        super.tearDown();
+    }
+
+    public void testUnixDomainSocket() throws Exception {
+        if (!UnixDomainSockets.isSupported()) {
+            try {
+                UnixDomainSockets.address("/tmp/uranion.sock");
+                fail();
+            } catch (UnsupportedOperationException e) {
+                // older runtime
+            }
+            return;
+        }
+        File file = File.createTempFile("uranion", ".sock");
+        SocketAddress address = UnixDomainSockets.address(file.getPath());
+        this.reactor = new PacketReactor(address, ProcessorExecutors.fixed(2), 1, null, PacketProcessor.ECHO);
+        this.thread = ReactorTestSupport.start(this.reactor);
+
+        PacketProcessorClient client = new PacketProcessorClient(address);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, client.process(ReactorTestSupport.createRequest(i)).getNumber(0));
+        }
+        client.shutdown();
+
+        AsyncPacketClient async = new AsyncPacketClient();
+        AsyncPacketClient.Connection connection = async.connect(address);
+        Future[] results = new Future[10];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = connection.submit(ReactorTestSupport.createRequest(i));
+        }
+        for (int i = 0; i < results.length; i++) {
+            assertEquals("request " + i, ((Packet) results[i].get()).getCharacters(1).toString());
+        }
+        async.shutdown();
+        assertEquals(13, this.reactor.getMetricsSnapshot().get("packets.in"));
+
+        this.reactor.stopListen();
+        assertFalse(file.exists());
+    }
+
+    public void testLocal() throws Exception {
+        this.reactor = new PacketReactor(7788, 2, new PacketProcessor() {
+            public Packet process(Packet packet) {
+                Packet response = new Packet(1);
+                response.setNumber(0, packet.getNumber(0) + 1);
+                return response;
+            }
+        });
+        LocalPacketClient client = this.reactor.connectLocal();
+        Future[] results = new Future[10];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = client.submit(ReactorTestSupport.createRequest(i));
+        }
+        for (int i = 0; i < results.length; i++) {
+            assertEquals(i + 1, ((Packet) results[i].get()).getNumber(0));
+        }
+        MetricsSnapshot snapshot = this.reactor.getMetricsSnapshot();
+        assertEquals(10, snapshot.get("processor.started"));
+        // no network involved
+        assertEquals(0, snapshot.get("packets.in"));
+        client.shutdown();
+        try {
+            client.process(ReactorTestSupport.createRequest(0));
+            fail();
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    public void testLocalByReference() throws Exception {
+        this.reactor = new PacketReactor(7788, 2, PacketProcessor.ECHO);
+        LocalPacketClient client = this.reactor.connectLocal();
+        Packet request = ReactorTestSupport.createRequest(7);
+        assertSame(request, client.process(request));
+        assertEquals(1, this.reactor.getMetricsSnapshot().get("processor.inline"));
+    }
+
+}
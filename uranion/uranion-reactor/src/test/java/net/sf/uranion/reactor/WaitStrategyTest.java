@@ -0,0 +1,60 @@
+package net.sf.uranion.reactor;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+import net.sf.uranion.packet.Packet;
+
+public class WaitStrategyTest extends TestCase {
+
+    private static final int PORT = 7782;
+
+    public WaitStrategyTest(String name) {
+        super(name);
+    }
+
+    public void testBlocking() throws Exception {
+        this.roundtrip(WaitStrategy.BLOCKING);
+    }
+
+    public void testSpin() throws Exception {
+        this.roundtrip(new SpinWaitStrategy(100));
+    }
+
+    public void testBusyPoll() throws Exception {
+        this.roundtrip(WaitStrategy.BUSY_POLL);
+    }
+
+    /**
+     * Responses are handed to the reactors by the processor threads, none of
+     * them may get stuck in the task queue.
+     */
+    private void roundtrip(WaitStrategy waitStrategy) throws Exception {
+        PacketReactor reactor = new PacketReactor(PORT, 2, 2, null, new PacketProcessor() {
+            public Packet process(Packet packet) {
+                return packet;
+            }
+        });
+        reactor.setWaitStrategy(waitStrategy);
+        Thread acceptor = new Thread(reactor);
+        acceptor.start();
+        PacketProcessorClient client = new PacketProcessorClient(new InetSocketAddress("localhost", PORT));
+        for (int i = 0; i < 200; i++) {
+            Packet dummy = new Packet(2);
+            dummy.setCharacters(0, "hello " + i);
+            dummy.setNumber(1, i);
+            Packet processed = client.process(dummy);
+            assertEquals(dummy.getCharacters(0), processed.getCharacters(0));
+            assertEquals(i, processed.getNumber(1));
+            if (i % 50 == 0) {
+                // let the reactors fall back to blocking
+                Thread.sleep(20);
+            }
+        }
+        client.shutdown();
+        reactor.shutdown();
+        acceptor.join(5000);
+        assertFalse(acceptor.isAlive());
+    }
+
+}